@@ -19,11 +19,13 @@ local function addalias(_, query)
     end
 
     aliases:edit():putString(args[1], args[2]):apply()
+    inline:getCommandCache():invalidate()
     query:answer()
 end
 
 local function delalias(_, query)
     aliases:edit():remove(query:getArgs()):apply()
+    inline:getCommandCache():invalidate()
     query:answer()
 end
 
@@ -59,6 +61,7 @@ local function aliases_(_, query)
                         aliases:edit()
                                :remove(key)
                                :apply()
+                        inline:getCommandCache():invalidate()
                         aliases_(_, queryYes)
                     end },
                     " ",
@@ -78,5 +81,5 @@ return function(module)
     module:registerCommand("addalias", addalias, "Set an alias for a command")
     module:registerCommand("delalias", delalias, "Remove an alias for a command")
     module:registerCommand("aliases", aliases_, "Aliases manager")
-    module:registerCommandFinder(finder)
+    module:registerCommandFinder(finder, true)
 end
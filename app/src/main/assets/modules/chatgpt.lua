@@ -105,7 +105,56 @@ local function getPreferences(prefs)
     }
 end
 
-local function ask(string, onResult)
+local function streamResponse(request, onResult, onPartial)
+    local content = {}
+    local raw = {}
+
+    request.json.stream = true
+
+    client.stream(request,
+            function(_, _, data)
+                if data == nil then
+                    if #content == 0 and #raw > 0 then
+                        local ok, result = pcall(json.load, table.concat(raw))
+                        if ok and type(result) == "table" and result.error then
+                            return onResult(result.error.message)
+                        end
+                        return onResult(table.concat(raw))
+                    end
+
+                    local message = table.concat(content)
+
+                    history[#history + 1] = {
+                        content = message,
+                        role = "assistant"
+                    }
+
+                    return onResult(message)
+                end
+
+                if data == "[DONE]" then
+                    return
+                end
+
+                local ok, chunk = pcall(json.load, data)
+
+                if ok and type(chunk) == "table" and chunk.choices then
+                    local delta = chunk.choices[1].delta
+                    if delta and type(delta.content) == "string" then
+                        content[#content + 1] = delta.content
+                        onPartial(table.concat(content))
+                    end
+                else
+                    raw[#raw + 1] = data
+                end
+            end,
+            function(_, e)
+                onResult("Error: " .. e:getMessage())
+            end
+    )
+end
+
+local function ask(string, onResult, onPartial)
     if os.time() - timestamp > preferences:getInt("openai_history_minutes", 5) * 60 then
         history = {}
     end
@@ -114,14 +163,20 @@ local function ask(string, onResult)
 
     history[#history + 1] = { role = "user", content = string }
 
-    client.post({
+    local request = {
         url = preferences:getString("openai_url", DEFAULT_API_ENDPOINT),
         headers = { Authorization = "Bearer " .. preferences:getString("openai_key", "") },
         json = {
             model = preferences:getString("openai_model", "gpt-4o-mini"),
             messages = history
         }
-    },
+    }
+
+    if onPartial then
+        return streamResponse(request, onResult, onPartial)
+    end
+
+    client.post(request,
             function(_, _, str)
                 local result = json.load(str)
 
@@ -181,9 +236,11 @@ local function fask(input, query)
         local text = ui.text "Loading..."
         text:setMaxLines(15)
 
-        ask(args, function(result)
+        local function update(result)
             text:setText(result)
-        end)
+        end
+
+        ask(args, update, update)
 
         local paste = ui.smallButton("Paste", function()
             if not windows.insertText(text:getText()) then
@@ -231,6 +288,8 @@ local function fgpt(_, query)
             ask(input:getText(), function(result)
                 text:setText(result)
                 askButton:setEnabled(true)
+            end, function(partial)
+                text:setText(partial)
             end)
         end)
 
@@ -1,4 +1,7 @@
 require "utils"
+require "profiler"
+
+local ResolutionCache = require "org.luaj.vm2.lib.ResolutionCache"
 
 local function help(_, query)
     local categories = {}
@@ -43,7 +46,29 @@ local function help(_, query)
             end
             query:answer(table.concat(result, "\n"))
         else
-            query:answer "Category not found"
+            for category, commands in pairs(categories) do
+                local desc = commands[args]
+                if desc then
+                    query:answer("Help for " .. args .. " (" .. category .. ")" .. (desc ~= "" and (": " .. desc) or ""))
+                    return
+                end
+            end
+
+            local index = luajava.newInstance("com.wavecat.inline.service.commands.CommandIndex")
+            for category in pairs(categories) do
+                index:add(category)
+            end
+
+            local suggestions = index:suggest(args, 5, 2)
+            if suggestions:size() > 0 then
+                local names = {}
+                for i = 0, suggestions:size() - 1 do
+                    table.insert(names, suggestions:get(i))
+                end
+                query:answer("Category not found. Categories: " .. table.concat(names, ", "))
+            else
+                query:answer "Category not found"
+            end
         end
     end
 end
@@ -57,6 +82,26 @@ local function getPreferences(prefs)
     local notificationTimeout = inline:getDefaultSharedPreferences():getInt("notification_timeout", 0)
     local currentValue = prefs.text("Current value: " .. notificationTimeout .. " ms")
 
+    local coalescingWindow = inline:getDefaultSharedPreferences():getInt("coalescing_window", 0)
+    local currentWindow = prefs.text("Current value: " .. coalescingWindow .. " ms")
+
+    local profilerStatus = prefs.text(profiler.isRunning() and "Sampling..." or "Stopped")
+    local profilerSwitch = prefs.switch("Sample Lua code", function(checked)
+        if checked then
+            profiler.reset()
+            profiler.start()
+            profilerStatus:setText "Sampling..."
+        else
+            profiler.stop()
+            local dir = inline:getExternalFilesDir(nil) or inline:getFilesDir()
+            local path = profiler.save(
+                dir:getAbsolutePath() .. "/profiles/" .. os.date("%Y%m%d-%H%M%S") .. ".folded"
+            )
+            profilerStatus:setText("Saved to " .. path)
+        end
+    end)
+    profilerSwitch:setChecked(profiler.isRunning())
+
     return {
         prefs.card {
             prefs.text "Event Frequency":bold():size(16),
@@ -73,6 +118,22 @@ local function getPreferences(prefs)
             end),
         },
         prefs.spacer(12),
+        prefs.card {
+            prefs.text "Event Coalescing":bold():size(16),
+            prefs.spacer(4),
+            prefs.text "Events arriving in quick succession, such as while typing fast, are merged so that modules only see the latest state. Off (0) by default, which processes every event.",
+            prefs.spacer(8),
+            currentWindow,
+            prefs.spacer(8),
+            prefs.slider("coalescing_window", 300)
+                 :useInt()
+                 :setStep(10)
+                 :setDefault(0)
+                 :setOnProgressChanged(function(progress)
+                currentWindow:setText("Current value: " .. progress .. " ms")
+            end),
+        },
+        prefs.spacer(12),
         prefs.card {
             prefs.text "Selection Events":bold():size(16),
             prefs.spacer(8),
@@ -81,6 +142,16 @@ local function getPreferences(prefs)
             prefs.switch("receive_selection_changes", "Receive selection changes"):setDefault(true),
         },
         prefs.spacer(12),
+        prefs.card {
+            prefs.text "Profiler":bold():size(16),
+            prefs.spacer(8),
+            prefs.text "Samples the running Lua code to find the modules and functions that slow down typing. Stopping saves the stacks in the collapsed format used by flame graph tools.",
+            prefs.spacer(8),
+            profilerStatus,
+            prefs.spacer(8),
+            profilerSwitch,
+        },
+        prefs.spacer(12),
         prefs.card {
             prefs.text "Formatting":bold():size(16),
             prefs.spacer(4),
@@ -130,6 +201,25 @@ local function modules(_, query)
     query:answer(table.concat(result, "\n"))
 end
 
+local function usage(_, query)
+    local accounting = inline:getAccounting()
+    local resolutions = ResolutionCache.SHARED
+
+    if query:getArgs() == "reset" then
+        accounting:reset()
+        resolutions:clear()
+        query:answer "Usage statistics cleared"
+        return
+    end
+
+    local report = accounting:format()
+    if report == "" then
+        report = "Nothing measured yet"
+    end
+
+    query:answer(report .. string.format("\n\nrequire: %d cached, %d resolved", resolutions:hits(), resolutions:misses()))
+end
+
 local function pkgname(input, query)
     query:answer(input:getPackageName())
 end
@@ -141,6 +231,7 @@ return function(module)
     module:registerCommand("help", help, "Displays help")
     module:registerCommand("reload", reload, "Recreate environment, initializes modules")
     module:registerCommand("modules", modules, "Shows loaded and lazy modules")
+    module:registerCommand("usage", usage, "Shows time spent in each module, usage reset clears it")
     module:registerCommand("pkgname", pkgname, "Gives the package name of the app")
 
     module:registerPreferences(getPreferences)
@@ -0,0 +1,204 @@
+@file:Suppress("unused", "DEPRECATION")
+
+package com.wavecat.inline.libs
+
+import android.os.Debug
+import com.wavecat.inline.extensions.oneArgFunction
+import com.wavecat.inline.extensions.twoArgFunction
+import com.wavecat.inline.extensions.zeroArgFunction
+import com.wavecat.inline.utils.AllocationCounter
+import org.luaj.vm2.LuaTable
+import org.luaj.vm2.LuaValue
+import org.luaj.vm2.lib.TwoArgFunction
+import java.util.Locale
+import kotlin.math.ceil
+
+/**
+ * Lua library for timing Lua code precisely.
+ *
+ * `os.clock` has millisecond resolution and follows changes of the wall
+ * clock, so it cannot time a handler that runs for microseconds. This
+ * library reads the monotonic [System.nanoTime] clock instead and runs
+ * micro-benchmarks reporting percentiles and allocations.
+ *
+ * Allocations are counted by the JVM for free. On Android they are counted
+ * with [Debug.startAllocCounting] while a benchmark runs, which slows
+ * allocation down; pass `allocations = false` for the fastest timings.
+ */
+class Bench : TwoArgFunction() {
+
+    /**
+     * Initializes the Lua library with timing functions.
+     *
+     * @param name The name of the library (unused)
+     * @param env The Lua environment to register the library in
+     * @return LuaValue The created library table
+     * @see LuaValue
+     */
+    override fun call(name: LuaValue, env: LuaValue): LuaValue {
+        val library: LuaValue = tableOf()
+
+        /**
+         * Returns the time of a monotonic clock.
+         *
+         * Only differences between two readings are meaningful.
+         *
+         * @return number Seconds, with nanosecond resolution
+         */
+        library["clock"] = zeroArgFunction {
+            valueOf((System.nanoTime() - ORIGIN) / 1e9)
+        }
+
+        /**
+         * Returns the time of a monotonic clock in nanoseconds.
+         *
+         * @return number Nanoseconds, only differences between two readings are meaningful
+         */
+        library["nanos"] = zeroArgFunction {
+            valueOf((System.nanoTime() - ORIGIN).toDouble())
+        }
+
+        /**
+         * Runs a function repeatedly and measures each call.
+         *
+         * The options table may contain:
+         * - name: label used by format
+         * - warmup: calls made before measuring, so that the code is compiled (default 100)
+         * - iterations: calls measured (default 1000)
+         * - allocations: whether to count allocated bytes (default true)
+         *
+         * param fn The function to call without arguments
+         * param options The options table (optional)
+         * @return table Fields name, iterations, total, mean, min, max, p50, p90 and p99
+         *         in nanoseconds, and allocated and allocatedPerCall in bytes where counted
+         */
+        library["run"] = twoArgFunction { fn, options ->
+            fn.checkfunction()
+            val settings = options.opttable(LuaTable())
+
+            val warmup = settings["warmup"].optint(DEFAULT_WARMUP)
+            val iterations = settings["iterations"].optint(DEFAULT_ITERATIONS)
+            if (warmup < 0) argerror(2, "warmup must not be negative")
+            if (iterations <= 0) argerror(2, "iterations must be positive")
+
+            repeat(warmup) { fn.call() }
+
+            val counting = settings["allocations"].optboolean(true)
+            val durations = LongArray(iterations)
+            val allocated = measureAllocations(counting) {
+                for (i in 0 until iterations) {
+                    val start = System.nanoTime()
+                    fn.call()
+                    durations[i] = System.nanoTime() - start
+                }
+            }
+
+            durations.sort()
+
+            tableOf().apply {
+                set("name", settings["name"].optjstring("benchmark"))
+                set("iterations", iterations)
+                set("total", durations.sum().toDouble())
+                set("mean", durations.average())
+                set("min", durations.first().toDouble())
+                set("max", durations.last().toDouble())
+                for (percentile in PERCENTILES)
+                    set("p$percentile", percentileOf(durations, percentile).toDouble())
+
+                if (allocated >= 0) {
+                    set("allocated", allocated.toDouble())
+                    set("allocatedPerCall", allocated.toDouble() / iterations)
+                }
+            }
+        }
+
+        /**
+         * Formats the result of run on one line.
+         *
+         * param result The table returned by run
+         * @return string E.g. `parse: 1000 iterations, mean 1.2 us, p50 1.1 us, p90 1.6 us, p99 4.0 us, max 21 us, 312 B/call`
+         */
+        library["format"] = oneArgFunction { result ->
+            result.checktable()
+
+            valueOf(buildString {
+                append(result["name"].tojstring()).append(": ")
+                append(result["iterations"].toint()).append(" iterations")
+                append(", mean ").append(formatNanos(result["mean"].todouble()))
+                for (percentile in PERCENTILES)
+                    append(", p").append(percentile).append(' ').append(formatNanos(result["p$percentile"].todouble()))
+                append(", max ").append(formatNanos(result["max"].todouble()))
+
+                val perCall = result["allocatedPerCall"]
+                if (!perCall.isnil()) append(", ").append(perCall.todouble().toLong()).append(" B/call")
+            })
+        }
+
+        /**
+         * Returns the bytes allocated by the running thread so far.
+         *
+         * @return number|nil Bytes, or nil where the runtime does not count them without a benchmark running
+         */
+        library["allocated"] = zeroArgFunction {
+            val bytes = AllocationCounter.currentThread()
+            if (bytes >= 0) valueOf(bytes.toDouble()) else NIL
+        }
+
+        env["bench"] = library
+        env["package"]["loaded"]["bench"] = library
+
+        return library
+    }
+
+    companion object {
+        private const val DEFAULT_WARMUP = 100
+        private const val DEFAULT_ITERATIONS = 1000
+
+        private val PERCENTILES = intArrayOf(50, 90, 99)
+
+        /**
+         * Origin of the clock, keeping readings small enough for doubles to hold nanoseconds.
+         */
+        private val ORIGIN = System.nanoTime()
+
+        /**
+         * Runs [block] and returns the bytes it allocated, `-1` if not counted.
+         */
+        private inline fun measureAllocations(counting: Boolean, block: () -> Unit): Long {
+            if (!counting) {
+                block()
+                return -1
+            }
+
+            if (AllocationCounter.isAvailable) {
+                val before = AllocationCounter.currentThread()
+                block()
+                return AllocationCounter.currentThread() - before
+            }
+
+            Debug.resetThreadAllocSize()
+            Debug.startAllocCounting()
+            try {
+                block()
+                return Debug.getThreadAllocSize().toLong()
+            } finally {
+                Debug.stopAllocCounting()
+            }
+        }
+
+        /**
+         * Returns the nearest-rank percentile of sorted durations.
+         */
+        private fun percentileOf(sorted: LongArray, percentile: Int): Long {
+            val rank = ceil(sorted.size * percentile / 100.0).toInt().coerceIn(1, sorted.size)
+            return sorted[rank - 1]
+        }
+
+        private fun formatNanos(nanos: Double) = when {
+            nanos >= 1e9 -> String.format(Locale.ROOT, "%.2f s", nanos / 1e9)
+            nanos >= 1e6 -> String.format(Locale.ROOT, "%.2f ms", nanos / 1e6)
+            nanos >= 1e3 -> String.format(Locale.ROOT, "%.1f us", nanos / 1e3)
+            else -> String.format(Locale.ROOT, "%.0f ns", nanos)
+        }
+    }
+}
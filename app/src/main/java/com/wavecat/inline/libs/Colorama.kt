@@ -338,25 +338,7 @@ class Colorama : TwoArgFunction() {
      *
      * @param query The base Query object to enhance
      */
-    private class ColoramaQuery(query: Query) : Query(
-        accessibilityNodeInfo = query.accessibilityNodeInfo,
-        currentText = query.text,
-        expression = query.expression,
-        args = query.args
-    ) {
-        /**
-         * Starting position of the expression in the text.
-         */
-        private val startExp = startPosition
-
-        /**
-         * Ending position of the expression in the text.
-         *
-         * Updated as content is replaced to track the current
-         * bounds of the formatted content.
-         */
-        private var endExp = startPosition + expression.length
-
+    private class ColoramaQuery(query: Query) : Query(query) {
         /**
          * Answers with HTML-formatted content via clipboard insertion.
          *
@@ -373,26 +355,28 @@ class Colorama : TwoArgFunction() {
             if (!availability)
                 return answerRaw(raw)
 
+            // Pasting works on the field itself, so edits of other queries have to reach it first
+            edits.flush()
+
             for (attempt in 0..2) {
                 clipboardManager.setPrimaryClip(ClipData.newHtmlText("colorama", raw, reply))
 
-                setSelection(accessibilityNodeInfo, startExp, endExp)
+                setSelection(accessibilityNodeInfo, start, end)
                 paste(accessibilityNodeInfo)
 
-                text = replaceExpression(raw)
-                endExp = startExp + raw.length
+                edits.replaced(span, raw)
 
+                flush()
                 accessibilityNodeInfo.refresh()
 
                 if (accessibilityNodeInfo.text.length == text.length) {
-                    if (cursorToEnd)
-                        endExp = text.length
-
-                    setSelection(accessibilityNodeInfo, endExp, endExp)
+                    val position = if (cursorToEnd) text.length else end
+                    setSelection(accessibilityNodeInfo, position, position)
                     break
                 }
 
                 answerRaw(raw)
+                edits.flush()
             }
         }
 
@@ -412,7 +396,7 @@ class Colorama : TwoArgFunction() {
          * @return String Debug information about the query state
          */
         override fun toString(): String {
-            return "ColoramaQuery{currentText=$currentText, expression=$expression, args=$args, text=$text, startExp=$startExp, endExp=$endExp}"
+            return "ColoramaQuery{currentText=$currentText, expression=$expression, args=$args, text=$text, start=$start, end=$end}"
         }
     }
 }
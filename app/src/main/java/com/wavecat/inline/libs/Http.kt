@@ -6,10 +6,22 @@ import com.wavecat.inline.extensions.forEach
 import com.wavecat.inline.extensions.oneArgFunction
 import com.wavecat.inline.extensions.threeArgFunction
 import com.wavecat.inline.extensions.twoArgFunction
+import com.wavecat.inline.extensions.varArgFunction
 import com.wavecat.inline.extensions.zeroArgFunction
 import com.wavecat.inline.libs.Http.Companion.newInstance
 import com.wavecat.inline.libs.Http.Companion.toRequest
-import com.wavecat.inline.utils.runOnUiThread
+import com.wavecat.inline.libs.http.BatchingDispatcher
+import com.wavecat.inline.libs.http.CallCoalescer
+import com.wavecat.inline.libs.http.CallCoalescer.Companion.coalescingKey
+import com.wavecat.inline.libs.http.EventStreamReader
+import com.wavecat.inline.libs.http.HttpMetrics
+import com.wavecat.inline.libs.json.JsonReader
+import com.wavecat.inline.libs.json.JsonSelector
+import com.wavecat.inline.service.InlineService
+import com.wavecat.inline.service.InlineService.Companion.requireService
+import com.wavecat.inline.service.ModuleAccounting
+import com.wavecat.inline.utils.runOnLuaThread
+import okhttp3.Cache
 import okhttp3.Callback
 import okhttp3.FormBody
 import okhttp3.Headers
@@ -25,8 +37,10 @@ import org.luaj.vm2.LuaNil
 import org.luaj.vm2.LuaString
 import org.luaj.vm2.LuaTable
 import org.luaj.vm2.LuaValue
+import org.luaj.vm2.Varargs
 import org.luaj.vm2.lib.TwoArgFunction
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
+import java.io.File
 import java.io.IOException
 
 /**
@@ -61,13 +75,66 @@ class Http : TwoArgFunction() {
     }
 
     companion object {
+        /**
+         * Connection and cache statistics of all clients created by this library.
+         */
+        private val metrics = HttpMetrics()
+
         /**
          * Default OkHttpClient instance used for HTTP requests.
          *
-         * Shared client instance with default configuration for
-         * all HTTP operations unless overridden.
+         * Its connection pool, dispatcher and event listener are shared by every
+         * client derived from it, including custom clients passed to `http(client)`.
+         */
+        private val client = OkHttpClient.Builder()
+            .eventListener(metrics)
+            .addInterceptor(metrics)
+            .build()
+
+        /**
+         * Coalescing and debouncing state shared by all library instances.
+         */
+        private val coalescer = CallCoalescer<Pair<LuaValue, LuaValue>>()
+
+        /**
+         * Disk cache shared by all clients that opted into caching.
+         *
+         * Created on first use, since a cache directory can only be owned by
+         * a single [Cache] instance.
+         */
+        private var cache: Cache? = null
+
+        /**
+         * Returns the shared disk cache, creating it with the given size if needed.
+         *
+         * @param maxSize Maximum size of the cache in bytes, used only on creation
+         * @return Cache The shared cache stored in the service cache directory
+         */
+        @Synchronized
+        private fun sharedCache(maxSize: Long): Cache = cache ?: Cache(
+            File(requireService().cacheDir, CACHE_DIRECTORY),
+            maxSize
+        ).also { cache = it }
+
+        /**
+         * Makes a client use the shared connection pool, dispatcher and metrics.
+         *
+         * Clients derived from the default client through `newBuilder` already
+         * share them and are returned as is.
+         *
+         * @receiver OkHttpClient The client to adapt
+         * @return OkHttpClient A client sharing the resources of the default client
          */
-        private val client = OkHttpClient()
+        private fun OkHttpClient.shareResources(): OkHttpClient =
+            if (connectionPool === client.connectionPool && dispatcher === client.dispatcher)
+                this
+            else
+                newBuilder()
+                    .connectionPool(client.connectionPool)
+                    .dispatcher(client.dispatcher)
+                    .eventListener(metrics)
+                    .apply { if (metrics !in interceptors()) addInterceptor(metrics) }
+                    .build()
 
         /**
          * JSON media type constant for request body creation.
@@ -76,6 +143,42 @@ class Http : TwoArgFunction() {
          */
         private val JSON = "application/json".toMediaType()
 
+        /**
+         * Maximum number of streamed events waiting for the Lua thread.
+         */
+        private const val STREAM_CAPACITY = 64
+
+        /**
+         * Maximum size of a raw chunk delivered by streaming calls.
+         */
+        private const val STREAM_CHUNK_SIZE = 8192L
+
+        /**
+         * Default size of the shared disk cache: 10 MiB.
+         */
+        private const val DEFAULT_CACHE_SIZE = 10L * 1024 * 1024
+
+        /**
+         * Name of the disk cache directory inside the service cache directory.
+         */
+        private const val CACHE_DIRECTORY = "http"
+
+        /**
+         * Calls a Lua callback of a request on the Lua thread.
+         *
+         * @param callback The callback, whose module the call is charged to
+         * @param call Calls the callback
+         * @see measured
+         */
+        private fun dispatch(callback: LuaValue, call: () -> Unit) = runOnLuaThread { measured(callback, call) }
+
+        /**
+         * Calls a Lua callback of a request through [InlineService.dispatch].
+         */
+        private fun <T> measured(callback: LuaValue, call: () -> T): T {
+            val service = InlineService.instance ?: return call()
+            return service.dispatch(callback, ModuleAccounting.Kind.HTTP, call)
+        }
 
         /**
          * Converts a Lua table to an OkHttp Request object.
@@ -103,7 +206,9 @@ class Http : TwoArgFunction() {
             var body: RequestBody? = null
 
             when (val data = get("json")) {
-                is LuaTable -> body = Json.dumpTable(data, HashSet()).toString().toRequestBody(JSON)
+                is LuaTable -> body = Json.encode(data).let {
+                    it.m_bytes.toRequestBody(JSON, it.m_offset, it.m_length)
+                }
                 is LuaString -> body = data.tojstring().toRequestBody(JSON)
                 is LuaNil -> {}
                 else -> throw IllegalArgumentException("Incorrect json value")
@@ -154,22 +259,115 @@ class Http : TwoArgFunction() {
          * Creates and executes an asynchronous HTTP call with Lua callbacks.
          *
          * Executes the HTTP request asynchronously and invokes the appropriate
-         * Lua callback functions on the UI thread for response handling or error processing.
+         * Lua callback functions on the Lua thread for response handling or error processing.
+         *
+         * When a [coalescingKey] is given and an identical request is already in
+         * flight, no new call is made and the callbacks receive the response of
+         * the running call instead.
          *
+         * @param client The client executing the request
          * @param request The OkHttp request to execute
          * @param onResponse Lua function to call on successful response
          * @param onFailure Lua function to call on request failure
+         * @param coalescingKey Key shared by identical requests, `null` to always start a call
          * @see Callback
+         * @see CallCoalescer
          */
         private fun newLuaCall(
+            client: OkHttpClient,
             request: Request,
             onResponse: LuaValue,
             onFailure: LuaValue,
-        ) =
+            coalescingKey: CallCoalescer.Key? = null,
+        ) {
+            val callbacks = onResponse to onFailure
+
+            if (coalescingKey != null && !coalescer.join(coalescingKey, callbacks))
+                return
+
+            fun waiting() = if (coalescingKey == null) listOf(callbacks) else coalescer.complete(coalescingKey)
+
             client.newCall(request).enqueue(object : Callback {
                 override fun onFailure(call: okhttp3.Call, e: IOException) {
-                    if (!onFailure.isnil())
-                        runOnUiThread {
+                    waiting().forEach { (_, onFailure) ->
+                        if (!onFailure.isnil())
+                            dispatch(onFailure) {
+                                onFailure.call(
+                                    CoerceJavaToLua.coerce(call),
+                                    CoerceJavaToLua.coerce(e)
+                                )
+                            }
+                    }
+                }
+
+                override fun onResponse(call: okhttp3.Call, response: Response) {
+                    val bytes: LuaValue = try {
+                        response.body.use { valueOf(it.bytes()) }
+                    } catch (e: IOException) {
+                        this.onFailure(call, e)
+                        return
+                    }
+
+                    waiting().forEach { (onResponse, _) ->
+                        if (!onResponse.isnil())
+                            dispatch(onResponse) {
+                                onResponse.call(
+                                    CoerceJavaToLua.coerce(call),
+                                    CoerceJavaToLua.coerce(response),
+                                    bytes
+                                )
+                            }
+                    }
+                }
+            })
+        }
+
+        /**
+         * Creates and executes an asynchronous HTTP call whose body is delivered as it arrives.
+         *
+         * `text/event-stream` responses are parsed into Server-Sent Events and
+         * every other body is delivered in raw chunks as they are received.
+         * Events are handed to the Lua thread in batches by a [BatchingDispatcher],
+         * which blocks the network read once [STREAM_CAPACITY] events are
+         * waiting to be delivered.
+         *
+         * [onEvent] is called with `call, response, data, event, id` for every
+         * event (`event` and `id` are nil for raw chunks) and once more with
+         * `call, response` when the body is complete. Returning `false` from it
+         * cancels the call; canceling the returned call stops delivery as well.
+         *
+         * @param client The client executing the request
+         * @param request The OkHttp request to execute
+         * @param onEvent Lua function receiving the events
+         * @param onFailure Lua function to call on request failure
+         * @return okhttp3.Call The call, which can be canceled from Lua
+         * @see EventStreamReader
+         */
+        private fun newStreamCall(
+            client: OkHttpClient,
+            request: Request,
+            onEvent: LuaValue,
+            onFailure: LuaValue,
+        ): okhttp3.Call {
+            val call = client.newCall(request)
+
+            call.enqueue(object : Callback {
+                val dispatcher = BatchingDispatcher<Varargs>(STREAM_CAPACITY) { batch ->
+                    for (args in batch) {
+                        if (call.isCanceled()) return@BatchingDispatcher
+
+                        if (measured(onEvent) { onEvent.invoke(args) }.arg1() == FALSE) {
+                            call.cancel()
+                            return@BatchingDispatcher
+                        }
+                    }
+                }
+
+                override fun onFailure(call: okhttp3.Call, e: IOException) {
+                    dispatcher.close()
+
+                    if (!onFailure.isnil() && !call.isCanceled())
+                        dispatch(onFailure) {
                             onFailure.call(
                                 CoerceJavaToLua.coerce(call),
                                 CoerceJavaToLua.coerce(e)
@@ -178,19 +376,123 @@ class Http : TwoArgFunction() {
                 }
 
                 override fun onResponse(call: okhttp3.Call, response: Response) {
-                    val body = response.body
-                    val bytes: LuaValue = valueOf(body.bytes())
-                    body.close()
-                    if (!onResponse.isnil())
-                        runOnUiThread {
-                            onResponse.call(
+                    val luaCall = CoerceJavaToLua.coerce(call)
+                    val luaResponse = CoerceJavaToLua.coerce(response)
+
+                    try {
+                        response.use {
+                            val body = response.body
+                            val contentType = body.contentType()
+
+                            if (contentType?.type == "text" && contentType.subtype == "event-stream") {
+                                val reader = EventStreamReader(body.source())
+
+                                while (reader.next()) {
+                                    val args = varargsOf(
+                                        arrayOf(
+                                            luaCall,
+                                            luaResponse,
+                                            valueOf(reader.data),
+                                            reader.event?.let { valueOf(it) } ?: NIL,
+                                            reader.id?.let { valueOf(it) } ?: NIL
+                                        )
+                                    )
+                                    if (!dispatcher.offer(args)) return
+                                }
+                            } else {
+                                val source = body.source()
+                                val chunk = okio.Buffer()
+
+                                while (source.read(chunk, STREAM_CHUNK_SIZE) != -1L) {
+                                    val args = varargsOf(luaCall, luaResponse, valueOf(chunk.readByteArray()))
+                                    if (!dispatcher.offer(args)) return
+                                }
+                            }
+                        }
+
+                        dispatcher.offer(varargsOf(luaCall, luaResponse))
+                    } catch (e: IOException) {
+                        this.onFailure(call, e)
+                    }
+                }
+            })
+
+            return call
+        }
+
+        /**
+         * Creates and executes an asynchronous HTTP call whose JSON response is read incrementally.
+         *
+         * The response body is parsed on the OkHttp thread as it arrives and only
+         * the values located at [path] are decoded. They are handed to the Lua
+         * thread by a [BatchingDispatcher], which blocks the network read once
+         * [STREAM_CAPACITY] items are waiting, so memory use stays flat regardless
+         * of the response size and of how fast [onItem] runs.
+         *
+         * [onItem] is called for every selected value, followed by a final call
+         * with a nil item once the document is complete. Returning `false` from
+         * it cancels the call.
+         *
+         * @param client The client executing the request
+         * @param request The OkHttp request to execute
+         * @param path Segments of the path of the values to select
+         * @param onItem Lua function called with `call, response, item` for every selected value
+         * @param onFailure Lua function to call on request or parsing failure
+         * @see Json.decodeEach
+         */
+        private fun newJsonStreamCall(
+            client: OkHttpClient,
+            request: Request,
+            path: List<String>,
+            onItem: LuaValue,
+            onFailure: LuaValue,
+        ) {
+            val call = client.newCall(request)
+
+            call.enqueue(object : Callback {
+                var luaCall: LuaValue = NIL
+                var luaResponse: LuaValue = NIL
+
+                val dispatcher = BatchingDispatcher<LuaValue>(STREAM_CAPACITY) { batch ->
+                    for (item in batch) {
+                        if (call.isCanceled()) return@BatchingDispatcher
+
+                        if (measured(onItem) { onItem.call(luaCall, luaResponse, item) } == FALSE) {
+                            call.cancel()
+                            return@BatchingDispatcher
+                        }
+                    }
+                }
+
+                override fun onFailure(call: okhttp3.Call, e: IOException) {
+                    dispatcher.close()
+
+                    if (!onFailure.isnil() && !call.isCanceled())
+                        dispatch(onFailure) {
+                            onFailure.call(
                                 CoerceJavaToLua.coerce(call),
-                                CoerceJavaToLua.coerce(response),
-                                bytes
+                                CoerceJavaToLua.coerce(e)
                             )
                         }
                 }
+
+                override fun onResponse(call: okhttp3.Call, response: Response) {
+                    luaCall = CoerceJavaToLua.coerce(call)
+                    luaResponse = CoerceJavaToLua.coerce(response)
+
+                    try {
+                        response.use {
+                            if (!Json.decodeEach(response.body.byteStream(), path) { dispatcher.offer(it) })
+                                return
+                        }
+
+                        dispatcher.offer(NIL)
+                    } catch (e: Exception) {
+                        this.onFailure(call, e as? IOException ?: IOException(e))
+                    }
+                }
             })
+        }
 
         /**
          * Creates a Lua function for a specific HTTP method.
@@ -198,16 +500,37 @@ class Http : TwoArgFunction() {
          * Generates a closure that creates and executes HTTP requests
          * with the specified method name using table-based configuration.
          *
+         * Besides the request fields, the table accepts:
+         * - `coalesce`: share the response of an identical request already in flight
+         * - `debounce`: delay in milliseconds during which a newer request with the
+         *   same key replaces this one
+         * - `debounceKey`: key grouping debounced requests, defaults to the request contents
+         *
+         * @param client The client executing the requests
          * @param methodName The HTTP method name (GET, POST, PUT, etc.)
          * @return LuaValue A three-argument Lua function for the HTTP method
          */
-        private fun createMethodFunction(methodName: String) =
+        private fun createMethodFunction(client: OkHttpClient, methodName: String) =
             threeArgFunction { table, onResponse, onFailure ->
-                newLuaCall(
-                    request = table.checktable().toRequest(methodName),
-                    onResponse = onResponse,
-                    onFailure = onFailure
-                )
+                val request = table.checktable().toRequest(methodName)
+                val coalesce = table["coalesce"].toboolean()
+                val debounce = table["debounce"].optlong(0)
+
+                val start = {
+                    newLuaCall(
+                        client = client,
+                        request = request,
+                        onResponse = onResponse,
+                        onFailure = onFailure,
+                        coalescingKey = if (coalesce) request.coalescingKey(client) else null
+                    )
+                }
+
+                if (debounce > 0)
+                    coalescer.debounce(table["debounceKey"].optjstring(null) ?: request.coalescingKey(client), debounce, start)
+                else
+                    start()
+
                 NIL
             }
 
@@ -336,6 +659,60 @@ class Http : TwoArgFunction() {
              */
             this["newBuilder"] = zeroArgFunction { CoerceJavaToLua.coerce(client.newBuilder()) }
 
+            /**
+             * Shared dispatcher, allows tuning `setMaxRequests`/`setMaxRequestsPerHost`.
+             */
+            this["dispatcher"] = CoerceJavaToLua.coerce(client.dispatcher)
+
+            /**
+             * Shared connection pool.
+             */
+            this["connectionPool"] = CoerceJavaToLua.coerce(client.connectionPool)
+
+            /**
+             * Creates a library instance whose client uses the shared disk cache.
+             *
+             * Responses are cached and revalidated according to their
+             * `Cache-Control`, `ETag` and `Last-Modified` headers.
+             *
+             * param maxSize Maximum cache size in bytes (default 10 MiB), used on first call only
+             * @return table A new HTTP library instance with caching enabled
+             */
+            this["cached"] = oneArgFunction { maxSize ->
+                newInstance(
+                    client.newBuilder()
+                        .cache(sharedCache(maxSize.optlong(DEFAULT_CACHE_SIZE)))
+                        .build()
+                )
+            }
+
+            /**
+             * Returns statistics of the shared connection pool and disk cache.
+             *
+             * @return table Counters: calls, connectionsAcquired, connectionsOpened,
+             *         connectionsReused, idleConnections, connections, cacheHits,
+             *         conditionalCacheHits, cacheMisses, bytesSaved, cacheSize,
+             *         coalesced, debounced
+             * @see HttpMetrics
+             */
+            this["metrics"] = zeroArgFunction {
+                LuaTable().apply {
+                    this["calls"] = valueOf(metrics.calls.get().toDouble())
+                    this["connectionsAcquired"] = valueOf(metrics.connectionsAcquired.get().toDouble())
+                    this["connectionsOpened"] = valueOf(metrics.connectionsOpened.get().toDouble())
+                    this["connectionsReused"] = valueOf(metrics.connectionsReused.toDouble())
+                    this["idleConnections"] = valueOf(client.connectionPool.idleConnectionCount())
+                    this["connections"] = valueOf(client.connectionPool.connectionCount())
+                    this["cacheHits"] = valueOf(metrics.cacheHits.get().toDouble())
+                    this["conditionalCacheHits"] = valueOf(metrics.conditionalCacheHits.get().toDouble())
+                    this["cacheMisses"] = valueOf(metrics.cacheMisses.get().toDouble())
+                    this["bytesSaved"] = valueOf(metrics.bytesSaved.get().toDouble())
+                    this["cacheSize"] = valueOf((cache?.size() ?: 0L).toDouble())
+                    this["coalesced"] = valueOf(coalescer.coalesced.toDouble())
+                    this["debounced"] = valueOf(coalescer.debouncedDropped.toDouble())
+                }
+            }
+
             /**
              * Executes an HTTP request asynchronously with callbacks.
              *
@@ -345,6 +722,7 @@ class Http : TwoArgFunction() {
              */
             this["call"] = threeArgFunction { request, onResponse, onFailure ->
                 newLuaCall(
+                    client = client,
                     request = request.checkuserdata(Request::class.java) as Request,
                     onResponse = onResponse,
                     onFailure = onFailure
@@ -352,6 +730,61 @@ class Http : TwoArgFunction() {
                 NIL
             }
 
+            /**
+             * Executes an HTTP request and delivers its body incrementally.
+             *
+             * Server-Sent Events are parsed into `data, event, id`, other bodies
+             * are delivered in raw chunks. Uses the `method` field of the table,
+             * GET by default.
+             *
+             * param table Request configuration table or Request object
+             * param onEvent Callback receiving `call, response, data, event, id`,
+             *               data is nil when done; returning false cancels the call
+             * param onFailure Error callback function
+             * @return Call The running call, use `call:cancel()` to stop it
+             * @see newStreamCall
+             */
+            this["stream"] = threeArgFunction { request, onEvent, onFailure ->
+                CoerceJavaToLua.coerce(
+                    newStreamCall(
+                        client = client,
+                        request = if (request.istable())
+                            request.toRequest()
+                        else
+                            request.checkuserdata(Request::class.java) as Request,
+                        onEvent = onEvent.checkfunction(),
+                        onFailure = onFailure
+                    )
+                )
+            }
+
+            /**
+             * Executes an HTTP request and streams selected values of its JSON response.
+             *
+             * Uses the `method` field of the table, GET by default.
+             *
+             * param table Request configuration table or Request object
+             * param path Dot-separated string or table of path segments, see json.stream
+             * param onItem Callback receiving `call, response, item`, item is nil when done; returning false cancels
+             * param onFailure Error callback function
+             * @see newJsonStreamCall
+             */
+            this["streamJson"] = varArgFunction { args ->
+                val request = args.arg1()
+
+                newJsonStreamCall(
+                    client = client,
+                    request = if (request.istable())
+                        request.toRequest()
+                    else
+                        request.checkuserdata(Request::class.java) as Request,
+                    path = Json.parsePath(args.arg(2)),
+                    onItem = args.checkfunction(3),
+                    onFailure = args.arg(4)
+                )
+                NIL
+            }
+
             /**
              * Executes HTTP GET request from table configuration.
              *
@@ -359,7 +792,7 @@ class Http : TwoArgFunction() {
              * param onResponse Success callback function
              * param onFailure Error callback function
              */
-            this["get"] = createMethodFunction("GET")
+            this["get"] = createMethodFunction(client, "GET")
 
             /**
              * Executes HTTP POST request from table configuration.
@@ -368,7 +801,7 @@ class Http : TwoArgFunction() {
              * param onResponse Success callback function
              * param onFailure Error callback function
              */
-            this["post"] = createMethodFunction("POST")
+            this["post"] = createMethodFunction(client, "POST")
 
             /**
              * Executes HTTP PUT request from table configuration.
@@ -377,7 +810,7 @@ class Http : TwoArgFunction() {
              * param onResponse Success callback function
              * param onFailure Error callback function
              */
-            this["put"] = createMethodFunction("PUT")
+            this["put"] = createMethodFunction(client, "PUT")
 
             /**
              * Executes HTTP PATCH request from table configuration.
@@ -386,7 +819,7 @@ class Http : TwoArgFunction() {
              * param onResponse Success callback function
              * param onFailure Error callback function
              */
-            this["patch"] = createMethodFunction("PATCH")
+            this["patch"] = createMethodFunction(client, "PATCH")
 
             /**
              * Executes HTTP DELETE request from table configuration.
@@ -395,7 +828,7 @@ class Http : TwoArgFunction() {
              * param onResponse Success callback function
              * param onFailure Error callback function
              */
-            this["delete"] = createMethodFunction("DELETE")
+            this["delete"] = createMethodFunction(client, "DELETE")
 
             /**
              * Metatable allowing the library to be called as a function.
@@ -405,7 +838,9 @@ class Http : TwoArgFunction() {
              */
             this.setmetatable(tableOf().apply {
                 this[CALL] = twoArgFunction { _, client ->
-                    newInstance(client.checkuserdata(OkHttpClient::class.java) as OkHttpClient)
+                    newInstance(
+                        (client.checkuserdata(OkHttpClient::class.java) as OkHttpClient).shareResources()
+                    )
                 }
             })
         }
@@ -4,10 +4,17 @@ package com.wavecat.inline.libs
 
 import com.wavecat.inline.extensions.forEach
 import com.wavecat.inline.extensions.oneArgFunction
+import com.wavecat.inline.extensions.twoArgFunction
+import com.wavecat.inline.extensions.varArgFunction
 import com.wavecat.inline.libs.Json.Companion.Null
 import com.wavecat.inline.libs.Json.Companion.castValue
 import com.wavecat.inline.libs.Json.Companion.dumpTable
+import com.wavecat.inline.libs.Json.Companion.decode
+import com.wavecat.inline.libs.Json.Companion.encode
 import com.wavecat.inline.libs.Json.Companion.load
+import com.wavecat.inline.libs.json.JsonReader
+import com.wavecat.inline.libs.json.JsonSelector
+import com.wavecat.inline.libs.json.JsonWriter
 import org.json.JSONArray
 import org.json.JSONObject
 import org.json.JSONTokener
@@ -20,6 +27,7 @@ import org.luaj.vm2.LuaUserdata
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.lib.TwoArgFunction
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
+import java.io.InputStream
 
 
 /**
@@ -50,14 +58,16 @@ class Json : TwoArgFunction() {
          *
          * Converts a Lua table into its JSON string representation,
          * automatically detecting arrays vs objects based on key types.
+         * The output is written directly as UTF-8 bytes without building
+         * an intermediate JSON object tree.
          *
          * param table The Lua table to serialize
          * @return string The JSON string representation
          * @throws error If circular references are detected
-         * @see dumpTable
+         * @see encode
          */
         library["dump"] = oneArgFunction { table ->
-            valueOf(dumpTable(table.checktable(), HashSet()).toString())
+            encode(table.checktable())
         }
 
         /**
@@ -80,17 +90,71 @@ class Json : TwoArgFunction() {
         /**
          * Deserializes a JSON string to a Lua table.
          *
-         * Parses a JSON string and converts it into equivalent Lua table
-         * structures, preserving data types and nested structures.
+         * Parses the UTF-8 bytes of the string (or an InputStream) directly
+         * into presized Lua tables, preserving data types and nested structures.
+         * JSON null values are represented by [Null].
          *
-         * param jsonString The JSON string to parse
+         * param source The JSON string or InputStream to parse
          * @return table The resulting Lua table
-         * @throws org.json.JSONException If the JSON string is malformed
-         * @see JSONTokener
-         * @see load
+         * @throws IllegalArgumentException If the JSON document is malformed
+         * @see JsonReader
+         * @see decode
+         */
+        library["load"] = oneArgFunction { source ->
+            val reader = newReader(source)
+            decode(reader).also { reader.expectEnd() }
+        }
+
+        /**
+         * Iterates over a JSON document without loading it into memory.
+         *
+         * Without a path, the iterator yields one event per step as
+         * `event, value, depth`, where event is one of `startObject`, `endObject`,
+         * `startArray`, `endArray`, `key`, `string`, `number`, `boolean` or `null`.
+         *
+         * With a path, only the values located at that path are decoded and
+         * yielded, everything else is skipped while reading. The path is either
+         * a dot-separated string or a table of segments; segments are object
+         * keys, 1-based array indices or `*` to match any key or index.
+         *
+         * Usage: `for item in json.stream(input, "data.*.name") do ... end`
+         *
+         * param source The JSON string or InputStream to read
+         * param path Optional path of the values to select
+         * @return function Iterator over events or selected values
+         * @throws IllegalArgumentException If the JSON document is malformed
+         * @see JsonReader
+         * @see JsonSelector
          */
-        library["load"] = oneArgFunction { jsonString ->
-            load(JSONTokener(jsonString.checkjstring()).nextValue())
+        library["stream"] = twoArgFunction { source, path ->
+            val reader = newReader(source)
+
+            if (path.isnil()) {
+                varArgFunction {
+                    when (val event = reader.next()) {
+                        JsonReader.END_DOCUMENT -> {
+                            reader.close()
+                            NIL
+                        }
+
+                        JsonReader.NULL -> varargsOf(EVENTS[event], Null, valueOf(reader.depth))
+                        else -> varargsOf(EVENTS[event], reader.value, valueOf(reader.depth))
+                    }
+                }
+            } else {
+                val selector = JsonSelector(reader, parsePath(path))
+
+                varArgFunction {
+                    when (val event = selector.next()) {
+                        JsonReader.END_DOCUMENT -> {
+                            reader.close()
+                            NIL
+                        }
+
+                        else -> decode(reader, event)
+                    }
+                }
+            }
         }
 
         /**
@@ -144,6 +208,121 @@ class Json : TwoArgFunction() {
          */
         private val Null: LuaValue = LuaUserdata(Any())
 
+        /**
+         * Lua names of the [JsonReader] events, indexed by event constant.
+         */
+        private val EVENTS = arrayOf(
+            "end", "startObject", "endObject", "startArray", "endArray",
+            "key", "string", "number", "boolean", "null"
+        ).map { valueOf(it) }
+
+        /**
+         * Creates a reader over a Lua string or an InputStream userdata.
+         *
+         * @param source The JSON source
+         * @return JsonReader The reader positioned before the document
+         */
+        private fun newReader(source: LuaValue): JsonReader =
+            if (source.isuserdata(InputStream::class.java))
+                JsonReader(source.touserdata() as InputStream)
+            else
+                JsonReader(source.checkstring())
+
+        /**
+         * Converts a Lua path (dot-separated string or table of segments) into segments.
+         *
+         * @param path The path to convert
+         * @return List<String> The path segments, empty for the document root
+         * @see JsonSelector
+         */
+        fun parsePath(path: LuaValue): List<String> =
+            if (path.istable()) {
+                (1..path.length()).map { path[it].tojstring() }
+            } else {
+                path.checkjstring().split('.').filter { it.isNotEmpty() }
+            }
+
+        /**
+         * Serializes a Lua value to a JSON string.
+         *
+         * @param value The value to serialize
+         * @return LuaString The JSON document as UTF-8 bytes
+         * @throws error If the value cannot be serialized or circular reference detected
+         * @see JsonWriter
+         */
+        fun encode(value: LuaValue): LuaString = JsonWriter(Null).write(value).toLuaString()
+
+        /**
+         * Decodes the values located at a path of a JSON document one at a time.
+         *
+         * Only the selected values are materialized, see [JsonSelector].
+         *
+         * @param input The document, read as far as needed
+         * @param path Segments of the path of the values to select
+         * @param onItem Receives each decoded value, returns `false` to stop reading
+         * @return `false` if [onItem] stopped reading
+         * @throws IllegalArgumentException If the JSON document is malformed
+         */
+        fun decodeEach(input: InputStream, path: List<String>, onItem: (LuaValue) -> Boolean): Boolean {
+            val reader = JsonReader(input)
+            val selector = JsonSelector(reader, path)
+
+            while (true) {
+                val event = selector.next()
+                if (event == JsonReader.END_DOCUMENT) return true
+                if (!onItem(decode(reader, event))) return false
+            }
+        }
+
+        /**
+         * Builds a Lua value from the next value of a [JsonReader].
+         *
+         * Collects the children of each container on a shared value stack and
+         * creates the table only once its size is known, so every table is
+         * allocated with the exact array or hash capacity it needs.
+         *
+         * @param reader The reader positioned before a value
+         * @param first The event that starts the value, read from [reader] when omitted
+         * @return LuaValue The decoded value
+         * @throws IllegalArgumentException If the JSON document is malformed
+         */
+        fun decode(reader: JsonReader, first: Int = reader.next()): LuaValue {
+            val values = ArrayList<LuaValue>()
+            val starts = ArrayList<Int>()
+            var event = first
+
+            while (true) {
+                when (event) {
+                    JsonReader.START_OBJECT, JsonReader.START_ARRAY -> starts.add(values.size)
+
+                    JsonReader.END_ARRAY -> {
+                        val start = starts.removeAt(starts.size - 1)
+                        val table = LuaTable(values.size - start, 0)
+                        for (i in start until values.size)
+                            table.rawset(i - start + 1, values[i])
+                        values.subList(start, values.size).clear()
+                        values.add(table)
+                    }
+
+                    JsonReader.END_OBJECT -> {
+                        val start = starts.removeAt(starts.size - 1)
+                        val table = LuaTable(0, (values.size - start) / 2)
+                        for (i in start until values.size step 2)
+                            table.rawset(values[i], values[i + 1])
+                        values.subList(start, values.size).clear()
+                        values.add(table)
+                    }
+
+                    JsonReader.NULL -> values.add(Null)
+                    JsonReader.END_DOCUMENT -> error("Unexpected end of document")
+                    else -> values.add(reader.value)
+                }
+
+                if (starts.isEmpty()) return values[0]
+                event = reader.next()
+            }
+        }
+
 
         /**
          * Converts a Lua value to its JSON equivalent.
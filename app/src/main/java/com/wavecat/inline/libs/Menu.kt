@@ -29,9 +29,9 @@ class Menu : TwoArgFunction() {
      * Map storing active menu contexts associated with accessibility nodes.
      *
      * Tracks all currently active menus and their associated context data,
-     * keyed by the AccessibilityNodeInfo where the menu is displayed.
+     * keyed by the identity of the node where the menu is displayed, see [keyOf].
      */
-    private val menuMap = mutableMapOf<AccessibilityNodeInfo, Context>()
+    private val menuMap = HashMap<Long, Context>()
 
     /**
      * Watcher function for monitoring text selection changes in menu nodes.
@@ -42,12 +42,15 @@ class Menu : TwoArgFunction() {
      */
     private val menuWatcher = oneArgFunction { arg ->
         val accessibilityNodeInfo = arg.touserdata() as AccessibilityNodeInfo
+        val key = keyOf(accessibilityNodeInfo)
 
-        val context = menuMap[accessibilityNodeInfo] ?: return@oneArgFunction NIL
+        val context = menuMap[key]
+            ?.takeIf { it.query.accessibilityNodeInfo == accessibilityNodeInfo }
+            ?: return@oneArgFunction NIL
 
         val text = accessibilityNodeInfo.text
         if (text == null || text.length != context.length) {
-            menuMap.remove(accessibilityNodeInfo)
+            menuMap.remove(key)
             removeWatcher()
 
             if (context.cancelAction.isnil()) {
@@ -59,11 +62,11 @@ class Menu : TwoArgFunction() {
             return@oneArgFunction NIL
         }
 
-        context.parts.firstOrNull { part ->
-            accessibilityNodeInfo.textSelectionStart in (part.start + 1) until part.end &&
-                    accessibilityNodeInfo.textSelectionEnd in (part.start + 1) until part.end
-        }?.let { part ->
-            menuMap.remove(accessibilityNodeInfo)
+        context.partAt(
+            accessibilityNodeInfo.textSelectionStart,
+            accessibilityNodeInfo.textSelectionEnd
+        )?.let { part ->
+            menuMap.remove(key)
             removeWatcher()
 
             part.action.call(arg, CoerceJavaToLua.coerce(context.query))
@@ -128,7 +131,7 @@ class Menu : TwoArgFunction() {
         library["create"] = threeArgFunction { arg1, arg2, arg3 ->
             val result = StringBuilder()
             val query = arg1.checkuserdata(Query::class.java) as Query
-            val parts = hashSetOf<Part>()
+            val parts = ArrayList<Part>()
 
             arg2.checktable().forEach { _, v ->
                 if (v is LuaTable) {
@@ -156,7 +159,7 @@ class Menu : TwoArgFunction() {
                     query.text.length
                 )
 
-                menuMap[query.accessibilityNodeInfo] = context
+                menuMap[keyOf(query.accessibilityNodeInfo)] = context
                 requireService().allWatchers[menuWatcher] = AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED
                 CoerceJavaToLua.coerce(context)
             } else {
@@ -187,7 +190,7 @@ class Menu : TwoArgFunction() {
      * and original text length for validation.
      *
      * @property query The Query object where the menu is displayed
-     * @property parts Set of clickable menu parts with their positions and actions
+     * @property parts Clickable menu parts with their positions and actions, in text order
      * @property cancelAction Function to call if menu is cancelled
      * @property length Original text length for validation
      * @see Query
@@ -195,10 +198,32 @@ class Menu : TwoArgFunction() {
      */
     data class Context(
         val query: Query,
-        val parts: Set<Part>,
+        val parts: List<Part>,
         val cancelAction: LuaValue,
         val length: Int,
-    )
+    ) {
+        /**
+         * Finds the part a selection lies strictly inside of.
+         *
+         * Parts follow each other without overlapping, so a binary search
+         * on the selection start finds the only candidate.
+         *
+         * @param start Selection start
+         * @param end Selection end
+         * @return Part|null The selected part, or null if the selection is outside all parts
+         */
+        fun partAt(start: Int, end: Int): Part? {
+            val index = parts.binarySearch { part ->
+                when {
+                    part.end <= start -> -1
+                    part.start >= start -> 1
+                    else -> 0
+                }
+            }
+
+            return parts.getOrNull(index)?.takeIf { end > it.start && end < it.end }
+        }
+    }
 
     /**
      * Represents a clickable part of a text menu.
@@ -216,6 +241,19 @@ class Menu : TwoArgFunction() {
         val end: Int,
         val action: LuaValue,
     )
+
+    companion object {
+        /**
+         * Identity of a node that does not depend on the node object.
+         *
+         * Combines the window ID with the hash code, which is derived from
+         * the source node ID only. Hash collisions within a window are
+         * resolved by comparing the node of the found context.
+         */
+        private fun keyOf(accessibilityNodeInfo: AccessibilityNodeInfo): Long =
+            (accessibilityNodeInfo.windowId.toLong() shl 32) or
+                    (accessibilityNodeInfo.hashCode().toLong() and 0xFFFFFFFFL)
+    }
 }
 
 
@@ -0,0 +1,150 @@
+@file:Suppress("unused")
+
+package com.wavecat.inline.libs
+
+import com.wavecat.inline.extensions.oneArgFunction
+import com.wavecat.inline.extensions.zeroArgFunction
+import com.wavecat.inline.libs.profiler.SamplingProfiler
+import org.luaj.vm2.Globals
+import org.luaj.vm2.LuaValue
+import org.luaj.vm2.lib.TwoArgFunction
+import java.io.File
+
+/**
+ * Lua library for finding out where Lua code spends its time.
+ *
+ * Samples the call stack of the running Lua code at a fixed interval and
+ * reports the stacks in the collapsed format used by flame graph tools, so
+ * that the module or function making typing laggy can be spotted.
+ *
+ * @see SamplingProfiler
+ */
+class Profiler : TwoArgFunction() {
+
+    /**
+     * Initializes the Lua library with profiling functions.
+     *
+     * @param name The name of the library (unused)
+     * @param env The Lua environment to register the library in
+     * @return LuaValue The created library table
+     * @see LuaValue
+     */
+    override fun call(name: LuaValue, env: LuaValue): LuaValue {
+        val library: LuaValue = tableOf()
+        val globals = env as Globals
+
+        /**
+         * Starts sampling the Lua code of this environment.
+         *
+         * Samples collected earlier are kept, use reset to discard them.
+         * A profiler of a previous environment is stopped.
+         *
+         * param interval Time between samples in milliseconds (optional, defaults to 1)
+         * @return boolean False if the profiler was already running
+         */
+        library["start"] = oneArgFunction { interval ->
+            val millis = interval.optdouble(DEFAULT_INTERVAL)
+            if (millis <= 0) argerror(1, "interval must be positive")
+
+            valueOf(profilerOf(globals, (millis * 1_000_000).toLong()).start())
+        }
+
+        /**
+         * Stops sampling.
+         *
+         * @return string|nil The collapsed stacks, or nil if the profiler was not running
+         */
+        library["stop"] = zeroArgFunction {
+            val profiler = current?.takeIf { it.globals === globals }
+
+            if (profiler?.stop() == true) valueOf(profiler.collapsed()) else NIL
+        }
+
+        /**
+         * Checks whether the profiler is sampling this environment.
+         *
+         * @return boolean True if sampling is in progress
+         */
+        library["isRunning"] = zeroArgFunction {
+            valueOf(current?.takeIf { it.globals === globals }?.isRunning == true)
+        }
+
+        /**
+         * Returns the samples collected so far.
+         *
+         * Each line holds one call stack, outermost frame first, with frames
+         * written as source:line and separated by semicolons, followed by the
+         * number of samples that saw it.
+         *
+         * @return string The collapsed stacks
+         */
+        library["collapsed"] = zeroArgFunction {
+            valueOf(current?.takeIf { it.globals === globals }?.collapsed().orEmpty())
+        }
+
+        /**
+         * Writes the samples collected so far to a file.
+         *
+         * param path The file to write
+         * @return string The absolute path of the written file
+         */
+        library["save"] = oneArgFunction { path ->
+            val file = File(path.checkjstring())
+            file.parentFile?.mkdirs()
+            file.writeText(current?.takeIf { it.globals === globals }?.collapsed().orEmpty())
+
+            valueOf(file.absolutePath)
+        }
+
+        /**
+         * Discards the samples collected so far.
+         */
+        library["reset"] = zeroArgFunction {
+            current?.takeIf { it.globals === globals }?.reset()
+            NIL
+        }
+
+        /**
+         * Returns sampling counters.
+         *
+         * @return table Fields samples (taken while Lua ran) and idle (taken while it did not)
+         */
+        library["stats"] = zeroArgFunction {
+            val profiler = current?.takeIf { it.globals === globals }
+
+            tableOf().apply {
+                set("samples", valueOf((profiler?.samples ?: 0).toDouble()))
+                set("idle", valueOf((profiler?.idle ?: 0).toDouble()))
+            }
+        }
+
+        env["profiler"] = library
+        env["package"]["loaded"]["profiler"] = library
+
+        return library
+    }
+
+    companion object {
+        private const val DEFAULT_INTERVAL = 1.0
+
+        /**
+         * The profiler in use, shared by all environments since only one is active at a time.
+         */
+        @Volatile
+        private var current: SamplingProfiler? = null
+
+        /**
+         * Returns the profiler of [globals], replacing one of another environment
+         * or with another interval if it is not running.
+         */
+        @Synchronized
+        private fun profilerOf(globals: Globals, intervalNanos: Long): SamplingProfiler {
+            current?.let {
+                if (it.globals === globals && (it.isRunning || it.intervalNanos == intervalNanos)) return it
+                it.stop()
+            }
+
+            return SamplingProfiler(globals, intervalNanos).also { current = it }
+        }
+    }
+}
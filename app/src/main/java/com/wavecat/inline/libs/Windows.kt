@@ -300,6 +300,7 @@ class Windows : TwoArgFunction() {
             val node = latestAccessibilityNodeInfo
             if (node == null || isFocusedOnSelf) NIL
             else {
+                InlineService.flush()
                 node.refresh()
                 valueOf(InlineService.getText(node))
             }
@@ -0,0 +1,70 @@
+package com.wavecat.inline.libs.http
+
+import com.wavecat.inline.utils.runOnLuaThread
+
+/**
+ * Hands items produced on a background thread to the Lua thread in batches.
+ *
+ * Items offered while a delivery is already scheduled are appended to the
+ * pending batch, so a fast producer costs one message per batch rather
+ * than one per item. The pending batch is bounded: once [capacity] items are
+ * waiting, [offer] blocks the producer until the Lua thread catches up, which
+ * propagates backpressure to the network read.
+ *
+ * @property capacity Maximum number of undelivered items
+ * @property schedule Runs a delivery on the Lua thread
+ * @property deliver Called on the Lua thread with each batch
+ */
+class BatchingDispatcher<T>(
+    private val capacity: Int,
+    private val schedule: (() -> Unit) -> Unit = { runOnLuaThread(it) },
+    private val deliver: (List<T>) -> Unit,
+) {
+    private val pending = ArrayList<T>()
+    private var scheduled = false
+    private var closed = false
+
+    /**
+     * Queues an item for delivery, blocking while the pending batch is full.
+     *
+     * @param item The item to deliver
+     * @return `false` if the dispatcher was closed and the item dropped
+     */
+    @Synchronized
+    fun offer(item: T): Boolean {
+        while (pending.size >= capacity && !closed) (this as Object).wait()
+        if (closed) return false
+
+        pending.add(item)
+
+        if (!scheduled) {
+            scheduled = true
+            schedule { drain() }
+        }
+
+        return true
+    }
+
+    /**
+     * Stops delivery, dropping pending items and releasing a blocked producer.
+     */
+    @Synchronized
+    fun close() {
+        closed = true
+        pending.clear()
+        (this as Object).notifyAll()
+    }
+
+    private fun drain() {
+        val batch = synchronized(this) {
+            scheduled = false
+            if (closed) return
+            val items = ArrayList(pending)
+            pending.clear()
+            (this as Object).notifyAll()
+            items
+        }
+
+        deliver(batch)
+    }
+}
@@ -0,0 +1,135 @@
+package com.wavecat.inline.libs.http
+
+import android.os.Handler
+import android.os.Looper
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okio.Buffer
+
+/**
+ * Deduplicates identical in-flight requests and debounces bursts of requests.
+ *
+ * Requests are identified by a [Key] derived from the client executing them
+ * and their method, URL, headers and body. While a request is in flight,
+ * further requests with the same key only register their callbacks and
+ * receive the response of the running call.
+ *
+ * Debouncing delays a request and drops it if another request with the same
+ * key arrives within the window, so only the last request of a burst runs.
+ *
+ * @param T Type of the callbacks waiting for a response
+ */
+class CallCoalescer<T> {
+    private val inFlight = HashMap<Any, MutableList<T>>()
+    private val debounced = HashMap<Any, Runnable>()
+    private val handler by lazy { Handler(Looper.getMainLooper()) }
+
+    /**
+     * Number of requests that joined an identical call instead of starting one.
+     */
+    @Volatile
+    var coalesced = 0L
+        private set
+
+    /**
+     * Number of requests dropped because a newer one arrived within the debounce window.
+     */
+    @Volatile
+    var debouncedDropped = 0L
+        private set
+
+    /**
+     * Registers a callback for the request identified by [key].
+     *
+     * @param key The request key
+     * @param callback The callback to notify when the response arrives
+     * @return `true` if no identical request is in flight and the caller must start it
+     */
+    @Synchronized
+    fun join(key: Any, callback: T): Boolean {
+        val waiting = inFlight[key]
+
+        if (waiting != null) {
+            waiting.add(callback)
+            coalesced++
+            return false
+        }
+
+        inFlight[key] = mutableListOf(callback)
+        return true
+    }
+
+    /**
+     * Marks the request identified by [key] as finished.
+     *
+     * @param key The request key
+     * @return All callbacks registered for the request
+     */
+    @Synchronized
+    fun complete(key: Any): List<T> = inFlight.remove(key).orEmpty()
+
+    /**
+     * Runs [action] on the UI thread after [delayMillis], unless another action
+     * is debounced with the same key before then.
+     *
+     * @param key The debounce key
+     * @param delayMillis The debounce window in milliseconds
+     * @param action The action to run
+     */
+    @Synchronized
+    fun debounce(key: Any, delayMillis: Long, action: () -> Unit) {
+        debounced.remove(key)?.let {
+            handler.removeCallbacks(it)
+            debouncedDropped++
+        }
+
+        val runnable = object : Runnable {
+            override fun run() {
+                synchronized(this@CallCoalescer) {
+                    if (debounced[key] !== this) return
+                    debounced.remove(key)
+                }
+                action()
+            }
+        }
+
+        debounced[key] = runnable
+        handler.postDelayed(runnable, delayMillis)
+    }
+
+    /**
+     * Identifies a request executed by a given client.
+     *
+     * Clients are compared by identity, so that a request is never shared
+     * between clients configured differently, e.g. with and without cache.
+     *
+     * @property client The client executing the request
+     * @property digest Digest of the request contents
+     */
+    data class Key(val client: OkHttpClient, val digest: String)
+
+    companion object {
+        /**
+         * Computes the key identifying a request by client, method, URL, headers and body.
+         *
+         * Header values are hashed as they are sent, including the credentials
+         * that [okhttp3.Headers.toString] redacts, so requests made on behalf of
+         * different users never share a response.
+         *
+         * @receiver Request The request to identify
+         * @param client The client executing the request
+         * @return Key The key of the request
+         */
+        fun Request.coalescingKey(client: OkHttpClient): Key = Key(client, Buffer().run {
+            writeUtf8(method).writeByte('\n'.code)
+            writeUtf8(url.toString()).writeByte('\n'.code)
+            for (i in 0 until headers.size) {
+                writeUtf8(headers.name(i)).writeByte(':'.code)
+                writeUtf8(headers.value(i)).writeByte('\n'.code)
+            }
+            writeByte('\n'.code)
+            body?.writeTo(this)
+            sha256().hex()
+        })
+    }
+}
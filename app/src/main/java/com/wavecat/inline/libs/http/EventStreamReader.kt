@@ -0,0 +1,114 @@
+package com.wavecat.inline.libs.http
+
+import okio.BufferedSource
+import okio.ByteString.Companion.encodeUtf8
+
+/**
+ * Incremental parser for `text/event-stream` (Server-Sent Events) bodies.
+ *
+ * Reads the source line by line and completes an event on each blank line,
+ * following the field rules of the SSE specification: `data` lines are
+ * joined with newlines, `event` sets the type, `id` the last event id,
+ * comments and unknown fields are ignored. Lines may end with CRLF, LF or
+ * a bare CR.
+ *
+ * @property source The response body source to read from
+ */
+class EventStreamReader(private val source: BufferedSource) {
+    /**
+     * Data of the last completed event.
+     */
+    var data: String = ""
+        private set
+
+    /**
+     * Type of the last completed event, or `null` for the default `message` type.
+     */
+    var event: String? = null
+        private set
+
+    /**
+     * Last event id seen in the stream.
+     */
+    var id: String? = null
+        private set
+
+    private val dataBuilder = StringBuilder()
+
+    /**
+     * Whether the last line ended with CR, so that an LF right after it belongs to it.
+     */
+    private var afterCr = false
+
+    /**
+     * Reads until the next complete event.
+     *
+     * @return `true` if an event was read, `false` at the end of the stream
+     */
+    fun next(): Boolean {
+        var type: String? = null
+        dataBuilder.setLength(0)
+        var hasData = false
+
+        while (true) {
+            val line = readLine() ?: return false
+
+            if (line.isEmpty()) {
+                if (!hasData) {
+                    type = null
+                    continue
+                }
+
+                data = dataBuilder.toString()
+                event = type
+                return true
+            }
+
+            if (line[0] == ':') continue
+
+            val colon = line.indexOf(':')
+            val field = if (colon == -1) line else line.substring(0, colon)
+            var valueStart = if (colon == -1) line.length else colon + 1
+            if (valueStart < line.length && line[valueStart] == ' ') valueStart++
+            val value = line.substring(valueStart)
+
+            when (field) {
+                "data" -> {
+                    if (hasData) dataBuilder.append('\n')
+                    dataBuilder.append(value)
+                    hasData = true
+                }
+
+                "event" -> type = value
+                "id" -> if ('\u0000' !in value) id = value
+            }
+        }
+    }
+
+    /**
+     * Reads a line without its terminator, or `null` at the end of the stream.
+     *
+     * The LF of a CRLF is skipped when the next line is read, so that a line
+     * ending with CR is returned without waiting for the byte after it.
+     */
+    private fun readLine(): String? {
+        if (afterCr) {
+            afterCr = false
+            if (source.request(1) && source.buffer[0] == LF) source.skip(1)
+        }
+
+        val end = source.indexOfElement(TERMINATORS)
+        if (end == -1L) return if (source.exhausted()) null else source.readUtf8()
+
+        val line = source.readUtf8(end)
+        afterCr = source.readByte() == CR
+        return line
+    }
+
+    companion object {
+        private const val CR = '\r'.code.toByte()
+        private const val LF = '\n'.code.toByte()
+
+        private val TERMINATORS = "\r\n".encodeUtf8()
+    }
+}
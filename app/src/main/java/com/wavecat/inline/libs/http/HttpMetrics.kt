@@ -0,0 +1,106 @@
+package com.wavecat.inline.libs.http
+
+import okhttp3.Call
+import okhttp3.Connection
+import okhttp3.EventListener
+import okhttp3.Interceptor
+import okhttp3.MediaType
+import okhttp3.Response
+import okhttp3.ResponseBody
+import okio.Buffer
+import okio.BufferedSource
+import okio.ForwardingSource
+import okio.buffer
+import java.net.HttpURLConnection.HTTP_NOT_MODIFIED
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Collects connection and cache statistics for every client sharing it.
+ *
+ * Installed as the event listener and an application interceptor of the
+ * shared HTTP client, so clients derived from it report into the same
+ * counters. All counters are cumulative since the process started.
+ *
+ * @see EventListener
+ */
+class HttpMetrics : EventListener(), Interceptor {
+    /** Calls started. */
+    val calls = AtomicLong()
+
+    /** Connections handed to a call, new or pooled. */
+    val connectionsAcquired = AtomicLong()
+
+    /** Connections that had to be established. */
+    val connectionsOpened = AtomicLong()
+
+    /** Responses served from the disk cache, including revalidated ones. */
+    val cacheHits = AtomicLong()
+
+    /** Cached responses that needed revalidation by the server. */
+    val conditionalCacheHits = AtomicLong()
+
+    /** Responses that could not be served from the cache. */
+    val cacheMisses = AtomicLong()
+
+    /** Body bytes read from cached responses instead of the network, after decompression. */
+    val bytesSaved = AtomicLong()
+
+    /**
+     * Connections reused from the pool instead of being established.
+     */
+    val connectionsReused: Long
+        get() = (connectionsAcquired.get() - connectionsOpened.get()).coerceAtLeast(0)
+
+    override fun callStart(call: Call) {
+        calls.incrementAndGet()
+    }
+
+    override fun connectStart(call: Call, inetSocketAddress: InetSocketAddress, proxy: Proxy) {
+        connectionsOpened.incrementAndGet()
+    }
+
+    override fun connectionAcquired(call: Call, connection: Connection) {
+        connectionsAcquired.incrementAndGet()
+    }
+
+    override fun cacheHit(call: Call, response: Response) {
+        cacheHits.incrementAndGet()
+    }
+
+    override fun cacheConditionalHit(call: Call, cachedResponse: Response) {
+        conditionalCacheHits.incrementAndGet()
+    }
+
+    override fun cacheMiss(call: Call) {
+        cacheMisses.incrementAndGet()
+    }
+
+    /**
+     * Counts the body bytes of responses served from the cache as they are read,
+     * since chunked and compressed responses carry no usable Content-Length.
+     */
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val response = chain.proceed(chain.request())
+        val network = response.networkResponse
+
+        if (response.cacheResponse == null || (network != null && network.code != HTTP_NOT_MODIFIED))
+            return response
+
+        return response.newBuilder().body(CountingBody(response.body)).build()
+    }
+
+    private inner class CountingBody(private val delegate: ResponseBody) : ResponseBody() {
+        private val source = object : ForwardingSource(delegate.source()) {
+            override fun read(sink: Buffer, byteCount: Long): Long =
+                super.read(sink, byteCount).also { if (it > 0) bytesSaved.addAndGet(it) }
+        }.buffer()
+
+        override fun contentType(): MediaType? = delegate.contentType()
+
+        override fun contentLength(): Long = delegate.contentLength()
+
+        override fun source(): BufferedSource = source
+    }
+}
@@ -0,0 +1,469 @@
+package com.wavecat.inline.libs.json
+
+import org.luaj.vm2.LuaString
+import org.luaj.vm2.LuaValue
+import java.io.InputStream
+
+/**
+ * Pull parser reading JSON directly from UTF-8 bytes.
+ *
+ * Produces a flat sequence of events ([START_OBJECT], [KEY], [STRING], ...)
+ * without building any intermediate tree. Strings are decoded straight into
+ * [LuaString] bytes and numbers into Lua numbers, so the only copies made are
+ * the values that end up in Lua.
+ *
+ * The reader either walks the backing array of a [LuaString] in place or
+ * refills a small fixed buffer from an [InputStream], which keeps memory flat
+ * regardless of the document size.
+ *
+ * @see JsonWriter
+ */
+class JsonReader private constructor(
+    private val input: InputStream?,
+    private var buffer: ByteArray,
+    private var position: Int,
+    private var limit: Int,
+) {
+    /**
+     * Creates a reader over the bytes of a Lua string without copying them.
+     *
+     * @param string The JSON document
+     */
+    constructor(string: LuaString) : this(
+        null,
+        string.m_bytes,
+        string.m_offset,
+        string.m_offset + string.m_length
+    )
+
+    /**
+     * Creates a reader consuming an input stream incrementally.
+     *
+     * @param input The stream providing the JSON document
+     * @param bufferSize Size of the internal read buffer
+     */
+    constructor(input: InputStream, bufferSize: Int = BUFFER_SIZE) :
+            this(input, ByteArray(bufferSize), 0, 0)
+
+    /**
+     * Value of the last [KEY], [STRING], [NUMBER] or [BOOLEAN] event.
+     */
+    var value: LuaValue = LuaValue.NIL
+        private set
+
+    /**
+     * Number of containers currently open.
+     */
+    val depth: Int
+        get() = containers.size
+
+    private val containers = Containers()
+    private var event = END_DOCUMENT
+    private var state = STATE_VALUE
+    private var consumed = 0L
+
+    private var scratch = ByteArray(64)
+    private var scratchSize = 0
+
+    /**
+     * Advances to the next event.
+     *
+     * @return One of the event constants, [END_DOCUMENT] once the top-level value is complete
+     * @throws IllegalArgumentException If the document is malformed
+     */
+    fun next(): Int {
+        event = advance()
+        return event
+    }
+
+    private fun advance(): Int = when (state) {
+        STATE_VALUE -> readValue()
+        STATE_KEY -> readKey()
+
+        STATE_ARRAY_FIRST -> if (peek() == ']'.code) {
+            position++
+            endContainer(END_ARRAY)
+        } else {
+            readValue()
+        }
+
+        STATE_OBJECT_FIRST -> if (peek() == '}'.code) {
+            position++
+            endContainer(END_OBJECT)
+        } else {
+            readKey()
+        }
+
+        STATE_AFTER_VALUE -> readSeparator()
+
+        else -> END_DOCUMENT
+    }
+
+    /**
+     * Skips the remainder of the container whose start event was just returned.
+     *
+     * Has no effect after any other event.
+     */
+    fun skipValue() {
+        if (event != START_OBJECT && event != START_ARRAY) return
+
+        val target = depth - 1
+        while (depth > target) next()
+    }
+
+    /**
+     * Ensures that nothing but whitespace follows the parsed document.
+     *
+     * @throws IllegalArgumentException If trailing data is present
+     */
+    fun expectEnd() {
+        if (next() != END_DOCUMENT)
+            syntaxError("Unexpected trailing data")
+    }
+
+    /**
+     * Closes the underlying input stream, if any.
+     */
+    fun close() {
+        input?.close()
+    }
+
+    private fun readSeparator(): Int {
+        val c = peek()
+
+        if (containers.size == 0) {
+            if (c != -1) syntaxError("Unexpected trailing data")
+            state = STATE_END
+            return END_DOCUMENT
+        }
+
+        val isObject = containers.top()
+        if (c == -1) syntaxError("Unexpected end of input")
+        position++
+
+        return when (c) {
+            ','.code -> if (isObject) readKey() else readValue()
+            '}'.code -> if (isObject) endContainer(END_OBJECT) else syntaxError("Expected ']'")
+            ']'.code -> if (!isObject) endContainer(END_ARRAY) else syntaxError("Expected '}'")
+            else -> syntaxError("Expected ',' but found '${c.toChar()}'")
+        }
+    }
+
+    private fun readKey(): Int {
+        if (peek() != '"'.code)
+            syntaxError("Expected string key")
+
+        position++
+        value = readString()
+
+        if (peek() != ':'.code)
+            syntaxError("Expected ':'")
+
+        position++
+        state = STATE_VALUE
+        return KEY
+    }
+
+    private fun readValue(): Int {
+        val c = peek()
+
+        return when (c) {
+            '{'.code -> {
+                position++
+                containers.push(true)
+                state = STATE_OBJECT_FIRST
+                START_OBJECT
+            }
+
+            '['.code -> {
+                position++
+                containers.push(false)
+                state = STATE_ARRAY_FIRST
+                START_ARRAY
+            }
+
+            '"'.code -> {
+                position++
+                value = readString()
+                scalar(STRING)
+            }
+
+            't'.code -> {
+                readLiteral(TRUE_BYTES)
+                value = LuaValue.TRUE
+                scalar(BOOLEAN)
+            }
+
+            'f'.code -> {
+                readLiteral(FALSE_BYTES)
+                value = LuaValue.FALSE
+                scalar(BOOLEAN)
+            }
+
+            'n'.code -> {
+                readLiteral(NULL_BYTES)
+                value = LuaValue.NIL
+                scalar(NULL)
+            }
+
+            -1 -> syntaxError("Unexpected end of input")
+
+            else -> if (c == '-'.code || c in '0'.code..'9'.code) {
+                value = readNumber()
+                scalar(NUMBER)
+            } else {
+                syntaxError("Unexpected character '${c.toChar()}'")
+            }
+        }
+    }
+
+    private fun scalar(event: Int): Int {
+        state = STATE_AFTER_VALUE
+        return event
+    }
+
+    private fun endContainer(event: Int): Int {
+        containers.pop()
+        state = STATE_AFTER_VALUE
+        return event
+    }
+
+    /**
+     * Reads a string body, the opening quote having already been consumed.
+     *
+     * Strings without escapes that lie entirely within the current buffer
+     * are turned into a [LuaString] with a single copy.
+     */
+    private fun readString(): LuaString {
+        var i = position
+        while (i < limit) {
+            val b = buffer[i].toInt()
+            if (b == '"'.code) {
+                val result = LuaString.valueOf(buffer, position, i - position)
+                position = i + 1
+                return result
+            }
+            if (b == '\\'.code || b in 0 until 0x20) break
+            i++
+        }
+
+        scratchSize = 0
+        while (true) {
+            if (position == limit && !fill())
+                syntaxError("Unterminated string")
+
+            val b = buffer[position++].toInt()
+            when {
+                b == '"'.code -> return LuaString.valueOf(scratch, 0, scratchSize)
+                b == '\\'.code -> readEscape()
+                b in 0 until 0x20 -> syntaxError("Unescaped control character")
+                else -> append(b)
+            }
+        }
+    }
+
+    private fun readEscape() {
+        when (val c = read()) {
+            '"'.code, '\\'.code, '/'.code -> append(c)
+            'b'.code -> append('\b'.code)
+            'f'.code -> append(0x0c)
+            'n'.code -> append('\n'.code)
+            'r'.code -> append('\r'.code)
+            't'.code -> append('\t'.code)
+            'u'.code -> {
+                var codePoint = readHex()
+
+                if (codePoint in 0xD800..0xDBFF && peekByte() == '\\'.code) {
+                    position++
+                    if (read() != 'u'.code) syntaxError("Invalid surrogate pair")
+                    val low = readHex()
+                    if (low !in 0xDC00..0xDFFF) syntaxError("Invalid surrogate pair")
+                    codePoint = 0x10000 + ((codePoint - 0xD800) shl 10) + (low - 0xDC00)
+                }
+
+                appendCodePoint(codePoint)
+            }
+
+            else -> syntaxError("Invalid escape sequence")
+        }
+    }
+
+    private fun readHex(): Int {
+        var result = 0
+        repeat(4) {
+            val c = read()
+            result = (result shl 4) or when (c) {
+                in '0'.code..'9'.code -> c - '0'.code
+                in 'a'.code..'f'.code -> c - 'a'.code + 10
+                in 'A'.code..'F'.code -> c - 'A'.code + 10
+                else -> syntaxError("Invalid unicode escape")
+            }
+        }
+        return result
+    }
+
+    private fun appendCodePoint(codePoint: Int) {
+        when {
+            codePoint < 0x80 -> append(codePoint)
+            codePoint < 0x800 -> {
+                append(0xC0 or (codePoint shr 6))
+                append(0x80 or (codePoint and 0x3F))
+            }
+
+            codePoint < 0x10000 -> {
+                append(0xE0 or (codePoint shr 12))
+                append(0x80 or ((codePoint shr 6) and 0x3F))
+                append(0x80 or (codePoint and 0x3F))
+            }
+
+            else -> {
+                append(0xF0 or (codePoint shr 18))
+                append(0x80 or ((codePoint shr 12) and 0x3F))
+                append(0x80 or ((codePoint shr 6) and 0x3F))
+                append(0x80 or (codePoint and 0x3F))
+            }
+        }
+    }
+
+    /**
+     * Reads a number, producing a Lua integer when it fits and a double otherwise.
+     */
+    private fun readNumber(): LuaValue {
+        scratchSize = 0
+        var isInteger = true
+
+        while (true) {
+            val c = peekByte()
+            when (c) {
+                in '0'.code..'9'.code, '-'.code, '+'.code -> {}
+                '.'.code, 'e'.code, 'E'.code -> isInteger = false
+                else -> break
+            }
+            append(c)
+            position++
+        }
+
+        val negative = scratch[0] == '-'.code.toByte()
+        val digits = if (negative) scratchSize - 1 else scratchSize
+
+        if (isInteger && digits in 1..18) {
+            var result = 0L
+            for (i in scratchSize - digits until scratchSize) {
+                val d = scratch[i] - '0'.code.toByte()
+                if (d !in 0..9) syntaxError("Invalid number")
+                result = result * 10 + d
+            }
+            if (negative) result = -result
+
+            return if (result in Int.MIN_VALUE..Int.MAX_VALUE)
+                LuaValue.valueOf(result.toInt())
+            else
+                LuaValue.valueOf(result.toDouble())
+        }
+
+        return try {
+            LuaValue.valueOf(String(scratch, 0, scratchSize, Charsets.ISO_8859_1).toDouble())
+        } catch (_: NumberFormatException) {
+            syntaxError("Invalid number")
+        }
+    }
+
+    private fun readLiteral(expected: ByteArray) {
+        for (b in expected) {
+            if (read() != b.toInt())
+                syntaxError("Unexpected literal")
+        }
+    }
+
+    private fun append(b: Int) {
+        if (scratchSize == scratch.size)
+            scratch = scratch.copyOf(scratchSize * 2)
+        scratch[scratchSize++] = b.toByte()
+    }
+
+    /**
+     * Returns the next non-whitespace byte without consuming it, or -1 at the end of input.
+     */
+    private fun peek(): Int {
+        while (true) {
+            if (position == limit && !fill()) return -1
+            when (val b = buffer[position].toInt()) {
+                ' '.code, '\n'.code, '\r'.code, '\t'.code -> position++
+                else -> return b
+            }
+        }
+    }
+
+    private fun peekByte(): Int {
+        if (position == limit && !fill()) return -1
+        return buffer[position].toInt()
+    }
+
+    private fun read(): Int {
+        if (position == limit && !fill())
+            syntaxError("Unexpected end of input")
+        return buffer[position++].toInt()
+    }
+
+    private fun fill(): Boolean {
+        val input = input ?: return false
+        consumed += limit
+        position = 0
+        limit = 0
+
+        val count = input.read(buffer, 0, buffer.size)
+        if (count <= 0) return false
+
+        limit = count
+        return true
+    }
+
+    private fun syntaxError(message: String): Nothing =
+        throw IllegalArgumentException("$message at offset ${consumed + position}")
+
+    /**
+     * Growable stack of open containers, `true` marking objects.
+     */
+    private class Containers {
+        private var items = BooleanArray(16)
+        var size = 0
+            private set
+
+        fun push(isObject: Boolean) {
+            if (size == items.size) items = items.copyOf(size * 2)
+            items[size++] = isObject
+        }
+
+        fun pop() {
+            size--
+        }
+
+        fun top() = items[size - 1]
+    }
+
+    companion object {
+        const val END_DOCUMENT = 0
+        const val START_OBJECT = 1
+        const val END_OBJECT = 2
+        const val START_ARRAY = 3
+        const val END_ARRAY = 4
+        const val KEY = 5
+        const val STRING = 6
+        const val NUMBER = 7
+        const val BOOLEAN = 8
+        const val NULL = 9
+
+        private const val STATE_VALUE = 0
+        private const val STATE_KEY = 1
+        private const val STATE_ARRAY_FIRST = 2
+        private const val STATE_OBJECT_FIRST = 3
+        private const val STATE_AFTER_VALUE = 4
+        private const val STATE_END = 5
+
+        private const val BUFFER_SIZE = 8192
+
+        private val TRUE_BYTES = "true".toByteArray()
+        private val FALSE_BYTES = "false".toByteArray()
+        private val NULL_BYTES = "null".toByteArray()
+    }
+}
@@ -0,0 +1,97 @@
+package com.wavecat.inline.libs.json
+
+import org.luaj.vm2.LuaString
+import org.luaj.vm2.LuaValue
+
+/**
+ * Finds the values located at a path inside a JSON document while it is being read.
+ *
+ * Containers that can no longer lead to a match are skipped without being
+ * decoded, so only the selected values are ever materialized.
+ *
+ * A path is a list of segments: object keys, 1-based array indices, or `*`
+ * which matches any key or index. An empty path selects the document itself.
+ *
+ * @property reader The reader to pull events from
+ * @param path The segments of the path to select
+ * @see JsonReader
+ */
+class JsonSelector(
+    private val reader: JsonReader,
+    path: List<String>,
+) {
+    private val keys: Array<LuaString?> = path.map {
+        if (it == WILDCARD) null else LuaValue.valueOf(it)
+    }.toTypedArray()
+
+    private val indices = path.map { it.toIntOrNull() ?: -1 }.toIntArray()
+
+    private val isArray = BooleanArray(path.size)
+    private val counters = IntArray(path.size)
+    private val lastKeys = arrayOfNulls<LuaValue>(path.size)
+
+    /**
+     * Advances the reader to the start of the next selected value.
+     *
+     * The selected value must be consumed (decoded or skipped) before
+     * calling this method again.
+     *
+     * @return The event starting the selected value, or [JsonReader.END_DOCUMENT]
+     *         when the document contains no further matches
+     */
+    fun next(): Int {
+        while (true) {
+            val event = reader.next()
+
+            val level = when (event) {
+                JsonReader.END_DOCUMENT -> return event
+                JsonReader.END_OBJECT, JsonReader.END_ARRAY -> continue
+
+                JsonReader.KEY -> {
+                    val container = reader.depth - 1
+                    if (container < lastKeys.size) lastKeys[container] = reader.value
+                    continue
+                }
+
+                JsonReader.START_OBJECT, JsonReader.START_ARRAY -> reader.depth - 1
+                else -> reader.depth
+            }
+
+            if (level > 0 && !matches(level)) {
+                reader.skipValue()
+                continue
+            }
+
+            if (level == keys.size) return event
+
+            if (event == JsonReader.START_OBJECT || event == JsonReader.START_ARRAY) {
+                isArray[level] = event == JsonReader.START_ARRAY
+                counters[level] = 0
+            }
+        }
+    }
+
+    /**
+     * Checks whether the value at [level] matches the corresponding path segment.
+     *
+     * Only called for values whose parent container matched, since all
+     * other containers are skipped entirely.
+     */
+    private fun matches(level: Int): Boolean {
+        val container = level - 1
+
+        return if (isArray[container]) {
+            val index = ++counters[container]
+            keys[container] == null || indices[container] == index
+        } else {
+            keys[container] == null || keys[container] == lastKeys[container]
+        }
+    }
+
+    companion object {
+        /**
+         * Segment matching any key or index.
+         */
+        const val WILDCARD = "*"
+    }
+}
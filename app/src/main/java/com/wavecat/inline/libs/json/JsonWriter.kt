@@ -0,0 +1,146 @@
+package com.wavecat.inline.libs.json
+
+import com.wavecat.inline.extensions.forEach
+import org.json.JSONArray
+import org.json.JSONObject
+import org.luaj.vm2.Buffer
+import org.luaj.vm2.LuaBoolean
+import org.luaj.vm2.LuaDouble
+import org.luaj.vm2.LuaInteger
+import org.luaj.vm2.LuaString
+import org.luaj.vm2.LuaTable
+import org.luaj.vm2.LuaValue
+
+/**
+ * Serializes Lua values to JSON straight into a [Buffer].
+ *
+ * String bytes are copied from the source [LuaString] with only the
+ * characters JSON requires escaped, so no intermediate Java strings or
+ * JSON object trees are created.
+ *
+ * Tables whose first key is a number are written as arrays, all others
+ * as objects, matching the rules of the original `org.json` based encoder.
+ *
+ * @property nullValue Sentinel written as JSON `null`
+ * @property buffer Destination buffer
+ * @see JsonReader
+ */
+class JsonWriter(
+    private val nullValue: LuaValue,
+    private val buffer: Buffer = Buffer(BUFFER_SIZE),
+) {
+    private val stack = HashSet<LuaValue>()
+
+    /**
+     * Appends the JSON representation of a value.
+     *
+     * @param value The value to serialize
+     * @return This writer for call chaining
+     * @throws IllegalStateException If the value cannot be serialized or a circular reference is found
+     */
+    fun write(value: LuaValue): JsonWriter {
+        when {
+            value === nullValue -> buffer.append(NULL)
+            value is LuaBoolean -> buffer.append(if (value.v) TRUE else FALSE)
+            value is LuaInteger -> buffer.append(value.strvalue())
+            value is LuaDouble -> writeDouble(value.todouble())
+            value is LuaString -> writeString(value)
+            value is LuaTable -> writeTable(value)
+
+            value.isuserdata(JSONObject::class.java) || value.isuserdata(JSONArray::class.java) ->
+                buffer.append(value.touserdata().toString())
+
+            else -> error("Unable to serialize ${value.typename()}")
+        }
+        return this
+    }
+
+    /**
+     * Returns the serialized document.
+     */
+    fun toLuaString(): LuaString = buffer.tostring()
+
+    private fun writeTable(table: LuaTable) {
+        if (!stack.add(table))
+            error("circular reference")
+
+        var first = true
+
+        if (table.next(LuaValue.NIL).arg1().isnumber()) {
+            buffer.append('['.code.toByte())
+            table.forEach { _, v ->
+                if (!first) buffer.append(','.code.toByte())
+                first = false
+                write(v)
+            }
+            buffer.append(']'.code.toByte())
+        } else {
+            buffer.append('{'.code.toByte())
+            table.forEach { k, v ->
+                if (!first) buffer.append(','.code.toByte())
+                first = false
+                writeString(k.checkstring())
+                buffer.append(':'.code.toByte())
+                write(v)
+            }
+            buffer.append('}'.code.toByte())
+        }
+
+        stack.remove(table)
+    }
+
+    private fun writeDouble(value: Double) {
+        when {
+            value.isNaN() || value.isInfinite() -> error("Unable to serialize $value")
+            value == Math.rint(value) && Math.abs(value) < 1e15 -> buffer.append(value.toLong().toString())
+            else -> buffer.append(value.toString())
+        }
+    }
+
+    private fun writeString(string: LuaString) {
+        val bytes = string.m_bytes
+        val end = string.m_offset + string.m_length
+        var start = string.m_offset
+
+        buffer.append('"'.code.toByte())
+
+        for (i in string.m_offset until end) {
+            val b = bytes[i].toInt()
+            if (b != '"'.code && b != '\\'.code && b !in 0 until 0x20) continue
+
+            if (i > start) buffer.append(string.substring(start - string.m_offset, i - string.m_offset))
+            start = i + 1
+
+            when (b) {
+                '"'.code -> buffer.append(ESCAPED_QUOTE)
+                '\\'.code -> buffer.append(ESCAPED_BACKSLASH)
+                '\n'.code -> buffer.append(ESCAPED_NEWLINE)
+                '\r'.code -> buffer.append(ESCAPED_RETURN)
+                '\t'.code -> buffer.append(ESCAPED_TAB)
+                else -> buffer.append(String.format("\\u%04x", b))
+            }
+        }
+
+        if (start == string.m_offset) {
+            buffer.append(string)
+        } else if (end > start) {
+            buffer.append(string.substring(start - string.m_offset, end - string.m_offset))
+        }
+
+        buffer.append('"'.code.toByte())
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 256
+
+        private val NULL = LuaValue.valueOf("null")
+        private val TRUE = LuaValue.valueOf("true")
+        private val FALSE = LuaValue.valueOf("false")
+
+        private val ESCAPED_QUOTE = LuaValue.valueOf("\\\"")
+        private val ESCAPED_BACKSLASH = LuaValue.valueOf("\\\\")
+        private val ESCAPED_NEWLINE = LuaValue.valueOf("\\n")
+        private val ESCAPED_RETURN = LuaValue.valueOf("\\r")
+        private val ESCAPED_TAB = LuaValue.valueOf("\\t")
+    }
+}
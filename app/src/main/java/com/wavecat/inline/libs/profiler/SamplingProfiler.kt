@@ -0,0 +1,151 @@
+package com.wavecat.inline.libs.profiler
+
+import org.luaj.vm2.Globals
+import org.luaj.vm2.LuaThread
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Statistical profiler for the Lua code of a [Globals] instance.
+ *
+ * While running, closures publish their call stack into the running
+ * [LuaThread] (see [Globals.sampling]), which costs one array store per
+ * instruction. A daemon thread reads that stack every [intervalNanos] and
+ * counts how often each stack of `source:line` frames was seen.
+ *
+ * Stacks are read without synchronization, so a sample taken while a call
+ * enters or returns may be off by a frame. That is in the nature of
+ * sampling and averages out.
+ *
+ * @property globals The environment to profile
+ * @property intervalNanos Time between samples
+ */
+class SamplingProfiler(val globals: Globals, val intervalNanos: Long) {
+    private val stacks = HashMap<String, Int>()
+    private val builder = StringBuilder()
+
+    @Volatile
+    private var thread: Thread? = null
+
+    /**
+     * Number of samples taken while Lua was running.
+     */
+    @Volatile
+    var samples = 0L
+        private set
+
+    /**
+     * Number of samples taken while no Lua code was running.
+     */
+    @Volatile
+    var idle = 0L
+        private set
+
+    /**
+     * Whether sampling is in progress.
+     */
+    val isRunning: Boolean
+        get() = thread != null
+
+    /**
+     * Starts sampling.
+     *
+     * @return `false` if it was already running
+     */
+    @Synchronized
+    fun start(): Boolean {
+        if (thread != null) return false
+
+        globals.sampling = true
+        thread = Thread({ loop() }, THREAD_NAME).apply {
+            isDaemon = true
+            start()
+        }
+
+        return true
+    }
+
+    /**
+     * Stops sampling and waits for the sampling thread to finish.
+     *
+     * @return `false` if it was not running
+     */
+    @Synchronized
+    fun stop(): Boolean {
+        val running = thread ?: return false
+
+        thread = null
+        running.interrupt()
+        running.join()
+        globals.sampling = false
+
+        return true
+    }
+
+    /**
+     * Forgets all samples.
+     */
+    @Synchronized
+    fun reset() {
+        synchronized(stacks) { stacks.clear() }
+        samples = 0
+        idle = 0
+    }
+
+    /**
+     * Returns the samples in the collapsed stack format understood by flame
+     * graph tools: one `frame;frame;frame count` line per distinct stack,
+     * outermost frame first, most frequent stack first.
+     */
+    fun collapsed(): String {
+        val entries = synchronized(stacks) { stacks.entries.map { it.key to it.value } }
+
+        return buildString {
+            for ((stack, count) in entries.sortedByDescending { it.second }) {
+                append(stack).append(' ').append(count).append('\n')
+            }
+        }
+    }
+
+    private fun loop() {
+        val self = Thread.currentThread()
+
+        while (thread === self) {
+            LockSupport.parkNanos(intervalNanos)
+            if (thread === self) sample()
+        }
+    }
+
+    private fun sample() {
+        val running = globals.running
+        val closures = running.sampledClosures
+        val pcs = running.sampledPcs
+        val depth = minOf(running.sampledDepth, closures?.size ?: 0, pcs?.size ?: 0)
+
+        if (closures == null || pcs == null || depth <= 0) {
+            idle++
+            return
+        }
+
+        builder.setLength(0)
+
+        for (frame in 0 until depth) {
+            val prototype = closures[frame]?.p ?: continue
+            val lines = prototype.lineinfo
+            val pc = pcs[frame]
+
+            if (builder.isNotEmpty()) builder.append(';')
+            builder.append(prototype.shortsource()).append(':')
+                .append(if (lines != null && pc in lines.indices) lines[pc] else prototype.linedefined)
+        }
+
+        if (running.sampledDepth > depth) builder.append(";[truncated]")
+
+        val stack = builder.toString()
+        synchronized(stacks) { stacks[stack] = (stacks[stack] ?: 0) + 1 }
+        samples++
+    }
+
+    companion object {
+        private const val THREAD_NAME = "InlineProfiler"
+    }
+}
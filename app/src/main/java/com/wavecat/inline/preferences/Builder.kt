@@ -22,6 +22,7 @@ import com.wavecat.inline.preferences.views.Switch
 import com.wavecat.inline.preferences.views.Text
 import com.wavecat.inline.preferences.views.TextInput
 import com.wavecat.inline.preferences.views.VScrollView
+import com.wavecat.inline.utils.callOnLuaThread
 import com.wavecat.inline.utils.dp
 import org.luaj.vm2.LuaTable
 import org.luaj.vm2.LuaTable.CALL
@@ -154,14 +155,14 @@ class Builder(context: Context) : LuaTable() {
 
         set("setOnClickListener", twoArgFunction { view, listener ->
             (view.checkuserdata(View::class.java) as View).setOnClickListener {
-                listener(CoerceJavaToLua.coerce(view))
+                callOnLuaThread(listener) { listener.call(CoerceJavaToLua.coerce(view)) }
             }
             NIL
         })
 
         set("setOnLongClickListener", twoArgFunction { view, listener ->
             (view.checkuserdata(View::class.java) as View).setOnLongClickListener {
-                listener(CoerceJavaToLua.coerce(view)).arg1().optboolean(true)
+                callOnLuaThread(listener) { listener.call(CoerceJavaToLua.coerce(view)).optboolean(true) }
             }
             NIL
         })
@@ -24,6 +24,7 @@ import com.wavecat.inline.extensions.forEach
 import com.wavecat.inline.extensions.oneArgFunction
 import com.wavecat.inline.extensions.zeroArgFunction
 import com.wavecat.inline.service.InlineService.Companion.requireService
+import com.wavecat.inline.utils.callOnLuaThread
 import com.wavecat.inline.utils.dp
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.LuaValue.valueOf
@@ -237,7 +238,7 @@ class FloatingWindow(private val context: Context) {
                             mWindowManager.updateViewLayout(mLayout, lp)
                         }
 
-                        builder.get("onMove").takeIf { !it.isnil() }?.call(valueOf(lp.x), valueOf(lp.y))
+                        callback("onMove") { it.call(valueOf(lp.x), valueOf(lp.y)) }
                         return true
                     }
 
@@ -246,7 +247,7 @@ class FloatingWindow(private val context: Context) {
                             mLayout?.let { view ->
                                 lp.flags = lp.flags or WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
                                 mWindowManager.updateViewLayout(view, lp)
-                                builder.get("onFocusChanged").takeIf { !it.isnil() }?.call(valueOf(false))
+                                callback("onFocusChanged") { it.call(valueOf(false)) }
                             }
                         }
 
@@ -257,7 +258,7 @@ class FloatingWindow(private val context: Context) {
             }
         })
 
-        val preferencesList = init.call(CoerceJavaToLua.coerce(builder)).checktable()
+        val preferencesList = callOnLuaThread(init) { init.call(CoerceJavaToLua.coerce(builder)).checktable() }
 
         preferencesList.forEach { _, value ->
             addPreferenceToLayout(value, lp)
@@ -273,7 +274,7 @@ class FloatingWindow(private val context: Context) {
             if (autoFocus) {
                 lp.flags = lp.flags and WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE.inv()
                 mWindowManager.updateViewLayout(mLayout, lp)
-                builder.get("onFocusChanged").takeIf { !it.isnil() }?.call(valueOf(true))
+                callback("onFocusChanged") { it.call(valueOf(true)) }
             }
         }
             .apply {
@@ -283,6 +284,14 @@ class FloatingWindow(private val context: Context) {
         mLayout?.addView(view)
     }
 
+    /**
+     * Calls the Lua callback set under [key] on the Lua thread, if any.
+     */
+    private inline fun callback(key: String, crossinline call: (LuaValue) -> Unit) {
+        val callback = builder.get(key).takeIf { !it.isnil() } ?: return
+        callOnLuaThread(callback) { call(callback) }
+    }
+
     fun createLayoutParams(): WindowManager.LayoutParams {
         return WindowManager.LayoutParams(
             WindowManager.LayoutParams.WRAP_CONTENT,
@@ -319,7 +328,7 @@ class FloatingWindow(private val context: Context) {
     fun close() {
         mLayout?.let { layout ->
             onClose?.invoke()
-            builder.get("onClose").takeIf { !it.isnil() }?.call()
+            callback("onClose") { it.call() }
             builder.set("layout", LuaValue.NIL)
             mWindowManager.removeView(layout)
             mLayout = null
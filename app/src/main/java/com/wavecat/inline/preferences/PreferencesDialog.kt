@@ -14,6 +14,7 @@ import com.wavecat.inline.extensions.forEach
 import com.wavecat.inline.extensions.varArgFunction
 import com.wavecat.inline.extensions.zeroArgFunction
 import com.wavecat.inline.service.InlineService.Companion.requireService
+import com.wavecat.inline.utils.callOnLuaThread
 import org.luaj.vm2.lib.VarArgFunction.NIL
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
 
@@ -60,8 +61,9 @@ class PreferencesDialog(
 
         for (preference in preferences) {
             try {
-                val preferencesList =
+                val preferencesList = callOnLuaThread(preference.builder) {
                     preference.builder.call(builder, CoerceJavaToLua.coerce(this)).checktable()
+                }
 
                 preferencesList.forEach { _, value ->
                     val view = castPreference(context, value).getView(preference.sharedPreferences) {}
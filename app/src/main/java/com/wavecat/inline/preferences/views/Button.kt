@@ -8,6 +8,7 @@ import android.content.SharedPreferences
 import android.view.View
 import com.google.android.material.button.MaterialButton
 import com.wavecat.inline.preferences.Preference
+import com.wavecat.inline.utils.callOnLuaThread
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
 
@@ -37,7 +38,7 @@ class Button : MaterialButton, Preference {
     fun setListener(listener: LuaValue): Button {
         setOnClickListener { _: View? ->
             if (listener.isfunction())
-                listener.call(CoerceJavaToLua.coerce(this))
+                callOnLuaThread(listener) { listener.call(CoerceJavaToLua.coerce(this)) }
         }
 
         return this
@@ -10,6 +10,7 @@ import android.widget.CompoundButton
 import androidx.core.content.edit
 import com.google.android.material.checkbox.MaterialCheckBox
 import com.wavecat.inline.preferences.Preference
+import com.wavecat.inline.utils.callOnLuaThread
 import com.wavecat.inline.utils.dp
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
@@ -86,11 +87,14 @@ class CheckBox : MaterialCheckBox, Preference {
                 }
             }
 
-            if (listener != null)
-                listener!!.call(
-                    LuaValue.valueOf(isChecked),
-                    CoerceJavaToLua.coerce(this@CheckBox)
-                )
+            listener?.let { listener ->
+                callOnLuaThread(listener) {
+                    listener.call(
+                        LuaValue.valueOf(isChecked),
+                        CoerceJavaToLua.coerce(this@CheckBox)
+                    )
+                }
+            }
         }
 
         return this
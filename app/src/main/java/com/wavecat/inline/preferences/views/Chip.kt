@@ -11,6 +11,7 @@ import android.widget.CompoundButton
 import android.widget.LinearLayout
 import androidx.core.content.edit
 import com.wavecat.inline.preferences.Preference
+import com.wavecat.inline.utils.callOnLuaThread
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
 import com.google.android.material.chip.Chip as MaterialChip
@@ -98,14 +99,20 @@ class Chip : MaterialChip, Preference {
                     }
                 }
 
-                listener?.call(
-                    LuaValue.valueOf(checked),
-                    CoerceJavaToLua.coerce(this@Chip)
-                )
+                listener?.let { listener ->
+                    callOnLuaThread(listener) {
+                        listener.call(
+                            LuaValue.valueOf(checked),
+                            CoerceJavaToLua.coerce(this@Chip)
+                        )
+                    }
+                }
             }
         } else {
             setOnClickListener {
-                listener?.call(CoerceJavaToLua.coerce(this@Chip))
+                listener?.let { listener ->
+                    callOnLuaThread(listener) { listener.call(CoerceJavaToLua.coerce(this@Chip)) }
+                }
             }
         }
 
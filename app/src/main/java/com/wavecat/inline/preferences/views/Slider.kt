@@ -9,6 +9,7 @@ import android.view.View
 import androidx.core.content.edit
 import com.google.android.material.slider.Slider
 import com.wavecat.inline.preferences.Preference
+import com.wavecat.inline.utils.callOnLuaThread
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
 
@@ -135,10 +136,14 @@ class Slider(context: Context) : Slider(context), Preference {
         }
 
         addOnChangeListener { _, newValue, _ ->
-            onProgressChanged?.call(
-                if (useInt) LuaValue.valueOf(newValue.toInt()) else LuaValue.valueOf(newValue.toDouble()),
-                CoerceJavaToLua.coerce(this@Slider)
-            )
+            onProgressChanged?.let { listener ->
+                callOnLuaThread(listener) {
+                    listener.call(
+                        if (useInt) LuaValue.valueOf(newValue.toInt()) else LuaValue.valueOf(newValue.toDouble()),
+                        CoerceJavaToLua.coerce(this@Slider)
+                    )
+                }
+            }
         }
 
         addOnSliderTouchListener(object : OnSliderTouchListener {
@@ -155,10 +160,14 @@ class Slider(context: Context) : Slider(context), Preference {
                     }
                 }
 
-                onStopTracking?.call(
-                    if (useInt) LuaValue.valueOf(s.value.toInt()) else LuaValue.valueOf(s.value.toDouble()),
-                    CoerceJavaToLua.coerce(this@Slider)
-                )
+                onStopTracking?.let { listener ->
+                    callOnLuaThread(listener) {
+                        listener.call(
+                            if (useInt) LuaValue.valueOf(s.value.toInt()) else LuaValue.valueOf(s.value.toDouble()),
+                            CoerceJavaToLua.coerce(this@Slider)
+                        )
+                    }
+                }
             }
         })
 
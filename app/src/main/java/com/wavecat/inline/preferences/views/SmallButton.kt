@@ -9,6 +9,7 @@ import androidx.appcompat.view.ContextThemeWrapper
 import com.google.android.material.button.MaterialButton
 import com.wavecat.inline.R
 import com.wavecat.inline.preferences.Preference
+import com.wavecat.inline.utils.callOnLuaThread
 import com.wavecat.inline.utils.dp
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
@@ -59,7 +60,7 @@ class SmallButton : MaterialButton, Preference {
     fun setListener(listener: LuaValue): SmallButton {
         setOnClickListener { _: View? ->
             if (listener.isfunction())
-                listener.call(CoerceJavaToLua.coerce(this))
+                callOnLuaThread(listener) { listener.call(CoerceJavaToLua.coerce(this)) }
         }
 
         return this
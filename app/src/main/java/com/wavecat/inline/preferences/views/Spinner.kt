@@ -13,6 +13,7 @@ import androidx.appcompat.widget.AppCompatSpinner
 import androidx.core.content.edit
 import com.wavecat.inline.extensions.forEach
 import com.wavecat.inline.preferences.Preference
+import com.wavecat.inline.utils.callOnLuaThread
 import org.luaj.vm2.LuaTable
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
@@ -112,11 +113,14 @@ class Spinner(context: Context?, set: LuaTable) : AppCompatSpinner(context!!), P
                     }
                 }
 
-                if (listener != null)
-                    listener!!.call(
-                        LuaValue.valueOf(adapter.getItem(position)),
-                        CoerceJavaToLua.coerce(this@Spinner)
-                    )
+                listener?.let { listener ->
+                    callOnLuaThread(listener) {
+                        listener.call(
+                            LuaValue.valueOf(adapter.getItem(position)),
+                            CoerceJavaToLua.coerce(this@Spinner)
+                        )
+                    }
+                }
             }
 
             override fun onNothingSelected(parent: AdapterView<*>?) {}
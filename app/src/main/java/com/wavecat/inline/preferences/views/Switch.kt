@@ -11,6 +11,7 @@ import android.widget.CompoundButton
 import androidx.core.content.edit
 import com.google.android.material.materialswitch.MaterialSwitch
 import com.wavecat.inline.preferences.Preference
+import com.wavecat.inline.utils.callOnLuaThread
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
 
@@ -77,10 +78,14 @@ class Switch : MaterialSwitch, Preference {
                 }
             }
 
-            listener?.call(
-                LuaValue.valueOf(isChecked),
-                CoerceJavaToLua.coerce(this@Switch)
-            )
+            listener?.let { listener ->
+                callOnLuaThread(listener) {
+                    listener.call(
+                        LuaValue.valueOf(isChecked),
+                        CoerceJavaToLua.coerce(this@Switch)
+                    )
+                }
+            }
         }
 
         return this
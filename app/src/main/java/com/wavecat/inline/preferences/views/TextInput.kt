@@ -16,6 +16,7 @@ import com.google.android.material.textfield.TextInputEditText
 import com.google.android.material.textfield.TextInputLayout
 import com.wavecat.inline.extensions.forEach
 import com.wavecat.inline.preferences.Preference
+import com.wavecat.inline.utils.callOnLuaThread
 import okhttp3.internal.toLongOrDefault
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.lib.jse.CoerceJavaToLua
@@ -158,10 +159,14 @@ class TextInput(context: Context) : TextInputLayout(context), Preference {
                     }
                 }
 
-                listener?.call(
-                    LuaValue.valueOf(s.toString()),
-                    CoerceJavaToLua.coerce(this@TextInput)
-                )
+                listener?.let { listener ->
+                    callOnLuaThread(listener) {
+                        listener.call(
+                            LuaValue.valueOf(s.toString()),
+                            CoerceJavaToLua.coerce(this@TextInput)
+                        )
+                    }
+                }
             }
 
             override fun beforeTextChanged(s: CharSequence, start: Int, count: Int, after: Int) {}
@@ -0,0 +1,93 @@
+package com.wavecat.inline.service
+
+/**
+ * Node actions collected while Lua runs, to be performed together afterwards.
+ *
+ * Every performed action is a binder transaction into the process of the
+ * target app, so actions whose effect is overwritten by a later one are
+ * dropped as they are added:
+ * - a text change supersedes an earlier text change of the same node, since
+ *   nothing read the text in between;
+ * - a text change also supersedes an earlier selection change, as
+ *   `ACTION_SET_TEXT` puts the cursor at the end of the new text;
+ * - a selection change supersedes an earlier selection change.
+ *
+ * Any other action, like cut, copy or paste, depends on the state before it
+ * and is never dropped nor lets earlier actions be dropped.
+ */
+class ActionBatch {
+    private val actions = ArrayList<Action>()
+
+    /**
+     * Number of actions handed out to be performed.
+     */
+    var performed = 0L
+        private set
+
+    /**
+     * Number of actions dropped as redundant.
+     */
+    var dropped = 0L
+        private set
+
+    /**
+     * Kinds of node actions, as far as dropping redundant ones is concerned.
+     */
+    enum class Kind {
+        SET_TEXT,
+        SET_SELECTION,
+        OTHER
+    }
+
+    private class Action(val node: Any, val kind: Kind, val perform: () -> Boolean)
+
+    /**
+     * Whether there are actions to perform.
+     */
+    val isEmpty: Boolean
+        @Synchronized get() = actions.isEmpty()
+
+    /**
+     * Adds an action, dropping the pending actions of the same node it makes redundant.
+     *
+     * @param node The node the action is performed on, compared with `equals`
+     * @param kind The kind of the action
+     * @param perform Performs the action
+     */
+    @Synchronized
+    fun add(node: Any, kind: Kind, perform: () -> Boolean) {
+        while (true) {
+            val last = actions.indexOfLast { it.node == node }
+            if (last == -1 || !supersedes(kind, actions[last].kind)) break
+
+            actions.removeAt(last)
+            dropped++
+        }
+
+        actions.add(Action(node, kind, perform))
+    }
+
+    /**
+     * Removes the pending actions.
+     *
+     * @return The actions to perform in order, `null` if there are none
+     */
+    @Synchronized
+    fun drain(): List<() -> Boolean>? {
+        if (actions.isEmpty()) return null
+
+        val batch = actions.map { it.perform }
+        actions.clear()
+        performed += batch.size
+
+        return batch
+    }
+
+    companion object {
+        private fun supersedes(kind: Kind, previous: Kind) = when (kind) {
+            Kind.SET_TEXT -> previous == Kind.SET_TEXT || previous == Kind.SET_SELECTION
+            Kind.SET_SELECTION -> previous == Kind.SET_SELECTION
+            Kind.OTHER -> false
+        }
+    }
+}
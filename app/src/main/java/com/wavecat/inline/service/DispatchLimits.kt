@@ -0,0 +1,100 @@
+package com.wavecat.inline.service
+
+import android.content.SharedPreferences
+import androidx.core.content.edit
+import com.wavecat.inline.service.ModuleAccounting.Kind
+import org.luaj.vm2.Globals
+
+/**
+ * Limits on how long a single dispatch into Lua may run.
+ *
+ * A runaway loop in a watcher would otherwise block the [LuaLane] forever.
+ * Each kind of dispatch gets an instruction budget and a time limit, enforced
+ * by LuaJ at calls and backward jumps (see [org.luaj.vm2.LuaThread.setBudget]);
+ * exceeding either raises a Lua error in the offending code, which is reported
+ * like any other.
+ *
+ * Limits are stored in the given preferences under [INSTRUCTIONS] and [TIMEOUT]
+ * followed by the key of the kind, e.g. `limit_time_watchers`.
+ *
+ * @param preferences Where limits are read from and saved to
+ */
+class DispatchLimits(private val preferences: SharedPreferences) {
+    private val limits = Kind.entries.map { kind ->
+        Limit(
+            instructions = preferences.getInt(INSTRUCTIONS + kind.key, 0),
+            timeoutMillis = preferences.getInt(TIMEOUT + kind.key, defaultTimeout(kind))
+        )
+    }.toTypedArray()
+
+    /**
+     * Limits of one kind of dispatch.
+     *
+     * @property instructions Calls and backward jumps allowed, 0 for no limit
+     * @property timeoutMillis Time allowed in milliseconds, 0 for no limit
+     */
+    data class Limit(val instructions: Int, val timeoutMillis: Int) {
+        val isUnlimited: Boolean
+            get() = instructions <= 0 && timeoutMillis <= 0
+    }
+
+    /**
+     * Returns the limits of a kind of dispatch.
+     */
+    fun limitOf(kind: Kind): Limit = limits[kind.ordinal]
+
+    /**
+     * Changes and saves the limits of a kind of dispatch.
+     *
+     * @param key The key of the kind, e.g. `watchers`
+     * @param instructions Calls and backward jumps allowed, 0 for no limit
+     * @param timeoutMillis Time allowed in milliseconds, 0 for no limit
+     * @throws IllegalArgumentException If there is no kind with that key
+     */
+    fun set(key: String, instructions: Int, timeoutMillis: Int) {
+        val kind = requireNotNull(Kind.entries.find { it.key == key }) { "Unknown dispatch kind: $key" }
+
+        limits[kind.ordinal] = Limit(instructions, timeoutMillis)
+
+        preferences.edit {
+            putInt(INSTRUCTIONS + key, instructions)
+            putInt(TIMEOUT + key, timeoutMillis)
+        }
+    }
+
+    /**
+     * Runs a dispatch within the limits of its kind.
+     *
+     * A dispatch made while another is running, such as a lazy module being
+     * loaded by a command, stays within the limits of the outer one.
+     *
+     * @param globals The environment the dispatch runs in
+     * @param kind The kind of the dispatch
+     * @param block Performs the call
+     * @return The result of [block]
+     */
+    fun <T> run(globals: Globals?, kind: Kind, block: () -> T): T {
+        val thread = globals?.running
+        val limit = limitOf(kind)
+
+        if (thread == null || thread.budgeted || limit.isUnlimited) return block()
+
+        thread.setBudget(limit.instructions.toLong(), limit.timeoutMillis * 1_000_000L)
+        try {
+            return block()
+        } finally {
+            thread.clearBudget()
+        }
+    }
+
+    companion object {
+        const val INSTRUCTIONS = "limit_instructions_"
+        const val TIMEOUT = "limit_time_"
+
+        private fun defaultTimeout(kind: Kind) = when (kind) {
+            Kind.WATCHER -> 2000
+            Kind.FINDER -> 1000
+            else -> 10_000
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.wavecat.inline.service
+
+import android.os.Handler
+import android.os.Looper
+import android.view.accessibility.AccessibilityNodeInfo
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Collapses bursts of accessibility events before they reach Lua.
+ *
+ * The first event after a quiet period is delivered immediately. Events
+ * arriving within [windowMillis] of the last delivery are held back, and an
+ * event of the same type from the same node replaces the one already held.
+ * When the window ends, the held events are delivered in the order they last
+ * arrived, so the final state of every node is always delivered.
+ *
+ * Must be used from the main thread.
+ *
+ * @property windowMillis Returns the length of the coalescing window, 0 disables
+ *                        coalescing. Read for every burst, so it may change at any time.
+ * @property deliver Called with the source node and type of every delivered event
+ */
+class EventCoalescer(
+    private val windowMillis: () -> Long,
+    private val deliver: (AccessibilityNodeInfo, Int) -> Unit,
+) {
+    private val handler = Handler(Looper.getMainLooper())
+    private val pending = LinkedHashMap<Key, AccessibilityNodeInfo>()
+    private var inBurst = false
+
+    private val flush = Runnable { flush() }
+
+    /**
+     * Number of events delivered.
+     */
+    val processed = AtomicLong()
+
+    /**
+     * Number of events replaced by a later event of the same node and type.
+     */
+    val dropped = AtomicLong()
+
+    /**
+     * Submits an event.
+     *
+     * @param node The source node of the event
+     * @param eventType The type of the event
+     */
+    fun offer(node: AccessibilityNodeInfo, eventType: Int) {
+        if (!inBurst) {
+            val window = windowMillis()
+            if (window <= 0) return dispatch(node, eventType)
+
+            inBurst = true
+            dispatch(node, eventType)
+            handler.postDelayed(flush, window)
+            return
+        }
+
+        val key = Key(node, eventType)
+        if (pending.remove(key) != null) dropped.incrementAndGet()
+        pending[key] = node
+    }
+
+    private fun flush() {
+        if (pending.isEmpty()) {
+            inBurst = false
+            return
+        }
+
+        val batch = pending.entries.toList()
+        pending.clear()
+
+        batch.forEach { (key, node) -> dispatch(node, key.eventType) }
+        handler.postDelayed(flush, windowMillis().coerceAtLeast(0))
+    }
+
+    private fun dispatch(node: AccessibilityNodeInfo, eventType: Int) {
+        processed.incrementAndGet()
+        deliver(node, eventType)
+    }
+
+    /**
+     * Identifies events that supersede each other. Nodes are equal when
+     * they refer to the same view in the same window.
+     */
+    private data class Key(val node: AccessibilityNodeInfo, val eventType: Int)
+}
@@ -19,12 +19,17 @@ import com.wavecat.inline.BuildConfig
 import com.wavecat.inline.preferences.PreferencesItem
 import com.wavecat.inline.service.InlineService.Companion.ENVIRONMENT_PERF
 import com.wavecat.inline.service.commands.Command
+import com.wavecat.inline.service.commands.CommandCache
+import com.wavecat.inline.service.commands.CommandRegistry
+import com.wavecat.inline.service.commands.CommandTokenizer
+import com.wavecat.inline.service.commands.EditTracker
 import com.wavecat.inline.service.commands.Query
+import com.wavecat.inline.service.commands.RegexCommandMatcher
+import com.wavecat.inline.service.commands.TextEdits
 import com.wavecat.inline.service.modules.LAZYLOAD
 import com.wavecat.inline.service.modules.LuaSearcher
 import com.wavecat.inline.service.modules.Module
 import com.wavecat.inline.service.modules.loadModules
-import com.wavecat.inline.utils.runOnUiThread
 import org.luaj.vm2.Globals
 import org.luaj.vm2.LuaString
 import org.luaj.vm2.LuaValue
@@ -45,7 +50,7 @@ import kotlin.system.measureTimeMillis
  *
  * The service manages a Lua environment (`globals`) where user scripts are loaded.
  * It maintains collections of:
- *  - `allCommands`: Registered commands and their corresponding Lua functions.
+ *  - `allCommands`: Registered commands and their corresponding Lua functions, indexed for completion.
  *  - `allWatchers`: Lua functions to be notified on text/selection changes, along with the event types they are interested in.
  *  - `allPreferences`: Preferences items defined by Lua scripts.
  *  - `allCommandFinders`: Lua functions that can dynamically find or modify commands.
@@ -72,10 +77,47 @@ class InlineService : AccessibilityService() {
 
     var timer = Timer()
 
-    val allCommands: MutableMap<String, Command> = mutableMapOf()
-    val allWatchers: MutableMap<LuaValue, Int> = mutableMapOf()
+    /**
+     * The thread Lua runs on.
+     */
+    val luaLane by lazy { LuaLane() }
+
+    /**
+     * Collapses bursts of events before they are processed, see [COALESCING_WINDOW].
+     * The window is read on every event, so changing the setting applies right away.
+     */
+    val eventCoalescer by lazy {
+        EventCoalescer(
+            windowMillis = { defaultSharedPreferences.getInt(COALESCING_WINDOW, DEFAULT_COALESCING_WINDOW).toLong() }
+        ) { node, eventType ->
+            luaLane.execute { processEvent(node, eventType) }
+        }
+    }
+
+    val allCommands: CommandRegistry = CommandRegistry()
+    val allWatchers: WatcherRegistry = WatcherRegistry()
     val allPreferences: MutableMap<String?, HashSet<PreferencesItem>> = mutableMapOf()
     val allCommandFinders: MutableSet<LuaValue> = mutableSetOf()
+
+    /**
+     * Resolved command names, used while all command finders are declared pure.
+     */
+    val commandCache = CommandCache()
+
+    /**
+     * Time and memory spent in each module, readable from Lua to find the costly ones.
+     */
+    val accounting = ModuleAccounting()
+
+    /**
+     * How long each kind of dispatch into Lua may run before it is stopped.
+     */
+    val dispatchLimits by lazy { DispatchLimits(defaultSharedPreferences) }
+
+    /**
+     * Answers of the commands of the event being processed, not applied yet.
+     */
+    private var pendingEdits: TextEdits? = null
     val loadedModules: MutableMap<String, Module> = mutableMapOf()
 
     @JvmField
@@ -121,15 +163,21 @@ class InlineService : AccessibilityService() {
      */
     val pattern: Pattern by lazy {
         Pattern.compile(
-            defaultSharedPreferences.getString(
-                PATTERN,
-                "(\\{([\\S]+)(?:\\s([\\S\\s]+?)\\}*)?\\}[\\$₽₴])+"
-            )!!,
+            defaultSharedPreferences.getString(PATTERN, DEFAULT_PATTERN)!!,
             Pattern.DOTALL
         )
     }
 
-    private var previousText: String? = null
+    /**
+     * Whether [pattern] is the default one, which allows the [CommandTokenizer] fast path.
+     */
+    private val usesDefaultPattern by lazy { pattern.pattern() == DEFAULT_PATTERN }
+
+    /**
+     * Tracks the edited text so that only the region around each edit is scanned for commands.
+     * Custom patterns may use other delimiters, so they always get a full rescan.
+     */
+    private val editTracker by lazy { EditTracker(delimited = usesDefaultPattern) }
 
     /**
      * Called when the system connects to this accessibility service.
@@ -137,7 +185,7 @@ class InlineService : AccessibilityService() {
      * This method initializes the service by:
      * 1. Setting the static `instance` of the service.
      * 2. Clearing any caches if the application has been updated using [clearCaches].
-     * 3. Creating the Lua environment by calling [createEnvironment] and measuring the time it takes.
+     * 3. Creating the Lua environment on the [luaLane] by calling [createEnvironment] and measuring the time it takes.
      *    The elapsed time is logged and stored in default shared preferences under the key [ENVIRONMENT_PERF].
      * 4. Calling the superclass's `onServiceConnected` method.
      * 5. Configuring the [AccessibilityServiceInfo] for this service:
@@ -156,13 +204,15 @@ class InlineService : AccessibilityService() {
 
         clearCaches()
 
-        val elapsed = measureTimeMillis {
-            createEnvironment()
-        }
+        luaLane.execute {
+            val elapsed = measureTimeMillis {
+                createEnvironment()
+            }
 
-        defaultSharedPreferences.edit {
-            Log.d(TAG, "createEnvironment() took $elapsed ms")
-            putLong(ENVIRONMENT_PERF, elapsed)
+            defaultSharedPreferences.edit {
+                Log.d(TAG, "createEnvironment() took $elapsed ms")
+                putLong(ENVIRONMENT_PERF, elapsed)
+            }
         }
 
         super.onServiceConnected()
@@ -261,6 +311,7 @@ class InlineService : AccessibilityService() {
         allWatchers.clear()
         allPreferences.clear()
         allCommandFinders.clear()
+        commandCache.clear()
         loadedModules.clear()
 
         timer.apply { cancel(); purge() }
@@ -303,29 +354,33 @@ class InlineService : AccessibilityService() {
     /**
      * Notifies registered watchers about an accessibility event.
      *
-     * This function iterates through `allWatchers`. For each watcher, it checks if
-     * the `eventType` of the current accessibility event matches the event types
-     * the watcher is interested in (using a bitwise AND operation).
+     * The watchers interested in the `eventType` are taken from the per-type
+     * snapshot kept by [allWatchers], so no collection is built per event and
+     * watchers may unregister themselves or others while being notified.
      *
-     * If there's a match, the watcher's Lua function is called with two arguments:
-     * 1. The `AccessibilityNodeInfo` associated with the event, coerced to a Lua value.
+     * Each watcher's Lua function is called with two arguments:
+     * 1. The `AccessibilityNodeInfo` associated with the event, coerced to a Lua value once for all watchers.
      * 2. The `eventType` as a Lua number.
      *
+     * Each call goes through [dispatch].
+     *
      * @param accessibilityNodeInfo The [AccessibilityNodeInfo] from the event.
      * @param eventType The type of the accessibility event (e.g., [AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED]).
      */
     private fun notifyWatchers(accessibilityNodeInfo: AccessibilityNodeInfo, eventType: Int) {
-        allWatchers.filter { (_, value) -> (value and eventType) == eventType }
-            .forEach { (key, _) ->
-                runCatching {
-                    key.call(
-                        CoerceJavaToLua.coerce(accessibilityNodeInfo),
-                        LuaValue.valueOf(eventType)
-                    )
-                }.onFailure { e ->
-                    notifyException("notifyWatchers() $key: ${e.message}")
-                }
+        val watchers = allWatchers.forEvent(eventType)
+        if (watchers.isEmpty()) return
+
+        val node = CoerceJavaToLua.coerce(accessibilityNodeInfo)
+        val type = LuaValue.valueOf(eventType)
+
+        for (watcher in watchers) {
+            runCatching {
+                dispatch(watcher, ModuleAccounting.Kind.WATCHER) { watcher.call(node, type) }
+            }.onFailure { e ->
+                notifyException("notifyWatchers() $watcher: ${e.message}")
             }
+        }
     }
 
     /**
@@ -340,19 +395,22 @@ class InlineService : AccessibilityService() {
      *
      * - For `TYPE_VIEW_TEXT_CHANGED` events:
      *   1. It retrieves the text content from the event's source node.
-     *   2. It checks if the text has actually changed compared to the `previousText`
+     *   2. It diffs the text against the previous text using [EditTracker]
      *      to avoid redundant processing.
      *   3. If the text has changed, it calls `notifyWatchers`.
-     *   4. It updates `previousText` with the new text.
-     *   5. It uses the `pattern` (a regular expression) to find command invocations
-     *      within the new text.
-     *   6. For each matched command:
+     *   4. It uses the `pattern` (a regular expression, or [CommandTokenizer] for the
+     *      default one) to find command invocations
+     *      within the region around the edit, bounded by the surrounding command
+     *      terminators and covering the previous matches the edit touches, instead
+     *      of the whole text.
+     *   5. For each matched command:
      *      a. It attempts to find the corresponding Lua function (`callable`) in `allCommands`.
      *      b. It extracts any arguments provided with the command.
      *      c. It iterates through `allCommandFinders` (Lua functions that can dynamically
      *         locate or modify commands). Each finder is invoked with the command name,
      *         arguments, and the initially found callable. Finders can modify the
-     *         `callable` or `args`.
+     *         `callable` or `args`. The outcome is memoized by [resolveCommand]
+     *         while all finders are declared pure.
      *      d. If a valid `callable` (a Lua function) is found:
      *         i. A `Query` object is created, containing information about the
      *            event source node, the full text, the matched command string, and arguments.
@@ -361,56 +419,127 @@ class InlineService : AccessibilityService() {
      *         iii. The `text` variable is updated with `query.text`, allowing commands to
      *              modify the text content being processed by subsequent commands in the same event.
      *      e. Any exceptions occurring during command finder execution or command execution
+     *
+     * Bursts of events are first collapsed by the [eventCoalescer]. The processing
+     * itself runs on the [luaLane].
      */
     override fun onAccessibilityEvent(event: AccessibilityEvent) {
         val node = event.source ?: return
+        eventCoalescer.offer(node, event.eventType)
+    }
 
-        if (event.eventType == AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED)
-            return notifyWatchers(node, event.eventType)
-
-        var text = (node.text ?: "").toString()
-        if (text == previousText) return
-
-        notifyWatchers(node, event.eventType)
-        previousText = text
-
-        val matcher = pattern.matcher(text)
-
-        while (matcher.find()) {
-            var callable = allCommands[matcher.group(2)!!]?.callable ?: LuaValue.NIL
-            var args = LuaValue.valueOf(matcher.group(3) ?: "") as LuaValue
-
-            allCommandFinders.forEach { finder ->
-                runCatching {
-                    val values = finder.invoke(LuaValue.valueOf(matcher.group(2)), args, callable)
-                    if (values.arg1().isfunction()) callable = values.arg1()
-                    if (values.arg(2) is LuaString) args = values.arg(2)
-                }.onFailure { e ->
-                    notifyException("CommandFinders: ${e.message}")
+    /**
+     * Runs watchers and commands for an event on the [luaLane].
+     *
+     * The event itself is recycled once [onAccessibilityEvent] returns,
+     * so only its source node and type are passed along.
+     *
+     * @param node The source node of the event
+     * @param eventType The type of the event
+     */
+    private fun processEvent(node: AccessibilityNodeInfo, eventType: Int) {
+        if (eventType == AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED)
+            return notifyWatchers(node, eventType)
+
+        val text = (node.text ?: "").toString()
+        val window = editTracker.update(text) ?: return
+
+        notifyWatchers(node, eventType)
+
+        val matcher = if (usesDefaultPattern)
+            CommandTokenizer(text, window.first, window.last + 1)
+        else
+            RegexCommandMatcher(pattern.matcher(text).region(window.first, window.last + 1))
+
+        // Matches keep their positions in the scanned text, answers are applied together afterwards
+        val edits = Query.textEdits(node, text)
+
+        pendingEdits = edits
+
+        try {
+            edits.batch {
+                while (matcher.find()) {
+                    editTracker.matched(matcher.start(), matcher.end())
+
+                    val (callable, args) = resolveCommand(matcher.group(2)!!, LuaValue.valueOf(matcher.group(3) ?: ""))
+
+                    if (!callable.isnil()) {
+                        val query = Query(node, edits, matcher.start(), matcher.end(), args.tojstring())
+                        runCatching {
+                            dispatch(callable, ModuleAccounting.Kind.COMMAND) {
+                                callable.call(
+                                    CoerceJavaToLua.coerce(node),
+                                    CoerceJavaToLua.coerce(query)
+                                )
+                            }
+                        }
+                            .onFailure { e ->
+                                notifyException("Command: ${e.message}")
+                            }
+                    }
                 }
             }
+        } finally {
+            pendingEdits = null
+        }
+    }
 
-            if (!callable.isnil()) {
-                val query = Query(node, text, matcher.group(), args.tojstring())
-                runCatching {
-                    callable.call(
-                        CoerceJavaToLua.coerce(node),
-                        CoerceJavaToLua.coerce(query)
-                    )
+    /**
+     * Finds the callable for a command name and the arguments to pass to it.
+     *
+     * Starts from the command registered under [name] and lets every command
+     * finder replace the callable or the arguments. When all finders are
+     * declared pure, the outcome for a name is taken from [commandCache].
+     *
+     * @param name The command name
+     * @param args The arguments found in the text
+     * @return The callable, [LuaValue.NIL] if none, and the arguments to pass
+     */
+    private fun resolveCommand(name: String, args: LuaValue): Pair<LuaValue, LuaValue> {
+        val cacheable = commandCache.isCacheable(allCommandFinders)
+        if (cacheable) commandCache.get(name)?.let { return it to args }
+
+        var callable = allCommands[name]?.callable ?: LuaValue.NIL
+        var result = args
+        var deterministic = true
+        val luaName = LuaValue.valueOf(name)
+
+        allCommandFinders.forEach { finder ->
+            runCatching {
+                val values = dispatch(finder, ModuleAccounting.Kind.FINDER) {
+                    finder.invoke(luaName, result, callable)
                 }
-                    .onFailure { e ->
-                        notifyException("Command: ${e.message}")
-                    }
-
-                text = query.text
+                if (values.arg1().isfunction()) callable = values.arg1()
+                if (values.arg(2) is LuaString) {
+                    result = values.arg(2)
+                    deterministic = false
+                }
+            }.onFailure { e ->
+                deterministic = false
+                notifyException("CommandFinders: ${e.message}")
             }
         }
+
+        if (cacheable && deterministic) commandCache.put(name, callable)
+
+        return callable to result
     }
 
+    /**
+     * Calls into Lua within the [dispatchLimits] of the kind of call, charging it to its module in [accounting].
+     *
+     * @param callable The called function
+     * @param kind The kind of the call
+     * @param block Performs the call
+     * @return The result of [block]
+     */
+    fun <T> dispatch(callable: LuaValue, kind: ModuleAccounting.Kind, block: () -> T): T =
+        accounting.measure(callable, kind) { dispatchLimits.run(globals, kind, block) }
+
     /**
      * Creates and schedules a [java.util.TimerTask] that executes the provided Lua function.
      *
-     * The Lua function is executed on the main UI thread.
+     * The Lua function is executed on the [luaLane] through [dispatch].
      *
      * @param function The Lua function to be executed by the timer task.
      *                 It is expected to be a function that takes no arguments.
@@ -420,9 +549,10 @@ class InlineService : AccessibilityService() {
      * @see Timer.schedule
      */
     fun timerTask(function: LuaValue) = timerTask {
-        runOnUiThread {
+        luaLane.post {
             try {
-                function.checkfunction().call()
+                function.checkfunction()
+                dispatch(function, ModuleAccounting.Kind.TIMER) { function.call() }
             } catch (e: Exception) {
                 notifyException("TimerTask $function: ${e.message}")
             }
@@ -455,13 +585,51 @@ class InlineService : AccessibilityService() {
         const val PATH: String = "path"
         const val PATTERN: String = "pattern"
 
+        const val DEFAULT_PATTERN: String = "(\\{([\\S]+)(?:\\s([\\S\\s]+?)\\}*)?\\}[\\$₽₴])+"
+
         const val ENVIRONMENT_PERF = "environment_perf"
         const val NOTIFICATION_TIMEOUT = "notification_timeout"
         const val RECEIVE_SELECTION_CHANGES = "receive_selection_changes"
+        const val COALESCING_WINDOW = "coalescing_window"
+
+        const val DEFAULT_COALESCING_WINDOW = 0
         const val PREVIOUS_VERSION_CODE = "previous_version_code"
 
         const val TAG: String = "InlineService"
 
+        /**
+         * Performs a node action through the [luaLane], which collects the actions
+         * requested by Lua and drops the redundant ones. Pending query answers are
+         * applied first, so that actions keep their order.
+         *
+         * @return The result of the action, or `null` if it was deferred
+         */
+        private inline fun nodeAction(
+            accessibilityNodeInfo: AccessibilityNodeInfo,
+            kind: ActionBatch.Kind,
+            crossinline action: () -> Boolean,
+        ): Boolean? {
+            val service = instance ?: return action()
+            if (service.luaLane.isCurrentThread) service.pendingEdits?.flush()
+            return service.luaLane.perform(accessibilityNodeInfo, kind) { action() }
+        }
+
+        /**
+         * Performs the node actions requested so far, including pending query
+         * answers, and waits until they are done.
+         *
+         * Actions are otherwise collected while a command or watcher runs and
+         * performed once it returns.
+         */
+        @JvmStatic
+        fun flush() {
+            val service = instance ?: return
+            if (!service.luaLane.isCurrentThread) return
+
+            service.pendingEdits?.flush()
+            service.luaLane.flush()
+        }
+
         /**
          * Sets the text of an [AccessibilityNodeInfo].
          *
@@ -470,18 +638,21 @@ class InlineService : AccessibilityService() {
          *
          * @param accessibilityNodeInfo The node whose text is to be set.
          * @param text The new text to set. Can be null to clear the text.
-         * @return `true` if the action was successfully performed, `false` otherwise.
+         * @return `true` if the action was successfully performed, `false` otherwise,
+         *         or `nil` if it was deferred until the running command returns.
          */
         @JvmStatic
         fun setText(accessibilityNodeInfo: AccessibilityNodeInfo, text: String?) =
-            accessibilityNodeInfo.performAction(
-                AccessibilityNodeInfo.ACTION_SET_TEXT, Bundle().apply {
-                    putCharSequence(
-                        AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE,
-                        text
-                    )
-                }
-            )
+            nodeAction(accessibilityNodeInfo, ActionBatch.Kind.SET_TEXT) {
+                accessibilityNodeInfo.performAction(
+                    AccessibilityNodeInfo.ACTION_SET_TEXT, Bundle().apply {
+                        putCharSequence(
+                            AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE,
+                            text
+                        )
+                    }
+                )
+            }
 
         /**
          * Sets the text selection in the provided [AccessibilityNodeInfo].
@@ -489,16 +660,19 @@ class InlineService : AccessibilityService() {
          * @param accessibilityNodeInfo The node in which to set the selection.
          * @param start The starting index of the selection (inclusive).
          * @param end The ending index of the selection (exclusive).
-         * @return `true` if the action was performed successfully, `false` otherwise.
+         * @return `true` if the action was performed successfully, `false` otherwise,
+         *         or `nil` if it was deferred until the running command returns.
          */
         @JvmStatic
         fun setSelection(accessibilityNodeInfo: AccessibilityNodeInfo, start: Int, end: Int) =
-            accessibilityNodeInfo.performAction(
-                AccessibilityNodeInfo.ACTION_SET_SELECTION, Bundle().apply {
-                    putInt(AccessibilityNodeInfo.ACTION_ARGUMENT_SELECTION_START_INT, start)
-                    putInt(AccessibilityNodeInfo.ACTION_ARGUMENT_SELECTION_END_INT, end)
-                }
-            )
+            nodeAction(accessibilityNodeInfo, ActionBatch.Kind.SET_SELECTION) {
+                accessibilityNodeInfo.performAction(
+                    AccessibilityNodeInfo.ACTION_SET_SELECTION, Bundle().apply {
+                        putInt(AccessibilityNodeInfo.ACTION_ARGUMENT_SELECTION_START_INT, start)
+                        putInt(AccessibilityNodeInfo.ACTION_ARGUMENT_SELECTION_END_INT, end)
+                    }
+                )
+            }
 
         /**
          * Performs the "cut" action on the given [AccessibilityNodeInfo].
@@ -506,34 +680,43 @@ class InlineService : AccessibilityService() {
          * This attempts to cut the currently selected text in the node.
          *
          * @param accessibilityNodeInfo The node on which to perform the cut action.
-         * @return `true` if the action was performed successfully, `false` otherwise.
+         * @return `true` if the action was performed successfully, `false` otherwise,
+         *         or `nil` if it was deferred while called away from the main thread.
          * @see AccessibilityNodeInfo.ACTION_CUT
          */
         @JvmStatic
-        fun cut(accessibilityNodeInfo: AccessibilityNodeInfo): Boolean =
-            accessibilityNodeInfo.performAction(AccessibilityNodeInfo.ACTION_CUT)
+        fun cut(accessibilityNodeInfo: AccessibilityNodeInfo): Boolean? =
+            nodeAction(accessibilityNodeInfo, ActionBatch.Kind.OTHER) {
+                accessibilityNodeInfo.performAction(AccessibilityNodeInfo.ACTION_CUT)
+            }
 
         /**
          * Performs a copy action on the given [AccessibilityNodeInfo].
          *
          * @param accessibilityNodeInfo The node on which to perform the copy action.
-         * @return `true` if the action was successful, `false` otherwise.
+         * @return `true` if the action was successful, `false` otherwise,
+         *         or `nil` if it was deferred while called away from the main thread.
          */
         @JvmStatic
-        fun copy(accessibilityNodeInfo: AccessibilityNodeInfo): Boolean =
-            accessibilityNodeInfo.performAction(AccessibilityNodeInfo.ACTION_COPY)
+        fun copy(accessibilityNodeInfo: AccessibilityNodeInfo): Boolean? =
+            nodeAction(accessibilityNodeInfo, ActionBatch.Kind.OTHER) {
+                accessibilityNodeInfo.performAction(AccessibilityNodeInfo.ACTION_COPY)
+            }
 
         /**
          * Performs the paste action on the given [AccessibilityNodeInfo].
          * This action attempts to paste the content from the clipboard into the node.
          *
          * @param accessibilityNodeInfo The [AccessibilityNodeInfo] on which to perform the paste action.
-         * @return `true` if the action was successfully performed, `false` otherwise.
+         * @return `true` if the action was successfully performed, `false` otherwise,
+         *         or `nil` if it was deferred while called away from the main thread.
          * @see AccessibilityNodeInfo.ACTION_PASTE
          */
         @JvmStatic
-        fun paste(accessibilityNodeInfo: AccessibilityNodeInfo): Boolean =
-            accessibilityNodeInfo.performAction(AccessibilityNodeInfo.ACTION_PASTE)
+        fun paste(accessibilityNodeInfo: AccessibilityNodeInfo): Boolean? =
+            nodeAction(accessibilityNodeInfo, ActionBatch.Kind.OTHER) {
+                accessibilityNodeInfo.performAction(AccessibilityNodeInfo.ACTION_PASTE)
+            }
 
         /**
          * Retrieves the text content from an [AccessibilityNodeInfo], with special handling
@@ -580,13 +763,14 @@ class InlineService : AccessibilityService() {
          * After insertion, the selection will be placed at the end of the inserted text.
          *
          * This function refreshes the node's information before performing operations to ensure
-         * it has the latest state.
+         * it has the latest state, waiting for node actions still queued by the Lua thread.
          *
          * @param accessibilityNodeInfo The node where the text will be inserted.
          * @param textToInsert The text to insert.
          */
         @JvmStatic
         fun insertText(accessibilityNodeInfo: AccessibilityNodeInfo, textToInsert: String) {
+            flush()
             accessibilityNodeInfo.refresh()
 
             val start = accessibilityNodeInfo.textSelectionStart.takeIf { it != -1 } ?: 0
@@ -0,0 +1,139 @@
+package com.wavecat.inline.service
+
+import android.os.Handler
+import android.os.Looper
+import com.wavecat.inline.utils.runOnUiThread
+import java.util.concurrent.CountDownLatch
+
+/**
+ * The single thread all Lua code of the service runs on.
+ *
+ * LuaJ globals are not thread-safe, so events, timers, network callbacks and
+ * view listeners are all serialized through one lane, the main thread. Lua
+ * called synchronously by views and windows, and modules updating them
+ * directly, both rely on that.
+ *
+ * Node actions requested while the lane runs Lua are not performed right
+ * away but collected in an [ActionBatch], which drops the redundant ones.
+ * After each piece of work the rest is performed in one go.
+ */
+class LuaLane {
+    private val handler = Handler(Looper.getMainLooper())
+
+    private var depth = 0
+
+    /**
+     * Node actions collected while running Lua.
+     */
+    val actions = ActionBatch()
+
+    /**
+     * Whether the current thread is the lane.
+     */
+    val isCurrentThread: Boolean
+        get() = Looper.myLooper() == handler.looper
+
+    /**
+     * Queues work to run on the lane.
+     *
+     * @param body The work to run
+     */
+    fun post(body: () -> Unit) {
+        handler.post { run(body) }
+    }
+
+    /**
+     * Runs work on the lane, immediately if already on it.
+     *
+     * @param body The work to run
+     */
+    fun execute(body: () -> Unit) {
+        if (isCurrentThread) run(body) else post(body)
+    }
+
+    /**
+     * Runs a call into Lua made by the main thread and returns its result,
+     * such as a listener of a view.
+     *
+     * @param body The call to run
+     * @return The result of [body]
+     * @throws IllegalStateException If called away from the main thread
+     */
+    fun <T> call(body: () -> T): T {
+        check(isCurrentThread) { "Lua is not running on this thread" }
+        return run(body)
+    }
+
+    /**
+     * Performs a node action, collecting it instead while the lane runs Lua
+     * or when called away from the main thread.
+     *
+     * Actions of kind [ActionBatch.Kind.OTHER] requested by Lua are performed
+     * right away, after the collected ones, so their result is known.
+     *
+     * @param node The node the action is performed on
+     * @param kind The kind of the action
+     * @param action The action to perform
+     * @return The result of the action, or `null` if it was collected and its
+     * result is not known yet
+     */
+    fun perform(node: Any, kind: ActionBatch.Kind, action: () -> Boolean): Boolean? {
+        if (isCurrentThread) {
+            if (depth == 0) return action()
+
+            if (kind == ActionBatch.Kind.OTHER) {
+                flush()
+                return action()
+            }
+
+            actions.add(node, kind, action)
+            return null
+        }
+
+        actions.add(node, kind, action)
+        dispatch()
+
+        return null
+    }
+
+    /**
+     * Performs the collected actions and waits until the main thread has done so.
+     *
+     * Used before reading node state that collected actions would change.
+     */
+    fun flush() {
+        if (isCurrentThread) {
+            actions.drain()?.forEach { it() }
+            return
+        }
+
+        val done = CountDownLatch(1)
+        if (dispatch { done.countDown() }) done.await()
+    }
+
+    private fun <T> run(body: () -> T): T {
+        depth++
+
+        try {
+            return body()
+        } finally {
+            if (--depth == 0) flush()
+        }
+    }
+
+    /**
+     * Posts the collected actions to the main thread as one batch.
+     *
+     * @param then Called on the main thread after the batch
+     * @return `false` if there was nothing to post
+     */
+    private fun dispatch(then: () -> Unit = {}): Boolean {
+        val batch = actions.drain() ?: return false
+
+        runOnUiThread {
+            batch.forEach { it() }
+            then()
+        }
+        return true
+    }
+}
@@ -0,0 +1,260 @@
+package com.wavecat.inline.service
+
+import android.os.Debug
+import android.os.SystemClock
+import com.wavecat.inline.utils.AllocationCounter
+import com.wavecat.inline.utils.LatencyHistogram
+import org.luaj.vm2.LuaClosure
+import org.luaj.vm2.LuaTable
+import org.luaj.vm2.LuaValue
+import java.util.Locale
+
+/**
+ * Resources consumed by each module, so that the one making typing slow can be found.
+ *
+ * Every dispatch into Lua (a command, watcher, command finder, timer task,
+ * HTTP callback or callback of a view or window) goes through [measure], which records its wall time, the
+ * CPU time of the running thread and, where the runtime exposes it, the
+ * bytes the thread allocated meanwhile.
+ *
+ * A dispatch is charged to the module that defined the called function,
+ * i.e. the chunk name it was loaded with, which is the module path. Functions
+ * defined by a required library are charged to that library. Kotlin functions
+ * are charged to [NATIVE] unless they are [Attributed].
+ *
+ * The allocation counter of the JVM is not available on Android, where only
+ * time is recorded.
+ */
+class ModuleAccounting {
+    private val usages = HashMap<String, Usage>()
+
+    /**
+     * Kinds of dispatches into a module.
+     */
+    enum class Kind(val key: String) {
+        COMMAND("commands"),
+        WATCHER("watchers"),
+        FINDER("finders"),
+        TIMER("timers"),
+        HTTP("http"),
+        UI("ui")
+    }
+
+    /**
+     * A Kotlin function acting on behalf of a module.
+     */
+    interface Attributed {
+        /**
+         * Path of the module to charge calls to.
+         */
+        val module: String
+    }
+
+    /**
+     * Totals of one module.
+     *
+     * @property module The module path
+     */
+    class Usage internal constructor(val module: String) {
+        private val calls = LongArray(Kind.entries.size)
+
+        /**
+         * Number of dispatches that threw.
+         */
+        var errors = 0L
+            private set
+
+        /**
+         * Total wall time in nanoseconds.
+         */
+        var wallNanos = 0L
+            private set
+
+        /**
+         * Total thread CPU time in nanoseconds.
+         */
+        var cpuNanos = 0L
+            private set
+
+        /**
+         * Total bytes allocated, `-1` where allocations are not counted.
+         */
+        var allocatedBytes = if (AllocationCounter.isAvailable) 0L else -1L
+            private set
+
+        /**
+         * Distribution of the wall time of single dispatches.
+         */
+        val wallTime = LatencyHistogram()
+
+        /**
+         * Distribution of the CPU time of single dispatches.
+         */
+        val cpuTime = LatencyHistogram()
+
+        /**
+         * Total number of dispatches.
+         */
+        val totalCalls: Long
+            get() = calls.sum()
+
+        /**
+         * Number of dispatches of a kind.
+         */
+        fun calls(kind: Kind) = calls[kind.ordinal]
+
+        internal fun add(kind: Kind, wall: Long, cpu: Long, bytes: Long, failed: Boolean) {
+            calls[kind.ordinal]++
+            if (failed) errors++
+
+            wallNanos += wall
+            cpuNanos += cpu
+            if (bytes >= 0 && allocatedBytes >= 0) allocatedBytes += bytes
+
+            wallTime.record(wall)
+            cpuTime.record(cpu)
+        }
+    }
+
+    /**
+     * Runs a dispatch into Lua and charges it to the module of [callable].
+     *
+     * @param callable The called function, used to find the module
+     * @param kind The kind of the dispatch
+     * @param block Performs the call
+     * @return The result of [block], whose exceptions are rethrown
+     */
+    fun <T> measure(callable: LuaValue, kind: Kind, block: () -> T): T {
+        val bytes = AllocationCounter.currentThread()
+        val cpu = Debug.threadCpuTimeNanos()
+        val wall = SystemClock.elapsedRealtimeNanos()
+        var failed = true
+
+        try {
+            return block().also { failed = false }
+        } finally {
+            val wallNanos = SystemClock.elapsedRealtimeNanos() - wall
+            val cpuNanos = Debug.threadCpuTimeNanos() - cpu
+            val allocated = if (bytes < 0) -1 else AllocationCounter.currentThread() - bytes
+
+            record(moduleOf(callable), kind, wallNanos, cpuNanos, allocated, failed)
+        }
+    }
+
+    /**
+     * Adds a dispatch measured elsewhere.
+     *
+     * @param module The module path
+     * @param kind The kind of the dispatch
+     * @param wallNanos Wall time
+     * @param cpuNanos Thread CPU time
+     * @param allocatedBytes Bytes allocated, negative if unknown
+     * @param failed Whether the dispatch threw
+     */
+    @Synchronized
+    fun record(module: String, kind: Kind, wallNanos: Long, cpuNanos: Long, allocatedBytes: Long, failed: Boolean) =
+        usages.getOrPut(module) { Usage(module) }.add(kind, wallNanos, cpuNanos, allocatedBytes, failed)
+
+    /**
+     * Returns the usage of every module that was dispatched to, most CPU time first.
+     */
+    @Synchronized
+    fun usages(): List<Usage> = usages.values.sortedByDescending { it.cpuNanos }
+
+    /**
+     * Returns the usage of a module.
+     *
+     * @param module The module path
+     * @return The usage, `null` if nothing was charged to it
+     */
+    @Synchronized
+    fun usageOf(module: String): Usage? = usages[module]
+
+    /**
+     * Forgets everything recorded.
+     */
+    @Synchronized
+    fun reset() = usages.clear()
+
+    /**
+     * Returns the usages as a Lua array of tables, most CPU time first.
+     *
+     * Each table has the fields `module`, `calls`, `errors`, one call count per
+     * kind (`commands`, `watchers`, `finders`, `timers`, `http`, `ui`), `wall` and
+     * `cpu` (total milliseconds), `wallP50`, `wallP95`, `wallP99`, `cpuP50`,
+     * `cpuP95`, `cpuP99` (bucket bounds in microseconds) and `allocated` (bytes,
+     * nil where allocations are not counted).
+     */
+    fun report(): LuaTable {
+        val report = LuaTable()
+
+        usages().forEachIndexed { index, usage ->
+            report[index + 1] = LuaTable().apply {
+                set("module", usage.module)
+                set("calls", usage.totalCalls.toDouble())
+                set("errors", usage.errors.toDouble())
+                for (kind in Kind.entries) set(kind.key, usage.calls(kind).toDouble())
+
+                set("wall", usage.wallNanos / 1e6)
+                set("cpu", usage.cpuNanos / 1e6)
+                for (percentile in PERCENTILES) {
+                    set("wallP${percentile.toInt()}", usage.wallTime.percentile(percentile).toDouble())
+                    set("cpuP${percentile.toInt()}", usage.cpuTime.percentile(percentile).toDouble())
+                }
+
+                if (usage.allocatedBytes >= 0) set("allocated", usage.allocatedBytes.toDouble())
+            }
+        }
+
+        return report
+    }
+
+    /**
+     * Formats the usages for display, one paragraph per module, most CPU time first.
+     */
+    fun format(): String = usages().joinToString("\n\n") { usage ->
+        buildString {
+            append(usage.module.substringAfterLast('/')).append(": ")
+            append(usage.totalCalls).append(" calls")
+            if (usage.errors > 0) append(", ").append(usage.errors).append(" failed")
+
+            Kind.entries.filter { usage.calls(it) > 0 }.joinTo(this, ", ", " (", ")") {
+                "${usage.calls(it)} ${it.key}"
+            }
+
+            append("\ncpu ").append(formatMillis(usage.cpuNanos))
+                .append(", p95 < ").append(formatMicros(usage.cpuTime.percentile(95.0)))
+            append("\nwall ").append(formatMillis(usage.wallNanos))
+                .append(", p95 < ").append(formatMicros(usage.wallTime.percentile(95.0)))
+                .append(", p99 < ").append(formatMicros(usage.wallTime.percentile(99.0)))
+
+            if (usage.allocatedBytes >= 0)
+                append("\nallocated ").append(usage.allocatedBytes / 1024).append(" KB")
+        }
+    }
+
+    companion object {
+        /**
+         * Module charged with calls of Kotlin functions not acting for a module.
+         */
+        const val NATIVE = "[native]"
+
+        private val PERCENTILES = doubleArrayOf(50.0, 95.0, 99.0)
+
+        /**
+         * Returns the path of the module that defined a function.
+         */
+        fun moduleOf(callable: LuaValue): String = when (callable) {
+            is LuaClosure -> callable.p.source.tojstring()
+            is Attributed -> callable.module
+            else -> NATIVE
+        }
+
+        private fun formatMillis(nanos: Long) = String.format(Locale.ROOT, "%.1f ms", nanos / 1e6)
+
+        private fun formatMicros(micros: Long) = when {
+            micros >= 1000 -> "${micros / 1000} ms"
+            else -> "$micros us"
+        }
+    }
+}
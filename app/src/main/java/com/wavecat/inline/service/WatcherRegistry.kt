@@ -0,0 +1,66 @@
+package com.wavecat.inline.service
+
+import android.view.accessibility.AccessibilityEvent
+import org.luaj.vm2.LuaValue
+import java.util.Collections
+
+/**
+ * Watchers and the event masks they are interested in.
+ *
+ * Behaves like a regular map for registration, but additionally keeps one
+ * array of watchers per event type, rebuilt on every change. Dispatching an
+ * event is therefore an allocation-free walk over an immutable snapshot, and
+ * watchers may add or remove watchers, themselves included, while it runs.
+ *
+ * @see InlineService.allWatchers
+ */
+class WatcherRegistry : AbstractMutableMap<LuaValue, Int>() {
+    private val watchers = LinkedHashMap<LuaValue, Int>()
+
+    @Volatile
+    private var textChanged = EMPTY
+
+    @Volatile
+    private var selectionChanged = EMPTY
+
+    override val entries: MutableSet<MutableMap.MutableEntry<LuaValue, Int>>
+        get() = Collections.unmodifiableMap(watchers).entries
+
+    @Synchronized
+    override fun put(key: LuaValue, value: Int): Int? = watchers.put(key, value).also { rebuild() }
+
+    @Synchronized
+    override fun remove(key: LuaValue): Int? = watchers.remove(key)?.also { rebuild() }
+
+    @Synchronized
+    override fun clear() {
+        watchers.clear()
+        rebuild()
+    }
+
+    /**
+     * Returns the watchers interested in an event type.
+     *
+     * The returned array is a snapshot and must not be modified.
+     *
+     * @param eventType The type of the event
+     * @return Watchers whose mask contains [eventType]
+     */
+    fun forEvent(eventType: Int): Array<LuaValue> = when (eventType) {
+        AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED -> textChanged
+        AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED -> selectionChanged
+        else -> synchronized(this) { filter(eventType) }
+    }
+
+    private fun rebuild() {
+        textChanged = filter(AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED)
+        selectionChanged = filter(AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED)
+    }
+
+    private fun filter(eventType: Int): Array<LuaValue> =
+        watchers.filterValues { (it and eventType) == eventType }.keys.toTypedArray()
+
+    companion object {
+        private val EMPTY = emptyArray<LuaValue>()
+    }
+}
@@ -0,0 +1,107 @@
+package com.wavecat.inline.service.commands
+
+import org.luaj.vm2.LuaValue
+
+/**
+ * Remembers which callable a command name resolves to after all command finders ran.
+ *
+ * Finders are only skipped when every registered finder was declared pure,
+ * i.e. returns the same callable for the same name and callable regardless
+ * of the arguments and of anything else. A resolution in which a finder
+ * rewrote the arguments or failed is not cached, since it may differ next
+ * time.
+ *
+ * The cache must be invalidated whenever commands or finders change.
+ *
+ * @property capacity Maximum number of names remembered
+ */
+class CommandCache(private val capacity: Int = DEFAULT_CAPACITY) {
+    private val resolved = object : LinkedHashMap<String, LuaValue>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, LuaValue>) = size > capacity
+    }
+
+    private val pureFinders = HashSet<LuaValue>()
+
+    /**
+     * Number of resolutions answered from the cache.
+     */
+    var hits = 0L
+        private set
+
+    /**
+     * Number of resolutions that had to run the finders.
+     */
+    var misses = 0L
+        private set
+
+    /**
+     * Declares a finder pure, allowing its results to be cached.
+     *
+     * @param finder The command finder
+     */
+    @Synchronized
+    fun addPureFinder(finder: LuaValue) {
+        pureFinders.add(finder)
+        resolved.clear()
+    }
+
+    /**
+     * Forgets a finder that was declared pure.
+     *
+     * @param finder The command finder
+     */
+    @Synchronized
+    fun removePureFinder(finder: LuaValue) {
+        pureFinders.remove(finder)
+        resolved.clear()
+    }
+
+    /**
+     * Checks whether the results of the given finders may be cached.
+     *
+     * @param finders All registered command finders
+     */
+    @Synchronized
+    fun isCacheable(finders: Collection<LuaValue>): Boolean = finders.all { it in pureFinders }
+
+    /**
+     * Returns the cached callable for a command name, `null` if it is not cached.
+     * A cached [LuaValue.NIL] means that no command matches the name.
+     *
+     * @param name The command name
+     */
+    @Synchronized
+    fun get(name: String): LuaValue? = resolved[name].also { if (it == null) misses++ else hits++ }
+
+    /**
+     * Stores the callable a command name resolved to.
+     *
+     * @param name The command name
+     * @param callable The resolved callable, [LuaValue.NIL] if none
+     */
+    @Synchronized
+    fun put(name: String, callable: LuaValue) {
+        resolved[name] = callable
+    }
+
+    /**
+     * Forgets all resolutions, to be called when commands or finders change.
+     */
+    @Synchronized
+    fun invalidate() {
+        resolved.clear()
+    }
+
+    /**
+     * Forgets all resolutions and finders declared pure.
+     */
+    @Synchronized
+    fun clear() {
+        resolved.clear()
+        pureFinders.clear()
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 256
+    }
+}
@@ -0,0 +1,295 @@
+package com.wavecat.inline.service.commands
+
+import java.util.TreeMap
+
+/**
+ * Search index over command names.
+ *
+ * A radix trie answers prefix completion in sorted order, visiting only the
+ * subtree below the prefix. A trigram index narrows typo-tolerant lookup to
+ * the names sharing enough trigrams with the query, which are then ranked by
+ * edit distance. Queries too short for a name within reach to share any
+ * trigram with them are compared with every name of a close length instead.
+ */
+class CommandIndex {
+    private val root = Node("")
+    private val trigrams = HashMap<String, MutableSet<String>>()
+    private val lengths = HashMap<Int, MutableSet<String>>()
+
+    /**
+     * Number of indexed names.
+     */
+    var size = 0
+        private set
+
+    /**
+     * Adds a name to the index.
+     *
+     * @param name The command name
+     */
+    @Synchronized
+    fun add(name: String) {
+        if (!insert(name)) return
+
+        size++
+        forEachTrigram(name) { trigrams.getOrPut(it) { HashSet() }.add(name) }
+        lengths.getOrPut(name.length) { HashSet() }.add(name)
+    }
+
+    /**
+     * Removes a name from the index.
+     *
+     * @param name The command name
+     */
+    @Synchronized
+    fun remove(name: String) {
+        if (!delete(root, name, 0)) return
+
+        size--
+        forEachTrigram(name) { trigram ->
+            trigrams[trigram]?.let {
+                it.remove(name)
+                if (it.isEmpty()) trigrams.remove(trigram)
+            }
+        }
+        lengths[name.length]?.let {
+            it.remove(name)
+            if (it.isEmpty()) lengths.remove(name.length)
+        }
+    }
+
+    /**
+     * Removes all names.
+     */
+    @Synchronized
+    fun clear() {
+        root.children.clear()
+        root.terminal = false
+        trigrams.clear()
+        lengths.clear()
+        size = 0
+    }
+
+    /**
+     * Returns the names starting with a prefix, in lexicographic order.
+     *
+     * @param prefix The prefix to complete, empty for all names
+     * @param limit Maximum number of names to return
+     */
+    @Synchronized
+    fun complete(prefix: String, limit: Int): List<String> {
+        val result = ArrayList<String>()
+        if (limit <= 0) return result
+
+        var node = root
+        var index = 0
+        val path = StringBuilder()
+
+        while (index < prefix.length) {
+            val child = node.children[prefix[index]] ?: return result
+            val common = commonPrefix(child.label, prefix, index)
+
+            if (common < child.label.length && index + common < prefix.length) return result
+
+            path.append(child.label)
+            index += common
+            node = child
+        }
+
+        collect(node, path, result, limit)
+        return result
+    }
+
+    /**
+     * Returns the names closest to a possibly misspelled query.
+     *
+     * Names starting with the query come first, then names within
+     * [maxDistance] edits, closest first.
+     *
+     * @param query The text to look up
+     * @param limit Maximum number of names to return
+     * @param maxDistance Maximum number of edits between the query and a name
+     */
+    @Synchronized
+    fun suggest(query: String, limit: Int, maxDistance: Int = DEFAULT_MAX_DISTANCE): List<String> {
+        val result = LinkedHashSet(complete(query, limit))
+        if (result.size >= limit) return result.toList()
+
+        val lists = ArrayList<Set<String>>()
+        forEachTrigram(query) { trigram -> lists.add(trigrams[trigram] ?: emptySet()) }
+        lists.sortBy { it.size }
+
+        // Each edit destroys at most three trigrams, so closer names must share at least
+        // this many, and therefore appear in one of the shortest lists - required + 1 lists.
+        val required = query.length - TRIGRAM * maxDistance
+        val lowerQuery = query.lowercase()
+        val candidates = ArrayList<Candidate>()
+
+        fun consider(name: String, shared: Int) {
+            val distance = distance(lowerQuery, name.lowercase(), maxDistance)
+            if (distance <= maxDistance) candidates.add(Candidate(name, distance, shared))
+        }
+
+        if (required <= 0) {
+            // A name within reach may share no trigram at all, so compare with all names of a close length
+            for (length in query.length - maxDistance..query.length + maxDistance)
+                lengths[length]?.forEach { name -> consider(name, lists.count { name in it }) }
+        } else {
+            val seen = HashSet<String>()
+
+            for (list in lists.subList(0, maxOf(0, lists.size - required + 1))) {
+                for (name in list) {
+                    if (Math.abs(name.length - query.length) > maxDistance || !seen.add(name)) continue
+
+                    val shared = lists.count { name in it }
+                    if (shared >= required) consider(name, shared)
+                }
+            }
+        }
+
+        candidates.sortWith(CANDIDATE_ORDER)
+        for (candidate in candidates) {
+            if (result.size >= limit) break
+            result.add(candidate.name)
+        }
+
+        return result.toList()
+    }
+
+    /**
+     * Inserts a name into the trie.
+     *
+     * @return `false` if it was already present
+     */
+    private fun insert(name: String): Boolean {
+        var node = root
+        var index = 0
+
+        while (true) {
+            if (index == name.length) {
+                if (node.terminal) return false
+                node.terminal = true
+                return true
+            }
+
+            val child = node.children[name[index]]
+            if (child == null) {
+                node.children[name[index]] = Node(name.substring(index)).apply { terminal = true }
+                return true
+            }
+
+            val common = commonPrefix(child.label, name, index)
+            if (common < child.label.length) {
+                val middle = Node(child.label.substring(0, common))
+                child.label = child.label.substring(common)
+                middle.children[child.label[0]] = child
+                node.children[name[index]] = middle
+            }
+
+            node = node.children[name[index]]!!
+            index += common
+        }
+    }
+
+    /**
+     * Removes a name below [node], pruning and merging nodes left without purpose.
+     *
+     * @return `false` if the name was not present
+     */
+    private fun delete(node: Node, name: String, index: Int): Boolean {
+        if (index == name.length) {
+            if (!node.terminal) return false
+            node.terminal = false
+            return true
+        }
+
+        val child = node.children[name[index]] ?: return false
+        if (!name.startsWith(child.label, index)) return false
+        if (!delete(child, name, index + child.label.length)) return false
+
+        when {
+            child.terminal -> {}
+            child.children.isEmpty() -> node.children.remove(name[index])
+            child.children.size == 1 -> {
+                val only = child.children.firstEntry()!!.value
+                only.label = child.label + only.label
+                node.children[name[index]] = only
+            }
+        }
+
+        return true
+    }
+
+    private fun collect(node: Node, path: StringBuilder, result: MutableList<String>, limit: Int) {
+        if (node.terminal) result.add(path.toString())
+
+        for (child in node.children.values) {
+            if (result.size >= limit) return
+
+            val length = path.length
+            path.append(child.label)
+            collect(child, path, result, limit)
+            path.setLength(length)
+        }
+    }
+
+    private class Candidate(val name: String, val distance: Int, val shared: Int)
+
+    /**
+     * Radix trie node; [label] is the text of the edge leading to it.
+     */
+    private class Node(var label: String) {
+        val children = TreeMap<Char, Node>()
+        var terminal = false
+    }
+
+    companion object {
+        const val DEFAULT_MAX_DISTANCE = 2
+
+        private const val TRIGRAM = 3
+
+        private val CANDIDATE_ORDER = compareBy<Candidate> { it.distance }
+            .thenByDescending { it.shared }
+            .thenBy { it.name }
+
+        private fun commonPrefix(label: String, text: String, offset: Int): Int {
+            var i = 0
+            while (i < label.length && offset + i < text.length && label[i] == text[offset + i]) i++
+            return i
+        }
+
+        /**
+         * Calls [action] for the case-insensitive trigrams of a name padded with two leading spaces.
+         */
+        private inline fun forEachTrigram(name: String, action: (String) -> Unit) {
+            val padded = "  " + name.lowercase()
+            for (i in 0..padded.length - 3) action(padded.substring(i, i + 3))
+        }
+
+        /**
+         * Levenshtein distance, giving up once it exceeds [limit].
+         */
+        private fun distance(a: String, b: String, limit: Int): Int {
+            if (Math.abs(a.length - b.length) > limit) return limit + 1
+
+            var previous = IntArray(b.length + 1) { it }
+            var current = IntArray(b.length + 1)
+
+            for (i in 1..a.length) {
+                current[0] = i
+                var best = current[0]
+
+                for (j in 1..b.length) {
+                    val cost = if (a[i - 1] == b[j - 1]) 0 else 1
+                    current[j] = minOf(previous[j] + 1, current[j - 1] + 1, previous[j - 1] + cost)
+                    best = minOf(best, current[j])
+                }
+
+                if (best > limit) return limit + 1
+                previous = current.also { current = previous }
+            }
+
+            return previous[b.length]
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.wavecat.inline.service.commands
+
+import java.util.regex.MatchResult
+import java.util.regex.Matcher
+
+/**
+ * Finds command invocations in text one after another.
+ *
+ * Groups follow the default pattern: 1 is the last command of a chain,
+ * 2 its name and 3 its arguments, if any.
+ *
+ * @see CommandTokenizer
+ */
+interface CommandMatcher : MatchResult {
+    /**
+     * Advances to the next command.
+     *
+     * @return `true` if a command was found
+     */
+    fun find(): Boolean
+}
+
+/**
+ * [CommandMatcher] backed by a regular expression, used for custom patterns.
+ *
+ * @property matcher The matcher to delegate to
+ */
+class RegexCommandMatcher(private val matcher: Matcher) : CommandMatcher, MatchResult by matcher {
+    override fun find(): Boolean = matcher.find()
+}
@@ -0,0 +1,65 @@
+package com.wavecat.inline.service.commands
+
+import org.luaj.vm2.LuaTable
+import org.luaj.vm2.LuaValue
+import java.util.Collections
+
+/**
+ * Registered commands by name, with a [CommandIndex] kept in sync.
+ *
+ * Behaves like a regular map, so registration and lazy stubs keep writing
+ * to it directly, while lookups by prefix or misspelled name do not need to
+ * walk and sort all commands.
+ *
+ * @see com.wavecat.inline.service.InlineService.allCommands
+ */
+class CommandRegistry : AbstractMutableMap<String, Command>() {
+    private val commands = LinkedHashMap<String, Command>()
+
+    /**
+     * Index over the registered names.
+     */
+    val index = CommandIndex()
+
+    override val entries: MutableSet<MutableMap.MutableEntry<String, Command>>
+        get() = Collections.unmodifiableMap(commands).entries
+
+    override fun get(key: String): Command? = commands[key]
+
+    override fun containsKey(key: String): Boolean = commands.containsKey(key)
+
+    @Synchronized
+    override fun put(key: String, value: Command): Command? =
+        commands.put(key, value).also { if (it == null) index.add(key) }
+
+    @Synchronized
+    override fun remove(key: String): Command? =
+        commands.remove(key)?.also { index.remove(key) }
+
+    @Synchronized
+    override fun clear() {
+        commands.clear()
+        index.clear()
+    }
+
+    /**
+     * Lists command names starting with a prefix, sorted.
+     *
+     * @param prefix The prefix to complete, empty for all commands
+     * @param limit Maximum number of names
+     * @return LuaTable Array of command names
+     */
+    fun complete(prefix: String, limit: Int): LuaTable = index.complete(prefix, limit).toLuaTable()
+
+    /**
+     * Lists command names close to a possibly misspelled name, best first.
+     *
+     * @param query The name to look up
+     * @param limit Maximum number of names
+     * @return LuaTable Array of command names
+     */
+    fun suggest(query: String, limit: Int): LuaTable = index.suggest(query, limit).toLuaTable()
+
+    private fun List<String>.toLuaTable(): LuaTable =
+        LuaValue.listOf(Array<LuaValue>(size) { LuaValue.valueOf(this[it]) })
+}
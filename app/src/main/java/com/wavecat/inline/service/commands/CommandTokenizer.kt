@@ -0,0 +1,189 @@
+package com.wavecat.inline.service.commands
+
+/**
+ * Single-pass scanner for the default command pattern
+ * `(\{([\S]+)(?:\s([\S\s]+?)\}*)?\}[\$₽₴])+`.
+ *
+ * Produces exactly the matches and groups of [java.util.regex.Matcher.find]
+ * without backtracking. The regular expression retries its lazy argument
+ * group at every `{`, which is quadratic on text with many unclosed braces;
+ * here the positions of whitespace runs and terminators (`}` followed by
+ * `$`, `₽` or `₴`) are remembered between attempts instead.
+ *
+ * For a command starting at `{`, the expression prefers the longest name.
+ * The name can only be followed by arguments when it runs up to whitespace,
+ * in which case the arguments end at the first terminator at least two
+ * characters later. Otherwise the name ends at the last terminator inside
+ * its whitespace-free run. Commands directly following each other form a
+ * chain reported as one match, whose groups describe the last command.
+ *
+ * @property text The text to scan
+ * @property regionStart Index at which scanning starts
+ * @property regionEnd Index at which the text is considered to end
+ */
+class CommandTokenizer(
+    private val text: CharSequence,
+    private val regionStart: Int = 0,
+    private val regionEnd: Int = text.length,
+) : CommandMatcher {
+    private var position = regionStart
+
+    private var matchStart = -1
+    private var matchEnd = -1
+    private val groups = IntArray(GROUP_COUNT * 2) { -1 }
+
+    private var runFrom = -1
+    private var runEnd = -1
+    private var runTerminator = -1
+
+    private var searchFrom = -1
+    private var searchResult = -1
+
+    override fun find(): Boolean {
+        var start = position
+
+        while (start < regionEnd) {
+            setGroup(3, -1, -1)
+
+            if (text[start] == '{' && command(start)) {
+                matchStart = start
+                matchEnd = groups[1]
+
+                while (matchEnd < regionEnd && text[matchEnd] == '{' && command(matchEnd))
+                    matchEnd = groups[1]
+
+                position = matchEnd
+                return true
+            }
+            start++
+        }
+
+        position = regionEnd
+        matchStart = -1
+        return false
+    }
+
+    /**
+     * Matches a single command starting at [start] and stores its groups.
+     *
+     * The arguments group keeps its previous value when the command has
+     * none, mirroring how regular expressions report groups of a repetition.
+     */
+    private fun command(start: Int): Boolean {
+        val nameStart = start + 1
+        if (nameStart >= regionEnd || isWhitespace(text[nameStart])) return false
+
+        scanRun(nameStart)
+
+        if (runEnd < regionEnd) {
+            val terminator = nextTerminator(runEnd + 2)
+            if (terminator != -1) {
+                var argsEnd = terminator
+                while (argsEnd > runEnd + 2 && text[argsEnd - 1] == '}') argsEnd--
+
+                setGroup(1, start, terminator + 2)
+                setGroup(2, nameStart, runEnd)
+                setGroup(3, runEnd + 1, argsEnd)
+                return true
+            }
+        }
+
+        if (runTerminator >= nameStart + 1) {
+            setGroup(1, start, runTerminator + 2)
+            setGroup(2, nameStart, runTerminator)
+            return true
+        }
+
+        return false
+    }
+
+    /**
+     * Finds the whitespace-free run containing [from] and the last terminator inside it.
+     * Results are reused for later positions within the same run.
+     */
+    private fun scanRun(from: Int) {
+        if (from in runFrom until runEnd) return
+
+        var i = from
+        var terminator = -1
+        while (i < regionEnd && !isWhitespace(text[i])) {
+            if (isTerminator(i)) terminator = i
+            i++
+        }
+
+        runFrom = from
+        runEnd = i
+        runTerminator = terminator
+    }
+
+    /**
+     * Returns the index of the first terminator at or after [from], or -1.
+     * The last result is reused while [from] does not pass it.
+     */
+    private fun nextTerminator(from: Int): Int {
+        if (searchFrom != -1 && from >= searchFrom && (searchResult == -1 || from <= searchResult))
+            return searchResult
+
+        var i = from
+        while (i < regionEnd - 1 && !isTerminator(i)) i++
+
+        searchFrom = from
+        searchResult = if (i < regionEnd - 1) i else -1
+        return searchResult
+    }
+
+    private fun isTerminator(index: Int): Boolean =
+        index + 1 < regionEnd && text[index] == '}' && isCurrency(text[index + 1])
+
+    private fun setGroup(group: Int, start: Int, end: Int) {
+        groups[group * 2 - 2] = start
+        groups[group * 2 - 1] = end
+    }
+
+    private fun checkMatch() {
+        if (matchStart == -1) throw IllegalStateException("No match found")
+    }
+
+    override fun start(): Int = start(0)
+
+    override fun start(group: Int): Int {
+        checkMatch()
+        return if (group == 0) matchStart else groups[checkGroup(group) * 2 - 2]
+    }
+
+    override fun end(): Int = end(0)
+
+    override fun end(group: Int): Int {
+        checkMatch()
+        return if (group == 0) matchEnd else groups[checkGroup(group) * 2 - 1]
+    }
+
+    override fun group(): String = group(0)!!
+
+    override fun group(group: Int): String? {
+        val start = start(group)
+        return if (start == -1) null else text.subSequence(start, end(group)).toString()
+    }
+
+    override fun groupCount(): Int = GROUP_COUNT
+
+    private fun checkGroup(group: Int): Int {
+        if (group !in 0..GROUP_COUNT) throw IndexOutOfBoundsException("No group $group")
+        return group
+    }
+
+    companion object {
+        private const val GROUP_COUNT = 3
+
+        /**
+         * Matches the characters of `\s` in [java.util.regex.Pattern].
+         */
+        fun isWhitespace(c: Char): Boolean =
+            c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\u000C' || c == '\r'
+
+        /**
+         * Checks whether [c] can follow `}` to end a command.
+         */
+        fun isCurrency(c: Char): Boolean = c == '$' || c == '₽' || c == '₴'
+    }
+}
@@ -0,0 +1,207 @@
+package com.wavecat.inline.service.commands
+
+import com.wavecat.inline.service.commands.CommandTokenizer.Companion.isCurrency
+import com.wavecat.inline.service.commands.CommandTokenizer.Companion.isWhitespace
+
+/**
+ * Tracks the text of the edited field and narrows command detection to the
+ * region affected by the latest edit.
+ *
+ * The edit is found with a common prefix/suffix diff against the previous text.
+ * Commands of the default pattern end with a terminator (`}` followed by `$`,
+ * `₽` or `₴`), so the scan only has to cover the edit widened to the
+ * surrounding terminators that no command can run through.
+ *
+ * The matches of the previous text are remembered through [matched]. An edit
+ * touching one of them may break it up and expose other commands anywhere
+ * inside it, so the window also covers every match the edit touches.
+ *
+ * @property delimited Whether commands are known to end with a terminator.
+ *                     When `false` the whole text is always rescanned.
+ */
+class EditTracker(private val delimited: Boolean) {
+    /**
+     * Text seen by the last call to [update].
+     */
+    var previousText: String? = null
+        private set
+
+    private var spans = ArrayList<IntRange>()
+
+    /**
+     * Spans of the matches in [previousText], in order: those reported through
+     * [matched] and those of earlier texts the edits did not touch.
+     */
+    val matches: List<IntRange>
+        get() = spans
+
+    /**
+     * Where the next match reported through [matched] belongs in [spans].
+     */
+    private var insertAt = 0
+
+    /**
+     * Records the new text of the field.
+     *
+     * Every match found in the returned range has to be reported through [matched].
+     *
+     * @param text The current text of the field
+     * @return The range of [text] that has to be scanned for commands,
+     *         or `null` if the text did not change
+     */
+    fun update(text: String): IntRange? {
+        val previous = previousText
+        if (text == previous) return null
+
+        previousText = text
+
+        if (previous == null || !delimited) {
+            spans.clear()
+            insertAt = 0
+            return text.indices
+        }
+
+        val shortest = minOf(text.length, previous.length)
+
+        var prefix = 0
+        while (prefix < shortest && text[prefix] == previous[prefix]) prefix++
+
+        var suffix = 0
+        while (suffix < shortest - prefix &&
+            text[text.length - 1 - suffix] == previous[previous.length - 1 - suffix]
+        ) suffix++
+
+        val editEnd = previous.length - suffix
+        val shift = text.length - previous.length
+
+        var start = prefix
+        var end = text.length - suffix
+        var kept = ArrayList<IntRange>(spans.size)
+
+        for (match in spans) {
+            when {
+                match.last + 1 < prefix -> kept.add(match)
+                match.first > editEnd -> kept.add(match.first + shift..match.last + shift)
+                else -> {
+                    start = minOf(start, match.first)
+                    end = maxOf(end, match.last + 1 + shift)
+                }
+            }
+        }
+
+        while (true) {
+            val window = window(text, start, end)
+            val from = window.first
+            val to = window.last + 1
+
+            // Matches kept so far are scanned again if the window reaches into them
+            val outside = kept.filter { it.last + 1 <= from || it.first >= to }
+            val inside = kept.filter { it.last + 1 > from && it.first < to }
+
+            val first = inside.firstOrNull()?.first ?: from
+            val last = inside.lastOrNull()?.let { it.last + 1 } ?: to
+
+            if (first >= from && last <= to) {
+                spans = ArrayList(outside)
+                insertAt = outside.count { it.first < from }
+                return window
+            }
+
+            start = minOf(from, first)
+            end = maxOf(to, last)
+            kept = ArrayList(outside)
+        }
+    }
+
+    /**
+     * Reports a match found in the range returned by the last [update].
+     *
+     * @param start Index of the first character of the match
+     * @param end Index after the last character of the match
+     */
+    fun matched(start: Int, end: Int) {
+        spans.add(insertAt++, start until end)
+    }
+
+    /**
+     * Forgets the previous text so that the next update rescans everything.
+     */
+    fun reset() {
+        previousText = null
+        spans.clear()
+        insertAt = 0
+    }
+
+    companion object {
+        /**
+         * Distance from a terminator back to the latest whitespace that lets it
+         * close the arguments of a command, as in `{a b}$`.
+         */
+        private const val ARGUMENTS_GAP = 4
+
+        /**
+         * Expands the edited range `[start, end)` to the nearest safe boundaries around it.
+         *
+         * The last `{` before the candidate boundary and the last whitespace early
+         * enough to close its arguments are tracked as the candidate moves, so each
+         * direction reads every character at most twice.
+         */
+        fun window(text: String, start: Int, end: Int): IntRange {
+            var from = start
+            var brace = text.lastIndexOf('{', from - 1)
+            var space = lastWhitespace(text, from - ARGUMENTS_GAP)
+
+            while (from > 0 && !isBoundary(text, from, brace, space)) {
+                from--
+                if (brace >= from) brace = text.lastIndexOf('{', from - 1)
+                if (space > from - ARGUMENTS_GAP) space = lastWhitespace(text, from - ARGUMENTS_GAP)
+            }
+
+            var to = end
+            brace = text.lastIndexOf('{', to - 1)
+            space = lastWhitespace(text, to - ARGUMENTS_GAP)
+
+            while (to < text.length && !isBoundary(text, to, brace, space)) {
+                to++
+                if (text[to - 1] == '{') brace = to - 1
+                if (to >= ARGUMENTS_GAP && isWhitespace(text[to - ARGUMENTS_GAP])) space = to - ARGUMENTS_GAP
+            }
+
+            return from until to
+        }
+
+        /**
+         * Checks whether no command can span [index].
+         *
+         * That holds right after a terminator which does not continue a chain
+         * of commands, provided every `{` before it is followed by whitespace
+         * early enough for the terminator to close its arguments. Otherwise a
+         * whitespace-free command name could run through the terminator.
+         *
+         * @param brace Position of the last `{` before [index], or -1
+         * @param space Position of the last whitespace at least [ARGUMENTS_GAP]
+         *              characters before [index], or -1
+         */
+        private fun isBoundary(text: String, index: Int, brace: Int, space: Int): Boolean {
+            if (index == 0 || index == text.length) return true
+            if (!isTerminatorEnd(text, index) || text[index] == '{') return false
+
+            return brace < 0 || space > brace
+        }
+
+        /**
+         * Returns the position of the last whitespace at or before [from], or -1.
+         */
+        private fun lastWhitespace(text: String, from: Int): Int {
+            var i = minOf(from, text.length - 1)
+            while (i >= 0 && !isWhitespace(text[i])) i--
+            return i
+        }
+
+        /**
+         * Checks whether a terminator ends right before [index].
+         */
+        private fun isTerminatorEnd(text: String, index: Int): Boolean =
+            index >= 2 && text[index - 2] == '}' && isCurrency(text[index - 1])
+    }
+}
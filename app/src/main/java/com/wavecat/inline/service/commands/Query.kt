@@ -1,6 +1,7 @@
 package com.wavecat.inline.service.commands
 
 import android.view.accessibility.AccessibilityNodeInfo
+import com.wavecat.inline.service.InlineService
 import com.wavecat.inline.service.InlineService.Companion.setSelection
 import com.wavecat.inline.service.InlineService.Companion.setText
 
@@ -8,42 +9,144 @@ import com.wavecat.inline.service.InlineService.Companion.setText
  * Represents a query made by the user in an input field.
  *
  * This class encapsulates information about the query, such as the input field's
- * AccessibilityNodeInfo, the current text in the field, the matched expression,
+ * AccessibilityNodeInfo, the span of the text that matched the query pattern,
  * and any arguments provided with the query. It also provides methods to manipulate
  * the text in the input field and answer the query.
  *
+ * Queries found in the same event share one [TextEdits], so their answers and
+ * edits are applied to the field together once all of them ran. Positions
+ * taken and returned by this class refer to [text].
+ *
  * @property accessibilityNodeInfo The AccessibilityNodeInfo of the input field.
- * @property currentText The current text in the input field when the query was made.
- * @property expression The specific part of the currentText that matched the query pattern.
+ * @property edits The pending edits of the input field.
  * @property args Any arguments provided with the query (text following the matched expression).
  */
-open class Query(
+open class Query private constructor(
     val accessibilityNodeInfo: AccessibilityNodeInfo,
-    protected var currentText: String,
-    val expression: String,
+    protected val edits: TextEdits,
+    protected val span: TextEdits.Span,
     val args: String,
 ) {
-    var text: String
-        protected set
+    /**
+     * Creates a query for a match found in the text of [edits].
+     *
+     * @param start Start of the match in the text
+     * @param end End of the match in the text, exclusive
+     */
+    constructor(
+        accessibilityNodeInfo: AccessibilityNodeInfo,
+        edits: TextEdits,
+        start: Int,
+        end: Int,
+        args: String,
+    ) : this(accessibilityNodeInfo, edits, edits.span(start, end), args)
 
-    init {
-        text = currentText
-    }
+    /**
+     * Creates a query for the first occurrence of [expression] in [currentText],
+     * whose edits are applied to the field immediately.
+     */
+    constructor(
+        accessibilityNodeInfo: AccessibilityNodeInfo,
+        currentText: String,
+        expression: String,
+        args: String,
+    ) : this(accessibilityNodeInfo, textEdits(accessibilityNodeInfo, currentText), expression, args)
+
+    private constructor(
+        accessibilityNodeInfo: AccessibilityNodeInfo,
+        edits: TextEdits,
+        expression: String,
+        args: String,
+    ) : this(accessibilityNodeInfo, edits, edits.find(expression), args)
+
+    /**
+     * Creates a query for the same match as [query].
+     */
+    protected constructor(query: Query) : this(query.accessibilityNodeInfo, query.edits, query.span, query.args)
 
     /**
-     * Replaces the matched expression in the [currentText] with the provided [replacement] string.
+     * The specific part of the text that matched the query pattern.
+     */
+    val expression: String = edits.base.substring(span.start, span.end)
+
+    /**
+     * The text as last applied to the input field.
+     */
+    protected val currentText: String
+        get() = edits.base
+
+    /**
+     * The text of the input field, including the edits that are not applied yet.
+     */
+    val text: String
+        get() = edits.text
+
+    /**
+     * Start of the matched expression, or of the answer once answered.
+     */
+    val start: Int
+        get() = edits.startOf(span)
+
+    /**
+     * End of the matched expression, or of the answer once answered, exclusive.
+     */
+    val end: Int
+        get() = edits.endOf(span)
+
+    val startPosition: Int
+        get() = start
+
+    /**
+     * Returns the [text] with the matched expression replaced, without changing the field.
      *
      * @param replacement The string to replace the matched expression with.
      * @return The string with the expression replaced.
      */
     fun replaceExpression(replacement: String): String {
-        val index = currentText.indexOf(expression)
-        if (index == -1) return currentText
-        return currentText.substring(0, index) + replacement + currentText.substring(index + expression.length)
+        val text = text
+        val start = start
+        val end = end
+
+        return StringBuilder(text.length - (end - start) + replacement.length)
+            .append(text, 0, start)
+            .append(replacement)
+            .append(text, end, text.length)
+            .toString()
     }
 
-    val startPosition: Int
-        get() = currentText.indexOf(expression)
+    /**
+     * Replaces a range of the [text].
+     *
+     * @param start Start of the range
+     * @param end End of the range, exclusive
+     * @param replacement The new content
+     */
+    fun replace(start: Int, end: Int, replacement: String) = edits.replace(start, end, replacement)
+
+    /**
+     * Inserts a string into the [text].
+     *
+     * @param position Position to insert at
+     * @param insertion The string to insert
+     */
+    fun insert(position: Int, insertion: String) = edits.insert(position, insertion)
+
+    /**
+     * Deletes a range of the [text].
+     *
+     * @param start Start of the range
+     * @param end End of the range, exclusive
+     */
+    fun delete(start: Int, end: Int) = edits.delete(start, end)
+
+    /**
+     * Applies the pending edits of the input field and performs the node
+     * actions requested so far right away.
+     */
+    fun flush() {
+        edits.flush()
+        InlineService.flush()
+    }
 
     /**
      * Replaces the matched expression in the text field with the given reply and sets the cursor position.
@@ -53,17 +156,24 @@ open class Query(
      *                    Otherwise, the cursor is moved to the end of the replaced text.
      */
     open fun answer(reply: String?, cursorToEnd: Boolean = false) {
-        val message = reply.orEmpty()
-        text = replaceExpression(message)
-
-        val position = if (cursorToEnd) text.length else
-            accessibilityNodeInfo.textSelectionStart - expression.length + message.length
-
-        setText(accessibilityNodeInfo, text)
-        setSelection(accessibilityNodeInfo, position, position)
+        edits.moveCursor(if (cursorToEnd) null else span)
+        edits.replace(span, reply.orEmpty())
     }
 
     override fun toString(): String {
         return "Query(currentText=$currentText, expression=$expression, args=$args, text=$text)"
     }
+
+    companion object {
+        /**
+         * Creates the edits of an input field, applied with `ACTION_SET_TEXT`.
+         *
+         * @param accessibilityNodeInfo The input field
+         * @param text The current text of the field
+         */
+        fun textEdits(accessibilityNodeInfo: AccessibilityNodeInfo, text: String) = TextEdits(text) { newText, cursor ->
+            setText(accessibilityNodeInfo, newText)
+            if (cursor != -1) setSelection(accessibilityNodeInfo, cursor, cursor)
+        }
+    }
 }
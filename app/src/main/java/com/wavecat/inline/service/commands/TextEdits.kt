@@ -0,0 +1,317 @@
+package com.wavecat.inline.service.commands
+
+/**
+ * Pending edits to the text of an input field.
+ *
+ * Edits are kept as non-overlapping ranges of the last applied [base] text
+ * together with their replacement, so that commands found in one scan can
+ * each rewrite their own match without shifting the others. Positions given
+ * to [replace], [insert] and [delete] refer to [text], the base text with
+ * the pending edits applied, and are translated back.
+ *
+ * Spans created with [span] follow the text: once edits are applied they describe the
+ * same content in the new base text, or the replacement if they were
+ * replaced themselves.
+ *
+ * While a [batch] runs edits are only collected; the new text is built once
+ * and handed to [apply] together with the cursor position when it ends.
+ * Outside a batch every edit is applied immediately.
+ *
+ * Not thread-safe, meant to be used from the thread running Lua.
+ *
+ * @param text The current text of the field
+ * @property apply Receives the new text and cursor position, `-1` to leave the cursor alone
+ */
+class TextEdits(text: String, private val apply: (text: String, cursor: Int) -> Unit) {
+    private val edits = ArrayList<Edit>()
+    private val spans = ArrayList<Span>()
+
+    private var cursorSpan: Span? = null
+    private var cursorToEnd = false
+    private var depth = 0
+    private var preview: String? = null
+
+    /**
+     * The text as last applied to the field.
+     */
+    var base: String = text
+        private set
+
+    /**
+     * The text with all pending edits applied.
+     */
+    val text: String
+        get() = preview ?: (if (edits.isEmpty()) base else build()).also { preview = it }
+
+    /**
+     * Whether edits are currently collected instead of applied.
+     */
+    val deferred: Boolean
+        get() = depth > 0
+
+    /**
+     * A range of the text that keeps pointing at the same content.
+     *
+     * @property start Start of the range in [base]
+     * @property end End of the range in [base], exclusive
+     */
+    class Span internal constructor(start: Int, end: Int) {
+        var start = start
+            internal set
+
+        var end = end
+            internal set
+    }
+
+    private class Edit(val start: Int, val end: Int, var replacement: String) {
+        val delta: Int
+            get() = replacement.length - (end - start)
+    }
+
+    /**
+     * Tracks a range of [base].
+     *
+     * @param start Start of the range
+     * @param end End of the range, exclusive
+     */
+    fun span(start: Int, end: Int): Span {
+        checkRange(start, end, base.length)
+        return Span(start, end).also { spans.add(it) }
+    }
+
+    /**
+     * Tracks the first occurrence of [expression] in [base], or the end of the text if there is none.
+     */
+    fun find(expression: String): Span {
+        val index = base.indexOf(expression)
+        return if (index == -1) span(base.length, base.length) else span(index, index + expression.length)
+    }
+
+    /**
+     * Position of the start of a span in [text].
+     */
+    fun startOf(span: Span): Int = map(span.start, true)
+
+    /**
+     * Position of the end of a span in [text], exclusive.
+     */
+    fun endOf(span: Span): Int = edits.find { it.start == span.start && it.end == span.end }
+        ?.let { startOf(span) + it.replacement.length }
+        ?: map(span.end, false)
+
+    /**
+     * Replaces the content of a span. Replacing it again before the edits are
+     * applied supersedes the previous replacement.
+     *
+     * @param span The span to replace
+     * @param replacement The new content
+     */
+    fun replace(span: Span, replacement: String) {
+        add(span.start, span.end, replacement)
+        changed()
+    }
+
+    /**
+     * Replaces a range of [text].
+     *
+     * @param start Start of the range
+     * @param end End of the range, exclusive
+     * @param replacement The new content
+     * @throws IllegalArgumentException If the range overlaps the replacement of another pending edit
+     */
+    fun replace(start: Int, end: Int, replacement: String) {
+        checkRange(start, end, text.length)
+
+        var delta = 0
+        var leading = false
+
+        for (edit in edits) {
+            val editStart = edit.start + delta
+            val editEnd = editStart + edit.replacement.length
+
+            if (editStart >= end) {
+                leading = editStart == start && edit.start == edit.end
+                break
+            }
+
+            if (start == editStart && end == editEnd && start < end) {
+                edit.replacement = replacement
+                return changed()
+            }
+
+            require(editEnd <= start) {
+                "Range $start..$end overlaps a pending edit"
+            }
+
+            delta += edit.delta
+        }
+
+        add(start - delta, end - delta, replacement, leading)
+        changed()
+    }
+
+    /**
+     * Inserts text at a position of [text].
+     */
+    fun insert(position: Int, insertion: String) = replace(position, position, insertion)
+
+    /**
+     * Deletes a range of [text].
+     */
+    fun delete(start: Int, end: Int) = replace(start, end, "")
+
+    /**
+     * Places the cursor after a span once the edits are applied.
+     *
+     * @param span The span to place the cursor after, `null` to place it at the end of the text
+     */
+    fun moveCursor(span: Span?) {
+        cursorSpan = span
+        cursorToEnd = span == null
+    }
+
+    /**
+     * Collects the edits made by [block] and applies them at once.
+     */
+    fun batch(block: () -> Unit) {
+        depth++
+        try {
+            block()
+        } finally {
+            if (--depth == 0) flush()
+        }
+    }
+
+    /**
+     * Applies the pending edits to the field, even inside a [batch].
+     */
+    fun flush() {
+        commit() ?: return
+
+        val cursor = when {
+            cursorToEnd -> base.length
+            else -> cursorSpan?.end ?: -1
+        }
+
+        cursorSpan = null
+        cursorToEnd = false
+
+        apply(base, cursor)
+    }
+
+    /**
+     * Records the content of a span that was already replaced in the field by
+     * other means, applying the other pending edits first.
+     *
+     * @param span The replaced span
+     * @param content The new content of the span
+     */
+    fun replaced(span: Span, content: String) {
+        flush()
+        add(span.start, span.end, content)
+        preview = null
+        commit()
+    }
+
+    /**
+     * Makes the pending edits part of [base] without applying them to the field.
+     *
+     * @return The new base text, `null` if there were no pending edits
+     */
+    private fun commit(): String? {
+        if (edits.isEmpty()) return null
+
+        val result = text
+
+        for (span in spans) {
+            val end = endOf(span)
+            span.start = startOf(span)
+            span.end = end
+        }
+
+        edits.clear()
+        base = result
+        preview = result
+
+        return result
+    }
+
+    private fun changed() {
+        preview = null
+        if (depth == 0) flush()
+    }
+
+    /**
+     * Adds an edit of [base], merging insertions at the same position.
+     *
+     * @param leading Whether an insertion goes before an earlier one at the same position
+     */
+    private fun add(start: Int, end: Int, replacement: String, leading: Boolean = false) {
+        var index = edits.size
+        while (index > 0 && edits[index - 1].start > start) index--
+
+        // An insertion at the start of a replaced range goes before it
+        if (start == end)
+            while (index > 0 && edits[index - 1].start == start && edits[index - 1].end > start) index--
+
+        val previous = edits.getOrNull(index - 1)
+        if (previous != null && previous.start == start && previous.end == end) {
+            previous.replacement = when {
+                start != end -> replacement
+                leading -> replacement + previous.replacement
+                else -> previous.replacement + replacement
+            }
+            return
+        }
+
+        val next = edits.getOrNull(index)
+
+        require((previous == null || previous.end <= start) && (next == null || end <= next.start)) {
+            "Edit $start..$end overlaps a pending edit"
+        }
+
+        edits.add(index, Edit(start, end, replacement))
+    }
+
+    private fun build(): String {
+        val builder = StringBuilder(base.length + edits.sumOf { it.delta })
+        var position = 0
+
+        for (edit in edits) {
+            builder.append(base, position, edit.start).append(edit.replacement)
+            position = edit.end
+        }
+
+        return builder.append(base, position, base.length).toString()
+    }
+
+    /**
+     * Translates a position of [base] into [text].
+     *
+     * @param leading Whether insertions at the position go before it
+     */
+    private fun map(position: Int, leading: Boolean): Int {
+        var delta = 0
+
+        for (edit in edits) {
+            when {
+                edit.end < position || (edit.end == position && (leading || edit.start < edit.end)) ->
+                    delta += edit.delta
+
+                edit.start < position && position < edit.end ->
+                    return edit.start + delta + if (leading) 0 else edit.replacement.length
+
+                else -> break
+            }
+        }
+
+        return position + delta
+    }
+
+    companion object {
+        private fun checkRange(start: Int, end: Int, length: Int) {
+            if (start < 0 || end < start || end > length)
+                throw IndexOutOfBoundsException("Range $start..$end out of bounds for length $length")
+        }
+    }
+}
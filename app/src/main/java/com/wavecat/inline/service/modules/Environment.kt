@@ -195,8 +195,11 @@ private fun Globals.loadModuleByStrategy(
     scriptProvider: () -> String,
 ) {
     when {
-        isLazy -> loadLazyStubs(service.allCommands, lazyCommands, lazyPrefs, service.loadedModules, path) {
-            executeModule(service, scriptProvider(), path, isInternal)
+        isLazy -> {
+            loadLazyStubs(service.allCommands, lazyCommands, lazyPrefs, service.loadedModules, path) {
+                executeModule(service, scriptProvider(), path, isInternal)
+            }
+            service.commandCache.invalidate()
         }
 
         else -> {
@@ -1,9 +1,11 @@
 package com.wavecat.inline.service.modules
 
 import android.content.SharedPreferences
-import com.wavecat.inline.extensions.varArgFunction
+import com.wavecat.inline.service.ModuleAccounting
 import com.wavecat.inline.service.commands.Command
 import org.luaj.vm2.LuaValue
+import org.luaj.vm2.Varargs
+import org.luaj.vm2.lib.VarArgFunction
 
 const val LAZYLOAD: String = "lazyload"
 
@@ -44,7 +46,7 @@ fun loadLazyStubs(
         allCommands[name] = Command(
             category = category,
             description = description,
-            callable = varArgFunction { args ->
+            callable = LazyStub(modulePath) { args ->
                 if (modulePath !in loadedModules) {
                     load()
                 }
@@ -52,4 +54,14 @@ fun loadLazyStubs(
             }
         )
     }
+}
+
+/**
+ * Command callable standing in for a module that is not loaded yet.
+ *
+ * Loading is charged to the module in [ModuleAccounting] like the command itself.
+ */
+private class LazyStub(override val module: String, private val block: (Varargs) -> Varargs) :
+    VarArgFunction(), ModuleAccounting.Attributed {
+    override fun onInvoke(args: Varargs): Varargs = block(args)
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ import org.luaj.vm2.LuaFunction
 import org.luaj.vm2.LuaValue
 import org.luaj.vm2.Varargs
 import org.luaj.vm2.lib.PackageLib
+import org.luaj.vm2.lib.ResolutionCache
 import org.luaj.vm2.lib.VarArgFunction
 import org.luaj.vm2.lib.jse.JavaClass
 
@@ -20,14 +21,20 @@ import org.luaj.vm2.lib.jse.JavaClass
  * If the class is found and successfully instantiated, and it is a LuaFunction,
  * its first upvalue is initialized with the global environment.
  *
+ * Lookups of classes, including failed ones, are remembered in
+ * [ResolutionCache.SHARED], as the classes of the app do not change while it
+ * runs and a miss costs a [ClassNotFoundException] every time.
+ *
  * @property globals The global Lua environment.
  */
 class LuaSearcher(private val globals: Globals) : VarArgFunction() {
     override fun invoke(args: Varargs): Varargs {
         val name = LIBRARIES[args.checkjstring(1)] ?: args.checkjstring(1)
         val classname = PackageLib.toClassname(name)
+        val clazz = findClass(classname)
+            ?: return tryBindJavaClass(name) ?: valueOf("\n\tno class '$classname'")
+
         return try {
-            val clazz = Class.forName(classname)
             val instance = clazz.getDeclaredConstructor().newInstance()
             if (instance is LuaValue) {
                 if (instance is LuaFunction) instance.initupvalue1(globals)
@@ -35,20 +42,32 @@ class LuaSearcher(private val globals: Globals) : VarArgFunction() {
             } else {
                 bindJavaClass(clazz, name)
             }
-        } catch (_: ClassNotFoundException) {
-            tryBindJavaClass(name) ?: valueOf("\n\tno class '$classname'")
         } catch (e: Exception) {
             tryBindJavaClass(name) ?: valueOf("\n\tjava load failed on '$classname', $e")
         }
     }
 
     private fun tryBindJavaClass(name: String): Varargs? =
-        try {
-            bindJavaClass(Class.forName(name), name)
+        findClass(name)?.let { bindJavaClass(it, name) }
+
+    /**
+     * Returns the class with the given name, `null` if there is none.
+     */
+    private fun findClass(name: String): Class<*>? {
+        val key = CLASS_KEY + name
+        val cached = ResolutionCache.SHARED.get(key)
+        if (cached !== ResolutionCache.NONE) return cached as Class<*>?
+
+        val clazz = try {
+            Class.forName(name)
         } catch (_: ClassNotFoundException) {
             null
         }
 
+        ResolutionCache.SHARED.put(key, clazz)
+        return clazz
+    }
+
     private fun bindJavaClass(clazz: Class<*>, name: String): Varargs {
         val loader = oneArgFunction { JavaClass.forClass(clazz) }
         return varargsOf(loader, valueOf(name))
@@ -60,6 +79,11 @@ class LuaSearcher(private val globals: Globals) : VarArgFunction() {
          */
         private const val PACKAGE = "com.wavecat.inline.libs"
 
+        /**
+         * Prefix of the keys of class lookups in [ResolutionCache].
+         */
+        private const val CLASS_KEY = "class\u0000"
+
         /**
          * A map of library names to their corresponding package names.
          * This allows Lua scripts to `require` libraries using short names
@@ -72,7 +96,9 @@ class LuaSearcher(private val globals: Globals) : VarArgFunction() {
             "utils" to "$PACKAGE.Utils",
             "menu" to "$PACKAGE.Menu",
             "colorama" to "$PACKAGE.Colorama",
-            "windows" to "$PACKAGE.Windows"
+            "windows" to "$PACKAGE.Windows",
+            "profiler" to "$PACKAGE.Profiler",
+            "bench" to "$PACKAGE.Bench"
         )
     }
 }
\ No newline at end of file
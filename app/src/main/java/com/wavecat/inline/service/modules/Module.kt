@@ -89,6 +89,7 @@ class Module(
         )
         mCommands[name] = command
         service.allCommands[name] = command
+        service.commandCache.invalidate()
     }
 
     /**
@@ -110,6 +111,7 @@ class Module(
         Log.d("Module", "Unregistering command: $name")
         mCommands.remove(name)
         service.allCommands.remove(name)
+        service.commandCache.invalidate()
     }
 
     /**
@@ -150,15 +152,37 @@ class Module(
     /**
      * Registers a Lua function as a command finder.
      *
+     * A finder declared pure promises to return the same result for the same
+     * command name and callable, without depending on the arguments or any
+     * other state, and to leave the arguments unchanged. While all finders are
+     * pure, resolved names are cached in [InlineService.commandCache]. A pure
+     * finder whose answers depend on external data, such as stored aliases,
+     * must call `invalidate()` on that cache when the data changes.
+     *
      * @param callable The Lua function to register as a command finder.
+     * @param pure Whether the finder's results may be cached.
      */
-    fun registerCommandFinder(callable: LuaValue) {
+    fun registerCommandFinder(callable: LuaValue, pure: Boolean) {
         Log.d("Module", "Registering command finder")
         callable.checkfunction()
         mCommandFinders.add(callable)
         service.allCommandFinders.add(callable)
+
+        if (pure)
+            service.commandCache.addPureFinder(callable)
+        else
+            service.commandCache.invalidate()
     }
 
+    /**
+     * Registers a Lua function as a command finder that is not pure.
+     *
+     * @param callable The Lua function to register as a command finder.
+     * @see registerCommandFinder
+     */
+    fun registerCommandFinder(callable: LuaValue) =
+        registerCommandFinder(callable, false)
+
     /**
      * Unregisters a command finder.
      *
@@ -172,6 +196,7 @@ class Module(
         callable.checkfunction()
         mCommandFinders.remove(callable)
         service.allCommandFinders.remove(callable)
+        service.commandCache.removePureFinder(callable)
     }
 
     /**
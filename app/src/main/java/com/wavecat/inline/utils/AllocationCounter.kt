@@ -0,0 +1,34 @@
+package com.wavecat.inline.utils
+
+import java.lang.reflect.Method
+
+/**
+ * Bytes allocated by the current thread, as counted by the runtime.
+ *
+ * The JVM counts them at no cost through `com.sun.management.ThreadMXBean`,
+ * which Android does not have.
+ */
+object AllocationCounter {
+    private val counter: (() -> Long)? = runCatching {
+        val factory = Class.forName("java.lang.management.ManagementFactory")
+        val bean = factory.getMethod("getThreadMXBean").invoke(null)
+        val type = Class.forName("com.sun.management.ThreadMXBean")
+
+        check(type.getMethod("isThreadAllocatedMemoryEnabled").invoke(bean) == true)
+
+        val method: Method = type.getMethod("getThreadAllocatedBytes", Long::class.javaPrimitiveType)
+        val counter = { method.invoke(bean, Thread.currentThread().id) as Long }
+        counter.also { it() }
+    }.getOrNull()
+
+    /**
+     * Whether the runtime counts allocations.
+     */
+    val isAvailable: Boolean
+        get() = counter != null
+
+    /**
+     * Returns the bytes allocated by the current thread so far, `-1` if the runtime does not count them.
+     */
+    fun currentThread(): Long = counter?.invoke() ?: -1
+}
@@ -0,0 +1,80 @@
+package com.wavecat.inline.utils
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free histogram of durations with power-of-two microsecond buckets.
+ *
+ * Bucket `i` counts durations below `2^i` microseconds that did not fit
+ * into a smaller bucket, so recording is a single atomic increment.
+ */
+class LatencyHistogram {
+    private val buckets = AtomicLongArray(BUCKETS)
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    fun record(nanos: Long) {
+        val micros = (nanos / 1000).coerceAtLeast(0)
+        val bucket = (64 - java.lang.Long.numberOfLeadingZeros(micros)).coerceAtMost(BUCKETS - 1)
+        buckets.incrementAndGet(bucket)
+    }
+
+    /**
+     * Total number of recorded durations.
+     */
+    val count: Long
+        get() = (0 until BUCKETS).sumOf { buckets.get(it) }
+
+    /**
+     * Returns the upper bound of the bucket containing the given percentile.
+     *
+     * @param percentile Percentile between 0 and 100
+     * @return Upper bound in microseconds, 0 if nothing was recorded
+     */
+    fun percentile(percentile: Double): Long {
+        val total = count
+        if (total == 0L) return 0
+
+        val rank = Math.ceil(total * percentile / 100).toLong().coerceAtLeast(1)
+        var seen = 0L
+
+        for (i in 0 until BUCKETS) {
+            seen += buckets.get(i)
+            if (seen >= rank) return 1L shl i
+        }
+
+        return 1L shl (BUCKETS - 1)
+    }
+
+    /**
+     * Clears all buckets.
+     */
+    fun reset() {
+        for (i in 0 until BUCKETS) buckets.set(i, 0)
+    }
+
+    /**
+     * Formats the non-empty buckets, one `< bound: count` line each.
+     */
+    override fun toString(): String = buildString {
+        for (i in 0 until BUCKETS) {
+            val value = buckets.get(i)
+            if (value == 0L) continue
+            if (isNotEmpty()) append('\n')
+            append("< ").append(formatMicros(1L shl i)).append(": ").append(value)
+        }
+    }
+
+    companion object {
+        private const val BUCKETS = 32
+
+        private fun formatMicros(micros: Long) = when {
+            micros >= 1_000_000 -> "${micros / 1_000_000} s"
+            micros >= 1000 -> "${micros / 1000} ms"
+            else -> "$micros us"
+        }
+    }
+}
@@ -2,6 +2,9 @@ package com.wavecat.inline.utils
 
 import android.os.Handler
 import android.os.Looper
+import com.wavecat.inline.service.InlineService
+import com.wavecat.inline.service.ModuleAccounting
+import org.luaj.vm2.LuaValue
 
 /**
  * Executes the given function on the main UI thread.
@@ -15,4 +18,34 @@ import android.os.Looper
  * @see Handler
  * @see Looper.getMainLooper
  */
-fun runOnUiThread(body: () -> Unit) = Handler(Looper.getMainLooper()).post { body() }
\ No newline at end of file
+fun runOnUiThread(body: () -> Unit) = Handler(Looper.getMainLooper()).post { body() }
+
+/**
+ * Executes the given function on the thread Lua runs on.
+ *
+ * Callbacks into Lua must go through here rather than [runOnUiThread],
+ * so that node actions they request are collected like those of events.
+ * Falls back to the UI thread while the service is not running.
+ *
+ * @param body The function to execute on the Lua thread
+ * @see com.wavecat.inline.service.LuaLane
+ */
+fun runOnLuaThread(body: () -> Unit) =
+    InlineService.instance?.luaLane?.post(body) ?: runOnUiThread(body)
+
+/**
+ * Calls a Lua callback of a view or window, such as a click listener, on the Lua thread.
+ *
+ * The call is made right away and charged to the module of [callback] like
+ * any other dispatch, see [InlineService.dispatch]. Runs [body] directly
+ * while the service is not running.
+ *
+ * @param callback The called function
+ * @param body Performs the call
+ * @return The result of [body]
+ * @see com.wavecat.inline.service.LuaLane.call
+ */
+fun <T> callOnLuaThread(callback: LuaValue, body: () -> T): T {
+    val service = InlineService.instance ?: return body()
+    return service.luaLane.call { service.dispatch(callback, ModuleAccounting.Kind.UI, body) }
+}
@@ -138,6 +138,9 @@ public class Globals extends LuaTable {
 	/** The DebugLib instance loaded into this Globals, or null if debugging is not enabled */
 	public DebugLib debuglib;
 
+	/** Whether closures publish their call stack into {@link LuaThread#sampledClosures} for sampling profilers */
+	public boolean sampling;
+
 	/** Interface for module that converts a Prototype into a LuaFunction with an environment. */
 	public interface Loader {
 		/** Convert the prototype into a LuaFunction with the supplied environment. */
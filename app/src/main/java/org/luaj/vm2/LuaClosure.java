@@ -178,8 +178,27 @@ public class LuaClosure extends LuaFunction {
 			stack[i] = varargs.arg(i+1);
 		return execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE);
 	}
+
+	public final void invokeInto(LuaValue[] regs, int argbase, int nargs, int base, int nresults) {
+		LuaValue[] stack = getNewStack();
+		int n = Math.min(nargs, p.numparams);
+		System.arraycopy(regs, argbase, stack, 0, n);
+		Varargs varargs = p.is_vararg!=0 && nargs > n? varargsOf(regs, argbase+n, nargs-n): NONE;
+		Varargs r = execute(stack, varargs, regs, base, nresults);
+		if ( r != NONE ) // tail call, whose results are not stored yet
+			r.eval().copyto(regs, base, nresults);
+	}
 	
 	protected Varargs execute( LuaValue[] stack, Varargs varargs ) {
+		return execute(stack, varargs, null, 0, 0);
+	}
+
+	/**
+	 * Runs this closure.
+	 * @param results when not null, return values are stored into results[base..base+nresults)
+	 *        instead of being returned, and {@link #NONE} or a pending tail call is returned
+	 */
+	protected Varargs execute( LuaValue[] stack, Varargs varargs, LuaValue[] results, int base, int nresults ) {
 		// loop through instructions
 		int i,a,b,c,pc=0,top=0;
 		LuaValue o;
@@ -195,11 +214,24 @@ public class LuaClosure extends LuaFunction {
 		if (globals != null && globals.debuglib != null)
 			globals.debuglib.onCall( this, varargs, stack );
 
+		// publish the call stack for sampling profilers
+		final LuaThread sampled = globals != null && globals.sampling? globals.running: null;
+		final int frame = sampled != null? sampled.enterSampled(this): 0;
+		final int[] pcs = frame < LuaThread.MAX_CALLSTACK && sampled != null? sampled.sampledPcs: null;
+
+		// count calls and backward jumps against the budget of the thread, if any
+		final LuaThread budgeted = globals != null && globals.running.budgeted? globals.running: null;
+
 		// process instructions
 		try {
+			if (budgeted != null && --budgeted.budgetTicks <= 0)
+				budgeted.checkBudget();
+
 			for (; true; ++pc) {
 				if (globals != null && globals.debuglib != null)
 					globals.debuglib.onInstruction( pc, v, top );
+				if (pcs != null)
+					pcs[frame] = pc;
 				
 				// pull out instruction
 				i = code[pc];
@@ -323,6 +355,8 @@ public class LuaClosure extends LuaFunction {
 					continue;
 					
 				case Lua.OP_JMP: /*	A sBx	pc+=sBx; if (A) close all upvalues >= R(A - 1)	*/
+					if ((i>>>14) < 0x1ffff && budgeted != null && --budgeted.budgetTicks <= 0)
+						budgeted.checkBudget();
 					pc  += (i>>>14)-0x1ffff;
 					if (a > 0) {
 						for (--a, b = openups.length; --b>=0; )
@@ -376,6 +410,12 @@ public class LuaClosure extends LuaFunction {
 					default:
 						b = i>>>23;
 						c = (i>>14)&0x1ff;
+						if ( b > 0 && c > 2 ) {
+							// fixed arguments and several results: stored in place
+							stack[a].invokeInto(stack, a+1, b-1, a, c-1);
+							v = NONE;
+							continue;
+						}
 						v = stack[a].invoke(b>0?
 							varargsOf(stack, a+1, b-1): // exact arg count
 							varargsOf(stack, a+1, top-v.narg()-(a+1), v));  // from prev top
@@ -405,6 +445,15 @@ public class LuaClosure extends LuaFunction {
 					
 				case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
 					b = i>>>23;
+					if ( results != null ) {
+						if ( b == 0 ) {
+							varargsOf(stack, a, top-v.narg()-a, v).copyto(results, base, nresults);
+						} else {
+							for ( c = 0; c < nresults; c++ )
+								results[base+c] = c < b-1? stack[a+c]: NIL;
+						}
+						return NONE;
+					}
 					switch ( b ) {
 					case 0: return varargsOf(stack, a, top-v.narg()-a, v);
 					case 1: return NONE;
@@ -421,6 +470,8 @@ public class LuaClosure extends LuaFunction {
 			            if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
 		                    stack[a] = idx;
 		                    stack[a + 3] = idx;
+		                    if (budgeted != null && --budgeted.budgetTicks <= 0)
+		                    	budgeted.checkBudget();
 		                    pc += (i>>>14)-0x1ffff;
 			            }
 					}
@@ -439,16 +490,15 @@ public class LuaClosure extends LuaFunction {
 					continue;
 
 				case Lua.OP_TFORCALL: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
-					v = stack[a].invoke(varargsOf(stack[a+1],stack[a+2]));
-					c = (i>>14) & 0x1ff;
-					while (--c >= 0)
-						stack[a+3+c] = v.arg(c+1);
+					stack[a].invokeInto(stack, a+1, 2, a+3, (i>>14) & 0x1ff);
 					v = NONE;
 					continue;
 
 				case Lua.OP_TFORLOOP: /* A sBx	if R(A+1) ~= nil then { R(A)=R(A+1); pc += sBx */
 					if (!stack[a+1].isnil()) { /* continue loop? */
 						stack[a] = stack[a+1];  /* save control varible. */
+						if (budgeted != null && --budgeted.budgetTicks <= 0)
+							budgeted.checkBudget();
 						pc += (i>>>14)-0x1ffff;
 					}
 					continue;
@@ -523,6 +573,8 @@ public class LuaClosure extends LuaFunction {
 						openups[u].close();
 			if (globals != null && globals.debuglib != null)
 				globals.debuglib.onReturn();
+			if (sampled != null)
+				sampled.sampledDepth = frame;
 		}
 	}
 
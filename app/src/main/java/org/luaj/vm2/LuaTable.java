@@ -72,6 +72,8 @@ import java.util.Vector;
  */
 public class LuaTable extends LuaValue implements Metatable {
 	private static final int      MIN_HASH_CAPACITY = 2;
+	/** A weak table with dead entries is shrunk when fewer than 1/SHRINK_LOAD of its hash slots are live. */
+	private static final int      SHRINK_LOAD = 4;
 	private static final LuaString N = valueOf("n");
 	
 	/** the array values */
@@ -327,7 +329,12 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 	}
 
-	/** Concatenate the contents of a table efficiently, using {@link Buffer}
+	/** Concatenate the contents of a table efficiently.
+	 * <p>
+	 * Without a metatable, the length of the result is computed first and
+	 * the elements are copied into a single exactly sized array, split over
+	 * several threads for results of at least {@link #PARALLEL_CONCAT_BYTES}.
+	 * Otherwise elements are appended to a {@link Buffer}.
 	 * 
 	 * @param sep {@link LuaString} separater to apply between elements
 	 * @param i the first element index
@@ -335,6 +342,111 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return {@link LuaString} value of the concatenation
 	 */
 	public LuaValue concat(LuaString sep, int i, int j) {
+		if ( m_metatable != null )
+			return concatBuffered(sep, i, j);
+		if ( i > j )
+			return EMPTYSTRING;
+
+		int count = j - i + 1;
+		int chunks = count >= PARALLEL_CONCAT_ELEMENTS? ParallelTasks.PARALLELISM: 1;
+		int[] starts = new int[chunks + 1];
+		LuaString[] converted = null;
+		long length = 0;
+		for ( int k=i, chunk=0; k<=j; k++ ) {
+			if ( chunks > 1 && k - i == (int) ((long) count * chunk / chunks) )
+				starts[chunk++] = (int) length;
+			LuaValue v = rawget(k);
+			if ( v instanceof LuaString ) {
+				length += ((LuaString) v).m_length;
+			} else if ( v instanceof LuaInteger ) {
+				length += decimalLength(((LuaInteger) v).v);
+			} else {
+				// other numbers are converted once, the strings are kept for copying
+				if ( converted == null )
+					converted = new LuaString[count];
+				length += (converted[k - i] = v.checkstring()).m_length;
+			}
+			if ( k < j )
+				length += sep.m_length;
+			if ( length > Integer.MAX_VALUE )
+				throw new LuaError("resulting string too large");
+		}
+
+		final byte[] bytes = new byte[(int) length];
+		if ( chunks == 1 || length < PARALLEL_CONCAT_BYTES ) {
+			concatInto(bytes, 0, sep, i, j, i, j, converted);
+		} else {
+			starts[chunks] = (int) length;
+			Runnable[] tasks = new Runnable[chunks];
+			for ( int chunk=0; chunk<chunks; chunk++ ) {
+				final int offset = starts[chunk];
+				final int from = i + (int) ((long) count * chunk / chunks);
+				final int to = i + (int) ((long) count * (chunk + 1) / chunks) - 1;
+				final LuaString separator = sep;
+				final int first = i, last = j;
+				final LuaString[] strings = converted;
+				tasks[chunk] = new Runnable() {
+					public void run() {
+						concatInto(bytes, offset, separator, from, to, first, last, strings);
+					}
+				};
+			}
+			ParallelTasks.run(tasks);
+		}
+		return LuaString.valueUsing(bytes);
+	}
+
+	/** Results of at least this many bytes are copied in parallel. */
+	static final int PARALLEL_CONCAT_BYTES = 1 << 22;
+
+	/** Concatenations of fewer elements are never copied in parallel. */
+	static final int PARALLEL_CONCAT_ELEMENTS = 1 << 12;
+
+	/** Copies elements from to to, each followed by the separator unless it is the last one, into bytes.
+	 * Elements that are not strings are taken from converted, indexed from the first element. */
+	private void concatInto(byte[] bytes, int offset, LuaString sep, int from, int to, int first, int last, LuaString[] converted) {
+		for ( int k=from; k<=to; k++ ) {
+			LuaValue v = rawget(k);
+			if ( v instanceof LuaInteger ) {
+				offset = writeDecimal(bytes, offset, ((LuaInteger) v).v);
+			} else {
+				LuaString s = v instanceof LuaString? (LuaString) v: converted[k - first];
+				System.arraycopy(s.m_bytes, s.m_offset, bytes, offset, s.m_length);
+				offset += s.m_length;
+			}
+			if ( k < last ) {
+				System.arraycopy(sep.m_bytes, sep.m_offset, bytes, offset, sep.m_length);
+				offset += sep.m_length;
+			}
+		}
+	}
+
+	/** Number of characters of an integer in decimal notation. */
+	private static int decimalLength(long v) {
+		int length = v < 0? 2: 1;
+		for ( v = Math.abs(v); v >= 10; v /= 10 )
+			length++;
+		return length;
+	}
+
+	/** Writes an integer in decimal notation, as {@link LuaInteger#strvalue()} would.
+	 * @return the offset after the last digit */
+	private static int writeDecimal(byte[] bytes, int offset, int value) {
+		long v = value;
+		int end = offset + decimalLength(v);
+		if ( v < 0 ) {
+			bytes[offset] = '-';
+			v = -v;
+		}
+		int p = end;
+		do {
+			bytes[--p] = (byte) ('0' + v % 10);
+			v /= 10;
+		} while ( v != 0 );
+		return end;
+	}
+
+	private LuaValue concatBuffered(LuaString sep, int i, int j) {
 		Buffer  sb = new Buffer ();
 		if ( i<=j ) {
 			sb.append( get(i).checkstring() );
@@ -384,6 +496,26 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return key,value or nil
 	 */
 	public Varargs next( LuaValue key ) {
+		return next( key, null, 0, 0 );
+	}
+
+	/**
+	 * Get the next element after a particular key in the table, storing it into
+	 * registers rather than returning a {@link Varargs}
+	 * @param key the current key, nil to start
+	 * @param into registers receiving the next key and value, nil at the end
+	 * @param base index of the register receiving the key
+	 * @param n number of registers to store, those after the value being set to nil
+	 */
+	public void nextInto( LuaValue key, LuaValue[] into, int base, int n ) {
+		next( key, into, base, n );
+	}
+
+	/**
+	 * Implements {@link #next(LuaValue)}, or {@link #nextInto(LuaValue, LuaValue[], int, int)}
+	 * when into is not null, in which case {@link #NONE} is returned.
+	 */
+	private Varargs next( LuaValue key, LuaValue[] into, int base, int n ) {
 		int i = 0;
 		do {
 			// find current key index
@@ -402,7 +534,8 @@ public class LuaTable extends LuaValue implements Metatable {
 					if ( found ) {
 						StrongSlot nextEntry = slot.first();
 						if ( nextEntry != null ) {
-							return nextEntry.toVarargs();
+							return into == null? nextEntry.toVarargs():
+								store(nextEntry.key(), nextEntry.value(), into, base, n);
 						}
 					} else if ( slot.keyeq( key ) ) {
 						found = true;
@@ -420,7 +553,8 @@ public class LuaTable extends LuaValue implements Metatable {
 			if ( array[i] != null ) {
 				LuaValue value = m_metatable == null ? array[i] : m_metatable.arrayget(array, i);
 				if (value != null) {
-					return varargsOf(LuaInteger.valueOf(i+1),value);
+					return into == null? varargsOf(LuaInteger.valueOf(i+1),value):
+						store(LuaInteger.valueOf(i+1), value, into, base, n);
 				}
 			}
 		}
@@ -431,13 +565,21 @@ public class LuaTable extends LuaValue implements Metatable {
 			while ( slot != null ) {
 				StrongSlot first = slot.first();
 				if ( first != null )
-					return first.toVarargs();
+					return into == null? first.toVarargs():
+						store(first.key(), first.value(), into, base, n);
 				slot = slot.rest();
 			}
 		}
 		
 		// nothing found, push nil, return nil.
-		return NIL;
+		return into == null? NIL: store(NIL, NIL, into, base, n);
+	}
+
+	/** Store a key and value followed by nils into registers, returning {@link #NONE}. */
+	private static Varargs store( LuaValue key, LuaValue value, LuaValue[] into, int base, int n ) {
+		for ( int i = 0; i < n; ++i )
+			into[base+i] = i == 0? key: i == 1? value: NIL;
+		return NONE;
 	}
 
 	/**
@@ -451,6 +593,23 @@ public class LuaTable extends LuaValue implements Metatable {
 		return v.isnil()? NONE: varargsOf(LuaInteger.valueOf(k),v);
 	}
 
+	/**
+	 * Get the next element of the contiguous array part of a table, storing it
+	 * into registers rather than returning a {@link Varargs}
+	 * @param key the current index
+	 * @param into registers receiving the next index and value, nil at the end
+	 * @param base index of the register receiving the index
+	 * @param n number of registers to store, those after the value being set to nil
+	 */
+	public void inextInto(LuaValue key, LuaValue[] into, int base, int n) {
+		int k = key.checkint() + 1;
+		LuaValue v = rawget(k);
+		if ( v.isnil() )
+			store(NIL, NIL, into, base, n);
+		else
+			store(LuaInteger.valueOf(k), v, into, base, n);
+	}
+
 	/**
 	 * Set a hashtable value
 	 * @param key key to set
@@ -471,6 +630,11 @@ public class LuaTable extends LuaValue implements Metatable {
 					}
 				}
 			}
+			if ( m_metatable != null && m_metatable.collected() ) {
+				if ( compactWeakEntries() && key.isinttype() && arrayset(key.toint(), value) )
+					return;
+				index = hash.length > 0 ? hashSlot( key ) : 0;
+			}
 			if ( checkLoadFactor() ) {
 				if ( (m_metatable == null || !m_metatable.useWeakValues())
 					&& key.isinttype() && key.toint() > 0 ) {
@@ -556,6 +720,32 @@ public class LuaTable extends LuaValue implements Metatable {
 		return keys;
 	}
 
+	/**
+	 * Drops the entries of collected weak keys and values, so that they no longer
+	 * lengthen lookups nor count towards the load factor.
+	 * <p>
+	 * Only called when a new key is added, as moving entries during a traversal
+	 * is fine then but not when a field is merely assigned or cleared.
+	 * @return true if the table was rehashed to a smaller size
+	 */
+	private boolean compactWeakEntries() {
+		int live = countHashKeys();
+		if ( live < hash.length / SHRINK_LOAD ) {
+			rehash( 0 );
+			return true;
+		}
+		for ( int i = 0; i < hash.length; ++i ) {
+			Slot kept = null;
+			for ( Slot slot = hash[i]; slot != null; slot = slot.rest() ) {
+				if ( !(slot instanceof DeadSlot) )
+					kept = slot.relink( kept );
+			}
+			hash[i] = kept;
+		}
+		hashEntries = live;
+		return false;
+	}
+
 	private void dropWeakArrayValues() {
 		for ( int i = 0; i < array.length; ++i ) {
 			m_metatable.arrayget(array, i);
@@ -720,7 +910,8 @@ public class LuaTable extends LuaValue implements Metatable {
 					StrongSlot entry = slot.first();
 					if (entry != null)
 						newArray[ k - 1 ] = entry.value();
-				} else if ( !(slot instanceof DeadSlot) ) {
+				} else if ( newCapacity > 0 && !(slot instanceof DeadSlot) ) {
+					// with no live keys left, remaining slots are all dead
 					int j = slot.keyindex( newHashMask );
 					newHash[j] = slot.relink( newHash[j] );
 				}
@@ -778,11 +969,13 @@ public class LuaTable extends LuaValue implements Metatable {
 
 	// ----------------- sort support -----------------------------
 	//
-	// implemented heap sort from wikipedia
-	//
-	// Only sorts the contiguous array part.
+	// Elements are copied out, sorted by TableSort and written back.
+	// Sequences with holes fall back to heap sort from wikipedia.
 	//
 	/** Sort the table using a comparator.
+	 * <p>
+	 * The table is only changed once sorting succeeded, so an error raised
+	 * by the comparator leaves it as it was.
 	 * @param comparator {@link LuaValue} to be called to compare elements.
 	 */
 	public void sort(LuaValue comparator) {
@@ -791,8 +984,30 @@ public class LuaTable extends LuaValue implements Metatable {
 			dropWeakArrayValues();
 		}
 		int n = length();
-		if ( n > 1 )
-			heapSort(n, comparator.isnil() ? null : comparator);
+		if ( n <= 1 )
+			return;
+
+		// values are held directly by the array part unless it is missing some or they are weak
+		boolean direct = n <= array.length && (m_metatable == null || !m_metatable.useWeakValues());
+		LuaValue[] values = new LuaValue[n];
+		if (direct)
+			System.arraycopy(array, 0, values, 0, n);
+		for ( int i=0; i<n; i++ ) {
+			if (!direct)
+				values[i] = rawget(i + 1);
+			if (values[i] == null || values[i].isnil()) {
+				heapSort(n, comparator.isnil() ? null : comparator);
+				return;
+			}
+		}
+
+		TableSort.sort(values, n, comparator.isnil()? TableSort.natural(values, n): TableSort.comparator(comparator));
+
+		if (direct)
+			System.arraycopy(values, 0, array, 0, n);
+		else
+			for ( int i=0; i<n; i++ )
+				rawset(i + 1, values[i]);
 	}
 
 	private void heapSort(int count, LuaValue cmpfunc) {
@@ -1368,4 +1583,8 @@ public class LuaTable extends LuaValue implements Metatable {
 	public LuaValue arrayget(LuaValue[] array, int index) {
 		return array[index];
 	}
+
+	public boolean collected() {
+		return false;
+	}
 }
@@ -106,6 +106,33 @@ public class LuaThread extends LuaValue {
 
 	/** Error message handler for this thread, if any.  */
 	public LuaValue errorfunc;
+
+	/** Closures executing on this thread while {@link Globals#sampling} is set, outermost first.
+	 * Published for sampling profilers, which may read it from other threads without synchronization. */
+	public LuaClosure[] sampledClosures;
+
+	/** Current program counter of each closure in {@link #sampledClosures}. */
+	public int[] sampledPcs;
+
+	/** Number of closures entered since sampling started, may exceed the length of {@link #sampledClosures}. */
+	public int sampledDepth;
+
+	/** Number of instructions between budget checks. */
+	public static final int BUDGET_CHECK_INTERVAL = 1024;
+
+	/** Whether closures entered on this thread count down {@link #budgetTicks}, see {@link #setBudget(long, long)}. */
+	public boolean budgeted;
+
+	/** Calls and backward jumps left until the budget and deadline are checked again. */
+	public int budgetTicks;
+
+	/** Calls and backward jumps left after the current check interval, negative if unlimited. */
+	private long budgetRemaining;
+
+	/** {@link System#nanoTime()} at which running code is stopped, only meaningful if {@link #hasDeadline}. */
+	private long deadline;
+
+	private boolean hasDeadline;
 	
 	/** Private constructor for main thread only */
 	public LuaThread(Globals globals) {
@@ -124,6 +151,85 @@ public class LuaThread extends LuaValue {
 		this.globals = globals;
 	}
 	
+	/**
+	 * Records a closure entered while sampling.
+	 * @param closure the closure being entered
+	 * @return the frame index to restore {@link #sampledDepth} to on return
+	 */
+	final int enterSampled(LuaClosure closure) {
+		if (sampledClosures == null) {
+			sampledPcs = new int[MAX_CALLSTACK];
+			sampledClosures = new LuaClosure[MAX_CALLSTACK];
+		}
+		final int frame = sampledDepth++;
+		if (frame < MAX_CALLSTACK)
+			sampledClosures[frame] = closure;
+		return frame;
+	}
+
+	/**
+	 * Limits the code subsequently run on this thread.
+	 * <p>
+	 * Closures entered afterwards count every call and every backward jump,
+	 * which is where all loops and recursion pass through, and raise a
+	 * {@link LuaError} once {@code instructions} were counted or the deadline
+	 * passed. The deadline is looked at every {@link #BUDGET_CHECK_INTERVAL}
+	 * counts. Once exceeded, the error is raised again at every count, so a
+	 * {@code pcall} catching it cannot keep a loop going.
+	 * <p>
+	 * Coroutines resumed from this thread draw on the same budget.
+	 * Time spent in Java functions is not interrupted.
+	 *
+	 * @param instructions number of calls and backward jumps allowed, 0 or less for no limit
+	 * @param timeoutNanos time allowed from now, 0 or less for no limit
+	 */
+	public void setBudget(long instructions, long timeoutNanos) {
+		budgeted = instructions > 0 || timeoutNanos > 0;
+		budgetRemaining = instructions > 0? instructions: -1;
+		hasDeadline = timeoutNanos > 0;
+		deadline = System.nanoTime() + timeoutNanos;
+		refillBudget();
+	}
+
+	/** Removes the limits set by {@link #setBudget(long, long)}. */
+	public void clearBudget() {
+		budgeted = false;
+		hasDeadline = false;
+		budgetRemaining = -1;
+		budgetTicks = 0;
+	}
+
+	/**
+	 * Called when {@link #budgetTicks} ran out, checks the limits and starts the next interval.
+	 * @throws LuaError if the instruction budget is used up or the deadline passed
+	 */
+	final void checkBudget() {
+		budgetTicks = 0;
+		if (budgetRemaining == 0)
+			throw new LuaError("instruction budget exceeded");
+		if (hasDeadline && System.nanoTime() - deadline >= 0)
+			throw new LuaError("time limit exceeded");
+		refillBudget();
+	}
+
+	private void refillBudget() {
+		int ticks = BUDGET_CHECK_INTERVAL;
+		if (budgetRemaining >= 0) {
+			ticks = (int) Math.min(ticks, budgetRemaining);
+			budgetRemaining -= ticks;
+		}
+		budgetTicks = ticks;
+	}
+
+	/** Hands the remaining budget of another thread to this one, as when switching coroutines. */
+	final void takeBudget(LuaThread from) {
+		budgeted = from.budgeted;
+		budgetTicks = from.budgetTicks;
+		budgetRemaining = from.budgetRemaining;
+		deadline = from.deadline;
+		hasDeadline = from.hasDeadline;
+	}
+
 	public int type() {
 		return LuaValue.TTHREAD;
 	}
@@ -208,6 +314,8 @@ public class LuaThread extends LuaValue {
 			LuaThread previous_thread = globals.running;
 			try {
 				globals.running = new_thread;
+				if (previous_thread != null)
+					new_thread.takeBudget(previous_thread);
 				this.args = args;
 				if (this.status == STATUS_INITIAL) {
 					this.status = STATUS_RUNNING; 
@@ -229,8 +337,10 @@ public class LuaThread extends LuaValue {
 				this.result = LuaValue.NONE;
 				this.error = null;
 				globals.running = previous_thread;
-				if (previous_thread != null)
+				if (previous_thread != null) {
 					globals.running.state.status =STATUS_RUNNING;
+					previous_thread.takeBudget(new_thread);
+				}
 			}
 		}
 
@@ -1786,6 +1786,30 @@ public class LuaValue extends Varargs {
 	 */
 	public Varargs invoke(LuaValue[] args) { return invoke(varargsOf(args)); }
 
+	/** Call {@code this} with arguments taken from a register window, and store the
+	 * first return values into the same register array.
+	 * <p>
+	 * Used by the interpreter for calls with a fixed number of results and for generic
+	 * {@code for} loops, so that functions returning several values, like {@code next},
+	 * can store them without creating a {@link Varargs}. This default implementation
+	 * goes through {@link #invoke(Varargs)}.
+	 * <p>
+	 * Arguments are read before any result is stored. The result window must start
+	 * at or before {@code argbase}, or at or after {@code argbase+nargs}.
+	 *
+	 * @param stack registers holding the arguments and receiving the results
+	 * @param argbase index of the first argument
+	 * @param nargs number of arguments
+	 * @param base index where the first result is stored
+	 * @param nresults number of results to store, missing ones being set to {@link #NIL}
+	 * @throws LuaError if not a function and {@link #CALL} is not defined,
+	 * or the invoked function throws a {@link LuaError}
+	 * @see #invoke(Varargs)
+	 */
+	public void invokeInto(LuaValue[] stack, int argbase, int nargs, int base, int nresults) {
+		invoke(varargsOf(stack, argbase, nargs)).copyto(stack, base, nresults);
+	}
+
 	/** Call {@code this} with variable arguments, including metatag processing,
 	 * and retain all return values in a {@link Varargs}.
 	 * <p>
@@ -48,4 +48,10 @@ interface Metatable {
 	 * has been dropped.
 	 */
 	public LuaValue arrayget(LuaValue[] array, int index);
+
+	/**
+	 * Returns whether weak keys or values of the table were garbage collected
+	 * since the last call, in which case the table holds dead entries.
+	 */
+	public boolean collected();
 }
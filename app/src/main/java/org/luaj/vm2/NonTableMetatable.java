@@ -33,4 +33,8 @@ class NonTableMetatable implements Metatable {
 	public LuaValue arrayget(LuaValue[] array, int index) {
 		return array[index];
 	}
+
+	public boolean collected() {
+		return false;
+	}
 }
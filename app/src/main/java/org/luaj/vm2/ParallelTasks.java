@@ -0,0 +1,55 @@
+package org.luaj.vm2;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits work that only reads Lua values, like copying bytes, over the available processors.
+ * <p>
+ * The helper threads are daemons created on first use. Tasks must not run
+ * Lua code nor change tables, which are not thread-safe.
+ */
+final class ParallelTasks {
+	/** Number of tasks work should be split into, 1 on a single processor. */
+	static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	private static ExecutorService executor;
+
+	private ParallelTasks() {}
+
+	private static synchronized ExecutorService executor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Math.max(1, PARALLELISM - 1), new ThreadFactory() {
+				private int count;
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LuaParallel-" + (++count));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Runs tasks and waits for all of them, the last one on the calling thread.
+	 * @param tasks the tasks to run
+	 * @throws LuaError if a task failed
+	 */
+	static void run(Runnable[] tasks) {
+		Future[] futures = new Future[tasks.length - 1];
+		for (int i = 0; i < futures.length; i++)
+			futures[i] = executor().submit(tasks[i]);
+
+		tasks[tasks.length - 1].run();
+
+		try {
+			for (int i = 0; i < futures.length; i++)
+				futures[i].get();
+		} catch (Exception e) {
+			throw new LuaError(e);
+		}
+	}
+}
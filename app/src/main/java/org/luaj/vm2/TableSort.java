@@ -0,0 +1,178 @@
+package org.luaj.vm2;
+
+/**
+ * Sorting of the elements of a table, as done by {@code table.sort}.
+ * <p>
+ * Elements are sorted by a natural merge sort. Ascending and strictly
+ * descending runs already present in the input are found first, so sorted,
+ * reversed and mostly sorted lists take linear time. Runs shorter than
+ * {@link #MIN_RUN} are extended by binary insertion, then neighboring runs
+ * are merged until one is left.
+ * <p>
+ * Without a comparator, lists holding only integers, only numbers or only
+ * strings are compared directly rather than through {@link LuaValue#lt_b(LuaValue)}.
+ */
+final class TableSort {
+	/** Minimum length of a run before merging. */
+	static final int MIN_RUN = 32;
+
+	/** A strict weak order of values. */
+	static abstract class Order {
+		abstract boolean less(LuaValue a, LuaValue b);
+	}
+
+	static final Order INTEGERS = new Order() {
+		boolean less(LuaValue a, LuaValue b) { return ((LuaInteger) a).v < ((LuaInteger) b).v; }
+	};
+
+	static final Order NUMBERS = new Order() {
+		boolean less(LuaValue a, LuaValue b) { return a.todouble() < b.todouble(); }
+	};
+
+	static final Order STRINGS = new Order() {
+		boolean less(LuaValue a, LuaValue b) { return ((LuaString) a).strcmp((LuaString) b) < 0; }
+	};
+
+	static final Order VALUES = new Order() {
+		boolean less(LuaValue a, LuaValue b) { return a.lt_b(b); }
+	};
+
+	private TableSort() {}
+
+	/**
+	 * Returns the order of a comparator function, {@code comp(a, b)} being true if a goes before b.
+	 */
+	static Order comparator(final LuaValue comparator) {
+		return new Order() {
+			boolean less(LuaValue a, LuaValue b) { return comparator.call(a, b).toboolean(); }
+		};
+	}
+
+	/**
+	 * Returns the order {@code <} for the given values, specialized if they all have the same type.
+	 * @param values the values to compare
+	 * @param n number of values
+	 */
+	static Order natural(LuaValue[] values, int n) {
+		boolean integers = true, numbers = true, strings = true;
+		for (int i = 0; i < n && (numbers || strings); i++) {
+			LuaValue v = values[i];
+			integers &= v instanceof LuaInteger;
+			numbers &= v instanceof LuaNumber;
+			strings &= v instanceof LuaString;
+		}
+		return integers? INTEGERS: numbers? NUMBERS: strings? STRINGS: VALUES;
+	}
+
+	/**
+	 * Sorts values in place.
+	 * @param values the values, none of which may be null
+	 * @param n number of values to sort, from the start of the array
+	 * @param order the order to sort in
+	 */
+	static void sort(LuaValue[] values, int n, Order order) {
+		if (n < 2)
+			return;
+
+		// starts of the runs, followed by n
+		int[] runs = new int[n / MIN_RUN + 2];
+		int count = 0;
+		for (int lo = 0; lo < n; ) {
+			int hi = runEnd(values, lo, n, order);
+			if (hi - lo < MIN_RUN) {
+				int end = Math.min(n, lo + MIN_RUN);
+				insertionSort(values, lo, hi, end, order);
+				hi = end;
+			}
+			runs[count++] = lo;
+			lo = hi;
+		}
+		runs[count] = n;
+
+		if (count == 1)
+			return;
+
+		LuaValue[] src = values, dst = new LuaValue[n];
+		while (count > 1) {
+			int merged = 0;
+			for (int r = 0; r < count; r += 2) {
+				int lo = runs[r];
+				if (r + 1 == count)
+					System.arraycopy(src, lo, dst, lo, n - lo);
+				else
+					merge(src, lo, runs[r + 1], runs[r + 2], dst, order);
+				runs[merged++] = lo;
+			}
+			runs[merged] = n;
+			count = merged;
+
+			LuaValue[] t = src;
+			src = dst;
+			dst = t;
+		}
+
+		if (src != values)
+			System.arraycopy(src, 0, values, 0, n);
+	}
+
+	/**
+	 * Finds the end of the run starting at lo, reversing it if it is strictly descending.
+	 * @return the end of the run, exclusive
+	 */
+	private static int runEnd(LuaValue[] a, int lo, int n, Order order) {
+		int hi = lo + 1;
+		if (hi == n)
+			return hi;
+
+		if (order.less(a[hi], a[lo])) {
+			while (++hi < n && order.less(a[hi], a[hi - 1]))
+				;
+			for (int i = lo, j = hi - 1; i < j; i++, j--) {
+				LuaValue t = a[i];
+				a[i] = a[j];
+				a[j] = t;
+			}
+		} else {
+			while (++hi < n && !order.less(a[hi], a[hi - 1]))
+				;
+		}
+		return hi;
+	}
+
+	/**
+	 * Sorts a[lo..end) by binary insertion, a[lo..start) being sorted already.
+	 */
+	private static void insertionSort(LuaValue[] a, int lo, int start, int end, Order order) {
+		for (int i = start; i < end; i++) {
+			LuaValue x = a[i];
+			int left = lo, right = i;
+			while (left < right) {
+				int mid = (left + right) >>> 1;
+				if (order.less(x, a[mid]))
+					right = mid;
+				else
+					left = mid + 1;
+			}
+			System.arraycopy(a, left, a, left + 1, i - left);
+			a[left] = x;
+		}
+	}
+
+	/**
+	 * Merges the sorted ranges src[lo..mid) and src[mid..hi) into dst[lo..hi), keeping equal elements in order.
+	 */
+	private static void merge(LuaValue[] src, int lo, int mid, int hi, LuaValue[] dst, Order order) {
+		if (!order.less(src[mid], src[mid - 1])) {
+			System.arraycopy(src, lo, dst, lo, hi - lo);
+			return;
+		}
+
+		int i = lo, j = mid, k = lo;
+		while (i < mid && j < hi)
+			dst[k++] = order.less(src[j], src[i])? src[j++]: src[i++];
+		if (i < mid)
+			System.arraycopy(src, i, dst, k, mid - i);
+		else
+			System.arraycopy(src, j, dst, k, hi - j);
+	}
+}
@@ -21,6 +21,7 @@
  ******************************************************************************/
 package org.luaj.vm2;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 
 import org.luaj.vm2.LuaTable.Slot;
@@ -34,11 +35,16 @@ import org.luaj.vm2.LuaTable.StrongSlot;
  * <p>
  * However, calling the constructors directly when weak tables are required from 
  * Java will reduce overhead.  
+ * <p>
+ * The weak references of a table are registered with a queue of its own, so the
+ * table learns that entries died through {@link #collected()} and can drop them
+ * in bulk rather than carrying them until it next grows.
  */
 public class WeakTable implements Metatable {
 
 	private boolean weakkeys, weakvalues;
 	private LuaValue backing;
+	private final ReferenceQueue queue = new ReferenceQueue();
 
 	public static LuaTable make(boolean weakkeys, boolean weakvalues) {
 		LuaString mode;
@@ -86,13 +92,13 @@ public class WeakTable implements Metatable {
 			return null;
 		if ( weakkeys && !( key.isnumber() || key.isstring() || key.isboolean() )) {
 			if ( weakvalues && !( value.isnumber() || value.isstring() || value.isboolean() )) {
-				return new WeakKeyAndValueSlot( key, value, null );
+				return new WeakKeyAndValueSlot( key, value, null, queue );
 			} else {
-				return new WeakKeySlot( key, value, null );
+				return new WeakKeySlot( key, value, null, queue );
 			}
 		}
 		if ( weakvalues && ! (value.isnumber() || value.isstring() || value.isboolean() )) {
-			return new WeakValueSlot( key, value, null );
+			return new WeakValueSlot( key, value, null, queue );
 		}
 		return LuaTable.defaultEntry( key, value );
 	}
@@ -207,8 +213,8 @@ public class WeakTable implements Metatable {
 
 		private final int keyhash;
 
-		protected WeakKeySlot( LuaValue key, LuaValue value, Slot next ) {
-			super(weaken(key), value, next);
+		protected WeakKeySlot( LuaValue key, LuaValue value, Slot next, ReferenceQueue queue ) {
+			super(weaken(key, queue), value, next);
 			keyhash = key.hashCode();
 		}
 
@@ -237,20 +243,26 @@ public class WeakTable implements Metatable {
 
 	static class WeakValueSlot extends WeakSlot {
 
-		protected WeakValueSlot( LuaValue key, LuaValue value, Slot next ) {
-			super( key, weaken(value), next);
+		private final ReferenceQueue queue;
+
+		protected WeakValueSlot( LuaValue key, LuaValue value, Slot next, ReferenceQueue queue ) {
+			super( key, weaken(value, queue), next);
+			this.queue = queue;
 		}
 
 		protected WeakValueSlot( WeakValueSlot copyFrom, Slot next ) {
 			super( copyFrom.key, copyFrom.value, next );
+			this.queue = copyFrom.queue;
 		}
 
 		public int keyindex( int mask ) {
-			return LuaTable.hashSlot( strongkey(), mask );
+			// the entry of a collected value is dropped by relink wherever it goes
+			LuaValue key = strongkey();
+			return key != null ? LuaTable.hashSlot( key, mask ) : 0;
 		}
 
 		public Slot set(LuaValue value) {
-			this.value = weaken(value);
+			this.value = weaken(value, queue);
 			return this;
 		}
 
@@ -266,15 +278,18 @@ public class WeakTable implements Metatable {
 	static class WeakKeyAndValueSlot extends WeakSlot {
 
 		private final int keyhash;
+		private final ReferenceQueue queue;
 
-		protected WeakKeyAndValueSlot( LuaValue key, LuaValue value, Slot next ) {
-			super( weaken(key), weaken(value), next );
+		protected WeakKeyAndValueSlot( LuaValue key, LuaValue value, Slot next, ReferenceQueue queue ) {
+			super( weaken(key, queue), weaken(value, queue), next );
 			keyhash = key.hashCode();
+			this.queue = queue;
 		}
 
 		protected WeakKeyAndValueSlot(WeakKeyAndValueSlot copyFrom, Slot next) {
 			super( copyFrom.key, copyFrom.value, next );
 			keyhash = copyFrom.keyhash;
+			queue = copyFrom.queue;
 		}
 
 		public int keyindex( int hashMask ) {
@@ -282,7 +297,7 @@ public class WeakTable implements Metatable {
 		}
 
 		public Slot set(LuaValue value) {
-			this.value = weaken(value);
+			this.value = weaken(value, queue);
 			return this;
 		}
 
@@ -305,13 +320,23 @@ public class WeakTable implements Metatable {
 	 * @return {@link LuaValue} that is a strong or weak reference, depending on type of {@code value}
 	 */
 	protected static LuaValue weaken( LuaValue value ) {
+		return weaken( value, null );
+	}
+
+	/**
+	 * Convert a value to its weak counterpart, registering the reference with a queue
+	 * @param value value to convert
+	 * @param queue queue to be notified when the value is collected, or null
+	 * @return {@link LuaValue} that is a strong or weak reference, depending on type of {@code value}
+	 */
+	protected static LuaValue weaken( LuaValue value, ReferenceQueue queue ) {
 		switch ( value.type() ) {
 			case LuaValue.TFUNCTION:
 			case LuaValue.TTHREAD:
 			case LuaValue.TTABLE:
-				return new WeakValue(value);
+				return new WeakValue(value, queue);
 			case LuaValue.TUSERDATA:
-				return new WeakUserdata(value);
+				return new WeakUserdata(value, queue);
 			default:
 				return value;
 		}
@@ -340,7 +365,11 @@ public class WeakTable implements Metatable {
 		WeakReference ref;
 
 		protected WeakValue(LuaValue value) {
-			ref = new WeakReference(value);
+			this(value, null);
+		}
+
+		protected WeakValue(LuaValue value, ReferenceQueue queue) {
+			ref = new WeakReference(value, queue);
 		}
 
 		public int type() {
@@ -375,9 +404,10 @@ public class WeakTable implements Metatable {
 		private final WeakReference ob;
 		private final LuaValue mt;
 
-		private WeakUserdata(LuaValue value) {
-			super(value);
-			ob = new WeakReference(value.touserdata());
+		private WeakUserdata(LuaValue value, ReferenceQueue queue) {
+			// the userdata value is recreated while the object lives, only the object dying counts
+			super(value, null);
+			ob = new WeakReference(value.touserdata(), queue);
 			mt = value.getmetatable();
 		}
 
@@ -397,7 +427,7 @@ public class WeakTable implements Metatable {
 	}
 
 	public LuaValue wrap(LuaValue value) {
-		return weakvalues ? weaken( value ) : value;
+		return weakvalues ? weaken( value, queue ) : value;
 	}
 
 	public LuaValue arrayget(LuaValue[] array, int index) {
@@ -410,4 +440,12 @@ public class WeakTable implements Metatable {
 		}
 		return value;
 	}
+
+	public boolean collected() {
+		if ( queue.poll() == null )
+			return false;
+		while ( queue.poll() != null )
+			;
+		return true;
+	}
 }
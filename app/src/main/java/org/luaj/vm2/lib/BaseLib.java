@@ -416,6 +416,12 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 		public Varargs invoke(Varargs args) {
 			return args.checktable(1).next(args.arg(2));
 		}
+		public void invokeInto(LuaValue[] stack, int argbase, int nargs, int base, int nresults) {
+			if ( nargs >= 1 && stack[argbase].istable() )
+				stack[argbase].checktable().nextInto(nargs >= 2? stack[argbase+1]: NIL, stack, base, nresults);
+			else
+				super.invokeInto(stack, argbase, nargs, base, nresults);
+		}
 	}
 	
 	// "inext" ( table, [int-index] ) -> next-index, next-value
@@ -423,6 +429,12 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 		public Varargs invoke(Varargs args) {
 			return args.checktable(1).inext(args.arg(2));
 		}
+		public void invokeInto(LuaValue[] stack, int argbase, int nargs, int base, int nresults) {
+			if ( nargs >= 1 && stack[argbase].istable() )
+				stack[argbase].checktable().inextInto(nargs >= 2? stack[argbase+1]: NIL, stack, base, nresults);
+			else
+				super.invokeInto(stack, argbase, nargs, base, nresults);
+		}
 	}
 	
 	/**
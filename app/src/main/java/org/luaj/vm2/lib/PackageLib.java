@@ -21,7 +21,9 @@
 ******************************************************************************/
 package org.luaj.vm2.lib;
 
+import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
 
 import org.luaj.vm2.Globals;
 import org.luaj.vm2.LuaFunction;
@@ -70,6 +72,9 @@ import org.luaj.vm2.Varargs;
  * However, the default filesystem search semantics are different and delegated to the bas library
  * as outlined in the {@link BaseLib} and {@link org.luaj.vm2.lib.jse.JseBaseLib} documentation.
  * <p>
+ * With the resource finder of a {@link BaseLib}, results of {@code package.searchpath}, including
+ * failures, are kept in {@link ResolutionCache#SHARED} until a directory searched changes.
+ * <p>
  * @see LibFunction
  * @see BaseLib
  * @see org.luaj.vm2.lib.jse.JseBaseLib
@@ -286,6 +291,17 @@ public class PackageLib extends TwoArgFunction {
 			String path = args.checkjstring(2);
 			String sep = args.optjstring(3, ".");
 			String rep = args.optjstring(4, FILE_SEP);
+
+			// other finders may not be backed by files whose directories tell about changes
+			ResolutionCache cache = globals.finder instanceof BaseLib ? ResolutionCache.SHARED : null;
+			String key = null;
+			if ( cache != null ) {
+				key = globals.finder.getClass().getName()+'\0'+name+'\0'+path+'\0'+sep+'\0'+rep;
+				Object cached = cache.get(key);
+				if ( cached != ResolutionCache.NONE )
+					return (Varargs) cached;
+			}
+			ArrayList directories = cache != null ? new ArrayList() : null;
 			
 			// check the path elements
 			int e = -1;
@@ -308,11 +324,17 @@ public class PackageLib extends TwoArgFunction {
 					filename = template.substring(0,q) + name + template.substring(q+1);
 				}
 				
+				if ( directories != null ) {
+					String directory = new File(filename).getAbsoluteFile().getParent();
+					if ( directory != null && !directories.contains(directory) )
+						directories.add(directory);
+				}
+
 				// try opening the file
 				InputStream is = globals.finder.findResource(filename);
 				if (is != null) {
 					try { is.close(); } catch ( java.io.IOException ioe ) {}
-					return valueOf(filename);
+					return cached(cache, key, valueOf(filename), directories);
 				}
 				
 				// report error
@@ -320,7 +342,13 @@ public class PackageLib extends TwoArgFunction {
 					sb = new StringBuffer();
 				sb.append( "\n\t"+filename );
 			}
-			return varargsOf(NIL, valueOf(sb.toString()));
+			return cached(cache, key, varargsOf(NIL, valueOf(sb.toString())), directories);
+		}
+
+		private Varargs cached(ResolutionCache cache, String key, Varargs result, ArrayList directories) {
+			if ( cache != null )
+				cache.put(key, result, (String[]) directories.toArray(new String[directories.size()]));
+			return result;
 		}
 	}
 	
@@ -0,0 +1,127 @@
+package org.luaj.vm2.lib;
+
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Remembers where modules were found, and that they were not, so that
+ * {@code require} does not probe the same candidates again.
+ * <p>
+ * An entry that depends on files records the modification times of the
+ * directories holding the candidates and is dropped once one of them changes,
+ * which happens when a file is created, removed or renamed in it. Directories
+ * changed within the last {@link #MTIME_GRANULARITY} milliseconds are not
+ * trusted, as a file added within the same tick would go unnoticed.
+ * <p>
+ * The {@link #SHARED} cache is used by all globals, so that an environment
+ * that is recreated resolves its modules from it. Methods are thread-safe.
+ */
+public final class ResolutionCache {
+	/** The cache used by {@link PackageLib}. */
+	public static final ResolutionCache SHARED = new ResolutionCache();
+
+	/** Returned by {@link #get(String)} when nothing valid is cached, as null may be cached. */
+	public static final Object NONE = new Object();
+
+	/** Age in milliseconds below which a directory modification time is not relied upon. */
+	static final long MTIME_GRANULARITY = 2000;
+
+	/** Number of entries beyond which the cache starts over. */
+	static final int MAX_ENTRIES = 1024;
+
+	private static final String[] NO_DIRECTORIES = {};
+
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private long hits, misses;
+
+	private static final class Entry {
+		final Object result;
+		final String[] directories;
+		final long[] mtimes;
+
+		Entry(Object result, String[] directories, long[] mtimes) {
+			this.result = result;
+			this.directories = directories;
+			this.mtimes = mtimes;
+		}
+
+		boolean isCurrent() {
+			for ( int i = 0; i < directories.length; i++ )
+				if ( new File(directories[i]).lastModified() != mtimes[i] )
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the cached result for a key.
+	 * @param key what was resolved, including everything the result depends on
+	 * @return the result, possibly null, or {@link #NONE} if there is none or it is out of date
+	 */
+	public synchronized Object get(String key) {
+		Entry entry = entries.get(key);
+		if ( entry != null ) {
+			if ( entry.isCurrent() ) {
+				hits++;
+				return entry.result;
+			}
+			entries.remove(key);
+		}
+		misses++;
+		return NONE;
+	}
+
+	/**
+	 * Caches a result that does not depend on files, like whether a class exists.
+	 * @param key what was resolved
+	 * @param result the result, null for a negative one
+	 */
+	public void put(String key, Object result) {
+		put(key, result, NO_DIRECTORIES);
+	}
+
+	/**
+	 * Caches a result valid until one of the given directories changes.
+	 * @param key what was resolved
+	 * @param result the result, null for a negative one
+	 * @param directories directories of the candidates that were probed
+	 * @return false if a directory changed too recently for the result to be cached
+	 */
+	public boolean put(String key, Object result, String[] directories) {
+		long[] mtimes = new long[directories.length];
+		long recent = System.currentTimeMillis() - MTIME_GRANULARITY;
+		for ( int i = 0; i < directories.length; i++ ) {
+			mtimes[i] = new File(directories[i]).lastModified();
+			if ( mtimes[i] > recent )
+				return false;
+		}
+
+		synchronized ( this ) {
+			if ( entries.size() >= MAX_ENTRIES )
+				entries.clear();
+			entries.put(key, new Entry(result, directories, mtimes));
+		}
+		return true;
+	}
+
+	/** Number of lookups answered from the cache. */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/** Number of lookups that had to resolve again. */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/** Number of cached results. */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** Drops every cached result and resets the counters. */
+	public synchronized void clear() {
+		entries.clear();
+		hits = misses = 0;
+	}
+}
@@ -668,18 +668,36 @@ public class StringLib extends TwoArgFunction {
 	}
 	
 	/**
-	 * string.rep (s, n)
+	 * string.rep (s, n [, sep])
 	 * 
-	 * Returns a string that is the concatenation of n copies of the string s.
+	 * Returns a string that is the concatenation of n copies of the string s
+	 * separated by the string sep. The default value for sep is the empty
+	 * string (that is, no separator).
+	 * <p>
+	 * The result is allocated once, and the copies already written are
+	 * copied again, doubling them each time.
 	 */
 	static final class rep extends VarArgFunction {
 		public Varargs invoke(Varargs args) {
 			LuaString s = args.checkstring( 1 );
 			int n = args.checkint( 2 );
-			final byte[] bytes = new byte[ s.length() * n ];
-			int len = s.length();
-			for ( int offset = 0; offset < bytes.length; offset += len ) {
-				s.copyInto( 0, bytes, offset, len );
+			LuaString sep = args.optstring( 3, EMPTYSTRING );
+			if ( n <= 0 )
+				return EMPTYSTRING;
+			int len = s.length() + sep.length();
+			long total = (long) len * n - sep.length();
+			if ( total > Integer.MAX_VALUE )
+				error( "resulting string too large" );
+			if ( total == 0 )
+				return EMPTYSTRING;
+			final byte[] bytes = new byte[ (int) total ];
+			s.copyInto( 0, bytes, 0, s.length() );
+			if ( n > 1 )
+				sep.copyInto( 0, bytes, s.length(), sep.length() );
+			for ( int filled = len; filled < bytes.length; ) {
+				int chunk = Math.min( filled, bytes.length - filled );
+				System.arraycopy( bytes, 0, bytes, filled, chunk );
+				filled += chunk;
 			}
 			return LuaString.valueUsing( bytes );
 		}
@@ -0,0 +1,103 @@
+package com.wavecat.inline.libs
+
+import com.wavecat.inline.libs.http.BatchingDispatcher
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.luaj.vm2.LuaValue
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+class JsonStreamTest {
+    private val server = ServerSocket(0, 1, InetAddress.getLoopbackAddress())
+
+    /**
+     * Serves one request with a JSON document of about 50 MB, generated while it is sent.
+     */
+    private val serving = thread {
+        server.accept().use { socket ->
+            val input = socket.getInputStream().bufferedReader()
+            while (!input.readLine().isNullOrEmpty()) continue
+
+            val output = socket.getOutputStream().buffered()
+            output.write("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n".toByteArray())
+
+            fun chunk(data: String) {
+                val bytes = data.toByteArray()
+                output.write("${Integer.toHexString(bytes.size)}\r\n".toByteArray())
+                output.write(bytes)
+                output.write("\r\n".toByteArray())
+            }
+
+            chunk("{\"total\":$ITEMS,\"items\":[")
+            for (i in 1..ITEMS) {
+                chunk((if (i > 1) "," else "") + "{\"id\":$i,\"name\":\"item $i\",\"tags\":[\"a\",\"b\",\"c\"],\"text\":\"$TEXT\"}")
+            }
+            chunk("]}")
+            output.write("0\r\n\r\n".toByteArray())
+            output.flush()
+        }
+    }
+
+    @After
+    fun tearDown() {
+        server.close()
+        serving.join()
+    }
+
+    private fun usedMemory(): Long {
+        val runtime = Runtime.getRuntime()
+        System.gc()
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    @Test
+    fun largeResponseIsStreamedWithBoundedMemory() {
+        // Stands in for the Lua thread, slower than the network
+        val luaThread = Executors.newSingleThreadExecutor()
+        val baseline = usedMemory()
+
+        var delivered = 0
+        var largestBatch = 0
+        var peak = 0L
+        var ordered = true
+
+        val dispatcher = BatchingDispatcher<LuaValue>(CAPACITY, { luaThread.execute(it) }) { batch ->
+            largestBatch = maxOf(largestBatch, batch.size)
+            for (item in batch) {
+                if (item.isnil()) continue
+                ordered = ordered && item["id"].toint() == ++delivered
+                if (delivered % 10_000 == 0) peak = maxOf(peak, usedMemory() - baseline)
+                if (delivered % 16 == 0) Thread.sleep(1)
+            }
+        }
+
+        val response = OkHttpClient().newCall(Request.Builder().url("http://127.0.0.1:${server.localPort}/").build()).execute()
+        response.use {
+            assertTrue(Json.decodeEach(response.body.byteStream(), listOf("items", "*")) { dispatcher.offer(it) })
+        }
+        dispatcher.offer(LuaValue.NIL)
+
+        luaThread.shutdown()
+        assertTrue(luaThread.awaitTermination(1, TimeUnit.MINUTES))
+
+        assertEquals(ITEMS, delivered)
+        assertTrue(ordered)
+        assertTrue("batch of $largestBatch items", largestBatch <= CAPACITY)
+        assertTrue("${peak shr 20} MB retained", peak < MAX_RETAINED)
+    }
+
+    companion object {
+        private const val ITEMS = 100_000
+        private const val CAPACITY = 64
+        private const val MAX_RETAINED = 16L shl 20
+
+        private val TEXT = "lorem ipsum dolor sit amet ".repeat(18)
+    }
+}
@@ -0,0 +1,129 @@
+package com.wavecat.inline.libs.http
+
+import com.wavecat.inline.libs.http.CallCoalescer.Companion.coalescingKey
+import mockwebserver3.Dispatcher
+import mockwebserver3.MockResponse
+import mockwebserver3.MockWebServer
+import mockwebserver3.RecordedRequest
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Before
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class CallCoalescerTest {
+    private val server = MockWebServer()
+    private val release = CountDownLatch(1)
+    private val client = OkHttpClient()
+    private val coalescer = CallCoalescer<(String) -> Unit>()
+
+    @Before
+    fun setUp() {
+        // Holds every response until released, so that calls stay in flight
+        server.dispatcher = object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse {
+                release.await(5, TimeUnit.SECONDS)
+                return MockResponse.Builder()
+                    .body("${request.url.encodedPath} ${request.headers["Authorization"]}")
+                    .build()
+            }
+        }
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        release.countDown()
+        server.close()
+    }
+
+    private fun request(authorization: String? = null) = Request.Builder()
+        .url(server.url("/resource"))
+        .apply { if (authorization != null) header("Authorization", authorization) }
+        .build()
+
+    /**
+     * Starts a request the way `http.get { coalesce = true }` does.
+     */
+    private fun fetch(client: OkHttpClient, request: Request, onBody: (String) -> Unit) {
+        val key = request.coalescingKey(client)
+        if (!coalescer.join(key, onBody)) return
+
+        client.newCall(request).enqueue(object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                coalescer.complete(key)
+            }
+
+            override fun onResponse(call: Call, response: Response) {
+                val body = response.body.use { it.string() }
+                coalescer.complete(key).forEach { it(body) }
+            }
+        })
+    }
+
+    /**
+     * Fetches every request concurrently and returns the bodies received by each caller.
+     */
+    private fun fetchAll(vararg requests: Pair<OkHttpClient, Request>): List<String> {
+        val bodies = ConcurrentHashMap<Int, String>()
+        val done = CountDownLatch(requests.size)
+
+        requests.forEachIndexed { i, (client, request) ->
+            fetch(client, request) {
+                bodies[i] = it
+                done.countDown()
+            }
+        }
+
+        release.countDown()
+        done.await(5, TimeUnit.SECONDS)
+
+        return requests.indices.map { bodies[it].orEmpty() }
+    }
+
+    @Test
+    fun identicalRequestsShareOneCall() {
+        val bodies = fetchAll(*Array(5) { client to request("Bearer a") })
+
+        assertEquals(1, server.requestCount)
+        assertEquals(List(5) { "/resource Bearer a" }, bodies)
+        assertEquals(4L, coalescer.coalesced)
+    }
+
+    @Test
+    fun requestsWithDifferentCredentialsAreNotShared() {
+        val bodies = fetchAll(client to request("Bearer a"), client to request("Bearer b"))
+
+        assertEquals(2, server.requestCount)
+        assertEquals(listOf("/resource Bearer a", "/resource Bearer b"), bodies)
+    }
+
+    @Test
+    fun requestsOfDifferentClientsAreNotShared() {
+        val other = client.newBuilder().build()
+        val bodies = fetchAll(client to request(), other to request())
+
+        assertEquals(2, server.requestCount)
+        assertEquals(listOf("/resource null", "/resource null"), bodies)
+    }
+
+    @Test
+    fun keyCoversRedactedHeaders() {
+        for (header in listOf("Authorization", "Cookie", "Proxy-Authorization")) {
+            val first = request().newBuilder().header(header, "first").build()
+            val second = request().newBuilder().header(header, "second").build()
+
+            assertEquals(first.headers.toString(), second.headers.toString())
+            assertNotEquals(first.coalescingKey(client), second.coalescingKey(client))
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.wavecat.inline.libs.http
+
+import okio.Buffer
+import okio.Source
+import okio.Timeout
+import okio.buffer
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class EventStreamReaderTest {
+    private fun readAll(body: String): List<String> {
+        val reader = EventStreamReader(Buffer().writeUtf8(body))
+        val events = ArrayList<String>()
+        while (reader.next()) events.add("${reader.event}:${reader.data}")
+        return events
+    }
+
+    @Test
+    fun `accepts every line terminator`() {
+        val expected = listOf("null:a\nb", "delta:c")
+
+        assertEquals(expected, readAll("data: a\ndata: b\n\nevent: delta\ndata: c\n\n"))
+        assertEquals(expected, readAll("data: a\r\ndata: b\r\n\r\nevent: delta\r\ndata: c\r\n\r\n"))
+        assertEquals(expected, readAll("data: a\rdata: b\r\revent: delta\rdata: c\r\r"))
+        assertEquals(expected, readAll("data: a\r\ndata: b\r\revent: delta\ndata: c\r\n\n"))
+    }
+
+    @Test
+    fun `keeps fields and comments apart`() {
+        assertEquals(listOf("null:x"), readAll(": comment\rid: 7\rdata:x\r\r"))
+    }
+
+    @Test
+    fun `completes an event ending with CR without reading further`() {
+        val chunk = Buffer().writeUtf8("data: a\r\r")
+
+        // Fails if the reader asks for more than the first chunk, like a stream waiting for the server
+        val source = object : Source {
+            override fun read(sink: Buffer, byteCount: Long): Long {
+                check(!chunk.exhausted()) { "Read past the event" }
+                return chunk.read(sink, byteCount)
+            }
+
+            override fun timeout() = Timeout.NONE
+
+            override fun close() {}
+        }
+
+        val reader = EventStreamReader(source.buffer())
+        assertTrue(reader.next())
+        assertEquals("a", reader.data)
+    }
+
+    @Test
+    fun `ends without a final blank line`() {
+        val reader = EventStreamReader(Buffer().writeUtf8("data: a\r"))
+        assertFalse(reader.next())
+    }
+}
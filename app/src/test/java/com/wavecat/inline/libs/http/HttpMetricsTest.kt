@@ -0,0 +1,94 @@
+package com.wavecat.inline.libs.http
+
+import mockwebserver3.MockResponse
+import mockwebserver3.MockWebServer
+import okhttp3.Cache
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okio.Buffer
+import okio.GzipSink
+import okio.buffer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import java.nio.file.Files
+
+class HttpMetricsTest {
+    private val server = MockWebServer()
+    private val metrics = HttpMetrics()
+    private val directory = Files.createTempDirectory("cache").toFile()
+    private val client = OkHttpClient.Builder()
+        .cache(Cache(directory, 1024 * 1024))
+        .eventListener(metrics)
+        .addInterceptor(metrics)
+        .build()
+
+    private val body = "cached ".repeat(1000)
+
+    @Before
+    fun setUp() = server.start()
+
+    @After
+    fun tearDown() {
+        server.close()
+        client.cache?.close()
+        directory.deleteRecursively()
+    }
+
+    private fun get(): String = client.newCall(Request.Builder().url(server.url("/")).build())
+        .execute()
+        .use { it.body.string() }
+
+    @Test
+    fun `counts chunked cached bodies`() {
+        server.enqueue(
+            MockResponse.Builder()
+                .addHeader("Cache-Control", "max-age=60")
+                .chunkedBody(body, 128)
+                .build()
+        )
+
+        assertEquals(body, get())
+        assertEquals(0, metrics.bytesSaved.get())
+
+        assertEquals(body, get())
+        assertEquals(1, metrics.cacheHits.get())
+        assertEquals(body.length.toLong(), metrics.bytesSaved.get())
+    }
+
+    @Test
+    fun `counts compressed cached bodies once decoded`() {
+        val compressed = Buffer()
+        GzipSink(compressed).buffer().use { it.writeUtf8(body) }
+
+        server.enqueue(
+            MockResponse.Builder()
+                .addHeader("Cache-Control", "max-age=60")
+                .addHeader("Content-Encoding", "gzip")
+                .body(compressed)
+                .build()
+        )
+
+        assertEquals(body, get())
+        assertEquals(body, get())
+        assertEquals(body.length.toLong(), metrics.bytesSaved.get())
+    }
+
+    @Test
+    fun `counts revalidated bodies`() {
+        server.enqueue(
+            MockResponse.Builder()
+                .addHeader("Cache-Control", "max-age=0")
+                .addHeader("ETag", "\"v1\"")
+                .chunkedBody(body, 128)
+                .build()
+        )
+        server.enqueue(MockResponse.Builder().code(304).build())
+
+        assertEquals(body, get())
+        assertEquals(body, get())
+        assertEquals(1, metrics.conditionalCacheHits.get())
+        assertEquals(body.length.toLong(), metrics.bytesSaved.get())
+    }
+}
@@ -0,0 +1,132 @@
+package com.wavecat.inline.service
+
+import com.wavecat.inline.service.ActionBatch.Kind
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class ActionBatchTest {
+    /**
+     * Stands in for an `AccessibilityNodeInfo`, counting every action performed
+     * on it as one binder transaction.
+     */
+    private class FakeNode {
+        var text = ""
+        var selection = 0..0
+        val transactions = ArrayList<String>()
+
+        fun setText(text: String): () -> Boolean = {
+            transactions.add("text $text")
+            this.text = text
+            selection = text.length..text.length
+            true
+        }
+
+        fun setSelection(start: Int, end: Int): () -> Boolean = {
+            transactions.add("selection $start $end")
+            selection = start..end
+            true
+        }
+
+        fun paste(clip: String): () -> Boolean = {
+            transactions.add("paste $clip")
+            text = text.substring(0, selection.first) + clip + text.substring(selection.last)
+            selection = selection.first + clip.length..selection.first + clip.length
+            true
+        }
+    }
+
+    private val batch = ActionBatch()
+
+    private fun FakeNode.add(kind: Kind, action: () -> Boolean) = batch.add(this, kind, action)
+
+    private fun performAll() = batch.drain()?.forEach { it() }
+
+    @Test
+    fun `text change drops earlier text and selection changes`() {
+        val node = FakeNode()
+        node.add(Kind.SET_TEXT, node.setText("a"))
+        node.add(Kind.SET_SELECTION, node.setSelection(0, 1))
+        node.add(Kind.SET_TEXT, node.setText("ab"))
+        performAll()
+
+        assertEquals(listOf("text ab"), node.transactions)
+        assertEquals(2, batch.dropped)
+        assertEquals(1, batch.performed)
+    }
+
+    @Test
+    fun `selection change drops only earlier selection changes`() {
+        val node = FakeNode()
+        node.add(Kind.SET_TEXT, node.setText("abc"))
+        node.add(Kind.SET_SELECTION, node.setSelection(0, 1))
+        node.add(Kind.SET_SELECTION, node.setSelection(1, 2))
+        performAll()
+
+        assertEquals(listOf("text abc", "selection 1 2"), node.transactions)
+        assertEquals(1, batch.dropped)
+    }
+
+    @Test
+    fun `other actions are barriers`() {
+        val node = FakeNode()
+        node.add(Kind.SET_TEXT, node.setText("ab"))
+        node.add(Kind.SET_SELECTION, node.setSelection(1, 1))
+        node.add(Kind.OTHER, node.paste("x"))
+        node.add(Kind.SET_SELECTION, node.setSelection(0, 0))
+        node.add(Kind.SET_TEXT, node.setText("done"))
+        performAll()
+
+        assertEquals(listOf("text ab", "selection 1 1", "paste x", "text done"), node.transactions)
+        assertEquals(1, batch.dropped)
+    }
+
+    @Test
+    fun `actions of other nodes are kept`() {
+        val first = FakeNode()
+        val second = FakeNode()
+        first.add(Kind.SET_TEXT, first.setText("a"))
+        second.add(Kind.SET_TEXT, second.setText("b"))
+        first.add(Kind.SET_TEXT, first.setText("c"))
+        performAll()
+
+        assertEquals(listOf("text c"), first.transactions)
+        assertEquals(listOf("text b"), second.transactions)
+        assertEquals(1, batch.dropped)
+    }
+
+    @Test
+    fun `drain empties the batch`() {
+        val node = FakeNode()
+        node.add(Kind.SET_TEXT, node.setText("a"))
+
+        assertEquals(1, batch.drain()!!.size)
+        assertNull(batch.drain())
+    }
+
+    /**
+     * Replays what a command answering ten queries does, each answer setting
+     * the text and moving the cursor, and compares with performing every action.
+     */
+    @Test
+    fun `counts the transactions saved for a command`() {
+        val batched = FakeNode()
+        val direct = FakeNode()
+
+        for (i in 1..10) {
+            val text = "answer ".repeat(i)
+            batched.add(Kind.SET_TEXT, batched.setText(text))
+            batched.add(Kind.SET_SELECTION, batched.setSelection(text.length, text.length))
+
+            direct.setText(text)()
+            direct.setSelection(text.length, text.length)()
+        }
+        performAll()
+
+        assertEquals(direct.text, batched.text)
+        assertEquals(direct.selection, batched.selection)
+        assertEquals(20, direct.transactions.size)
+        assertEquals(2, batched.transactions.size)
+        assertEquals(18, batch.dropped)
+    }
+}
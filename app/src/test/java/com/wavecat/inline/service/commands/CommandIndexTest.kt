@@ -0,0 +1,39 @@
+package com.wavecat.inline.service.commands
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class CommandIndexTest {
+    private fun indexOf(vararg names: String) = CommandIndex().apply { names.forEach(::add) }
+
+    @Test
+    fun `short query finds a name sharing no trigram`() {
+        val index = indexOf("gpt", "settings", "translate")
+
+        assertEquals(listOf("gpt"), index.suggest("qpt", 5))
+    }
+
+    @Test
+    fun `short query finds names one edit away`() {
+        val index = indexOf("xbc", "ab", "calc", "help")
+
+        assertTrue("xbc" in index.suggest("abc", 5))
+        assertTrue("ab" in index.suggest("abc", 5))
+    }
+
+    @Test
+    fun `removed names are not suggested`() {
+        val index = indexOf("gpt")
+        index.remove("gpt")
+
+        assertEquals(emptyList<String>(), index.suggest("qpt", 5))
+    }
+
+    @Test
+    fun `long query uses trigrams`() {
+        val index = indexOf("translate", "settings")
+
+        assertEquals(listOf("translate"), index.suggest("translte", 5))
+    }
+}
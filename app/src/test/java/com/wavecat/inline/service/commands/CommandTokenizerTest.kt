@@ -0,0 +1,104 @@
+package com.wavecat.inline.service.commands
+
+import com.wavecat.inline.service.InlineService.Companion.DEFAULT_PATTERN
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.regex.MatchResult
+import java.util.regex.Pattern
+import kotlin.random.Random
+
+class CommandTokenizerTest {
+    private val pattern = Pattern.compile(DEFAULT_PATTERN, Pattern.DOTALL)
+
+    /**
+     * Lists every match with its groups 1 to 3.
+     */
+    private fun CommandMatcher.all(): List<List<Any?>> {
+        val matches = ArrayList<List<Any?>>()
+        while (find()) matches.add(groupsOf(this))
+        return matches
+    }
+
+    private fun groupsOf(match: MatchResult) =
+        listOf(match.start(), match.end(), match.group(1), match.group(2), match.group(3))
+
+    private fun assertSameAsRegex(text: String, start: Int = 0, end: Int = text.length) {
+        assertEquals(
+            text,
+            RegexCommandMatcher(pattern.matcher(text).region(start, end)).all(),
+            CommandTokenizer(text, start, end).all()
+        )
+    }
+
+    @Test
+    fun `matches commands like the regex`() {
+        listOf(
+            "{gpt}$",
+            "{gpt hello world}$",
+            "before {gpt hello}$ after",
+            "{a}₽ {b c}₴ {d e f}$",
+            "{a}\${b}₽{c d}₴",
+            "{a {b}$}$",
+            "{{}}$",
+            "{a}}}$",
+            "{a b}}}$",
+            "{a\nb\tc}$",
+            "{a b}$ {c d}$ text }$",
+        ).forEach { assertSameAsRegex(it) }
+    }
+
+    @Test
+    fun `matches unterminated and brace-heavy text like the regex`() {
+        listOf(
+            "{",
+            "{}",
+            "{}$",
+            "{ a}$",
+            "{a",
+            "{a b",
+            "{a b}",
+            "{a}x",
+            "{{{{{{",
+            "{a{b{c}$",
+            "}$}$}\${",
+            "{a}$ {b",
+        ).forEach { assertSameAsRegex(it) }
+    }
+
+    @Test
+    fun `matches random text like the regex`() {
+        val random = Random(32)
+        val alphabet = "{{}}$₽₴ \nab"
+
+        repeat(200_000) {
+            val text = buildString {
+                repeat(random.nextInt(16)) { append(alphabet[random.nextInt(alphabet.length)]) }
+            }
+            val start = random.nextInt(text.length + 1)
+            assertSameAsRegex(text, start, random.nextInt(start, text.length + 1))
+        }
+    }
+
+    /**
+     * Text with many unclosed braces, where the regex retries its lazy argument
+     * group at every `{` and takes quadratic time.
+     */
+    @Test
+    fun `scans unclosed braces in linear time`() {
+        val text = "{a b ".repeat(4000) + "}"
+
+        var started = System.nanoTime()
+        val expected = RegexCommandMatcher(pattern.matcher(text)).all()
+        val regex = System.nanoTime() - started
+
+        started = System.nanoTime()
+        val actual = CommandTokenizer(text).all()
+        val tokenizer = System.nanoTime() - started
+
+        println("20 KB of unclosed braces: regex %.1f ms, tokenizer %.2f ms".format(regex / 1e6, tokenizer / 1e6))
+
+        assertEquals(expected, actual)
+        assertTrue("Tokenizer is not faster than the regex", tokenizer * 10 < regex)
+    }
+}
@@ -0,0 +1,133 @@
+package com.wavecat.inline.service.commands
+
+import com.wavecat.inline.service.InlineService.Companion.DEFAULT_PATTERN
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.regex.Pattern
+import kotlin.random.Random
+
+class EditTrackerTest {
+    private val pattern = Pattern.compile(DEFAULT_PATTERN, Pattern.DOTALL)
+
+    private fun fullScan(text: String): List<IntRange> {
+        val matcher = pattern.matcher(text)
+        return generateSequence { if (matcher.find()) matcher.start() until matcher.end() else null }.toList()
+    }
+
+    /**
+     * Updates the tracker the way the service does and returns the matches found in the window.
+     */
+    private fun EditTracker.scan(text: String): List<IntRange> {
+        val window = update(text) ?: return emptyList()
+        val matcher = pattern.matcher(text).region(window.first, window.last + 1)
+        val found = ArrayList<IntRange>()
+
+        while (matcher.find()) {
+            matched(matcher.start(), matcher.end())
+            found.add(matcher.start() until matcher.end())
+        }
+
+        return found
+    }
+
+    @Test
+    fun `deletion at the start exposes a command inside a broken match`() {
+        val tracker = EditTracker(delimited = true)
+        assertEquals(listOf(0 until 6), tracker.scan("{}{{}$"))
+
+        assertEquals(listOf(1 until 5), tracker.scan("}{{}$"))
+    }
+
+    @Test
+    fun `edit inside a match scans all of it again`() {
+        val tracker = EditTracker(delimited = true)
+        assertEquals(listOf(0 until 8), tracker.scan("{a{b}$}$ x"))
+
+        assertEquals(fullScan("{a {b}$}$ x"), tracker.scan("{a {b}$}$ x"))
+    }
+
+    @Test
+    fun `untouched matches are not scanned again`() {
+        val tracker = EditTracker(delimited = true)
+        tracker.scan("{a b}$ text")
+
+        assertEquals(emptyList<IntRange>(), tracker.scan("{a b}$ text!"))
+        assertEquals(listOf(0 until 6), tracker.matches)
+    }
+
+    @Test
+    fun `remembered matches equal a full rescan after random edits`() {
+        val random = Random(31)
+        val alphabet = "{}{}$₽ a\n"
+
+        repeat(100_000) {
+            val tracker = EditTracker(delimited = true)
+            var text = randomText(random, alphabet, 12)
+            tracker.scan(text)
+
+            repeat(3) {
+                val start = random.nextInt(text.length + 1)
+                val end = random.nextInt(start, minOf(text.length, start + 3) + 1)
+                text = text.substring(0, start) + randomText(random, alphabet, 3) + text.substring(end)
+
+                tracker.scan(text)
+                assertEquals(text, fullScan(text), tracker.matches)
+            }
+        }
+    }
+
+    /**
+     * Types into a 100 KB note with a command on every line and compares the
+     * latency of a keystroke with a full regular expression rescan, at the end
+     * and in the middle.
+     */
+    @Test
+    fun `typing into 100 KB text scans a window around the edit`() {
+        val line = "Some notes about the meeting, {gpt summarize this}$ and more text\n"
+        val document = line.repeat(100 * 1024 / line.length)
+
+        for ((position, at) in listOf("end" to document.length, "middle" to document.length / 2)) {
+            val tracker = EditTracker(delimited = true)
+            var text = document
+            tracker.scan(text)
+
+            val windowed = LongArray(KEYSTROKES)
+            val full = LongArray(KEYSTROKES)
+
+            for (i in 0 until KEYSTROKES) {
+                text = text.substring(0, at + i) + "abcd "[i % 5] + text.substring(at + i)
+
+                var started = System.nanoTime()
+                val window = tracker.update(text)!!
+                val matcher = CommandTokenizer(text, window.first, window.last + 1)
+                while (matcher.find()) tracker.matched(matcher.start(), matcher.end())
+                windowed[i] = System.nanoTime() - started
+
+                started = System.nanoTime()
+                val rescan = pattern.matcher(text)
+                while (rescan.find()) rescan.end()
+                full[i] = System.nanoTime() - started
+            }
+
+            windowed.sort()
+            full.sort()
+            println(
+                "100 KB, typing at the $position: windowed p50 %.3f ms p99 %.3f ms, full scan p50 %.3f ms p99 %.3f ms".format(
+                    windowed[KEYSTROKES / 2] / 1e6, windowed[KEYSTROKES * 99 / 100] / 1e6,
+                    full[KEYSTROKES / 2] / 1e6, full[KEYSTROKES * 99 / 100] / 1e6
+                )
+            )
+
+            assertEquals(fullScan(text), tracker.matches)
+            assertTrue("Windowed scan is not faster at the $position", windowed[KEYSTROKES / 2] * 4 < full[KEYSTROKES / 2])
+        }
+    }
+
+    private fun randomText(random: Random, alphabet: String, maxLength: Int) =
+        buildString { repeat(random.nextInt(maxLength + 1)) { append(alphabet[random.nextInt(alphabet.length)]) } }
+
+    companion object {
+        private const val KEYSTROKES = 2000
+    }
+}
@@ -0,0 +1,83 @@
+package org.luaj.vm2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+/**
+ * The modules bundled with the app, found through the {@code inline.modules}
+ * system property, and an environment in which they load without Android.
+ * <p>
+ * The environment stubs the {@code inline} global, the module object, the
+ * libraries written in Kotlin and every Java class: indexing, calling or
+ * doing arithmetic on a stub returns the stub.
+ */
+final class BundledModules {
+	static final String STUBS =
+		"local stub = {}\n" +
+		"local function self() return stub end\n" +
+		"setmetatable(stub, {\n" +
+		"  __index = self, __call = self, __newindex = function() end,\n" +
+		"  __add = self, __sub = self, __mul = self, __div = self, __mod = self, __pow = self, __unm = self,\n" +
+		"  __concat = function() return 'stub' end, __len = function() return 0 end,\n" +
+		"  __lt = function() return false end, __le = function() return false end,\n" +
+		"  __tostring = function() return 'stub' end,\n" +
+		"})\n" +
+		"local globals = { iutf8 = 'utf8' }\n" +
+		"package.searchers[3] = function(name)\n" +
+		"  return function()\n" +
+		"    if not name:find('.', 1, true) then _G[globals[name] or name] = stub end\n" +
+		"    return stub\n" +
+		"  end\n" +
+		"end\n" +
+		"inline = stub\n" +
+		"return stub";
+
+	private BundledModules() {}
+
+	/** Returns the file names of the bundled modules. */
+	static String[] names() {
+		String[] names = directory().list();
+		if (names == null)
+			throw new IllegalStateException("no modules in " + directory());
+		names = Arrays.stream(names).filter(name -> name.endsWith(".lua")).toArray(String[]::new);
+		Arrays.sort(names);
+		return names;
+	}
+
+	/** Returns the source of a bundled module. */
+	static String source(String name) throws IOException {
+		return new String(Files.readAllBytes(new File(directory(), name).toPath()), Charset.forName("UTF-8"));
+	}
+
+	/** Compiles the script installing the stubs. */
+	static Prototype compileStubs() throws IOException {
+		return JsePlatform.standardGlobals().compilePrototype(new StringReader(STUBS), "stubs");
+	}
+
+	/**
+	 * Installs the stubs into an environment.
+	 * @param globals the environment
+	 * @param stubs the result of {@link #compileStubs()}
+	 * @return the stub standing for module objects
+	 */
+	static LuaValue installStubs(Globals globals, Prototype stubs) {
+		return new LuaClosure(stubs, globals).call();
+	}
+
+	private static File directory() {
+		String path = System.getProperty("inline.modules");
+		if (path == null)
+			throw new IllegalStateException("inline.modules is not set");
+		return new File(path);
+	}
+}
@@ -0,0 +1,99 @@
+package org.luaj.vm2.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.CoerceJavaToLua;
+import org.luaj.vm2.lib.jse.CoerceLuaToJava;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Calls between Lua and Java objects, the way modules use the Android APIs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CoercionBenchmark {
+	private LuaValue instanceMethods, staticMethods, fields, overloads;
+	private LuaValue string, number;
+	private Object object;
+
+	@Setup
+	public void setup() {
+		Globals globals = JsePlatform.standardGlobals();
+		globals.set("list", CoerceJavaToLua.coerce(new ArrayList<Object>()));
+		globals.set("builder", CoerceJavaToLua.coerce(new StringBuilder()));
+		globals.load(
+			"Math = luajava.bindClass('java.lang.Math')\n" +
+			"Integer = luajava.bindClass('java.lang.Integer')").call();
+
+		instanceMethods = function(globals,
+			"list:clear()\n" +
+			"for i = 1, 10 do list:add(i) end\n" +
+			"return list:size()");
+		staticMethods = function(globals,
+			"local s = 0\n" +
+			"for i = 1, 10 do s = s + Math:max(i, 5) end\n" +
+			"return s");
+		fields = function(globals,
+			"local s = 0\n" +
+			"for i = 1, 10 do s = s + Integer.MAX_VALUE % i end\n" +
+			"return s");
+		overloads = function(globals,
+			"builder:setLength(0)\n" +
+			"for i = 1, 10 do builder:append('x'):append(i):append(1.5) end\n" +
+			"return builder:length()");
+
+		string = LuaValue.valueOf("coerced");
+		number = LuaValue.valueOf(42);
+		object = new Object();
+	}
+
+	private static LuaValue function(Globals globals, String body) {
+		return globals.load("return function()\n" + body + "\nend").call();
+	}
+
+	@Benchmark
+	public LuaValue instanceMethods() {
+		return instanceMethods.call();
+	}
+
+	@Benchmark
+	public LuaValue staticMethods() {
+		return staticMethods.call();
+	}
+
+	@Benchmark
+	public LuaValue fields() {
+		return fields.call();
+	}
+
+	@Benchmark
+	public LuaValue overloads() {
+		return overloads.call();
+	}
+
+	@Benchmark
+	public Object luaToJavaString() {
+		return CoerceLuaToJava.coerce(string, String.class);
+	}
+
+	@Benchmark
+	public Object luaToJavaInt() {
+		return CoerceLuaToJava.coerce(number, int.class);
+	}
+
+	@Benchmark
+	public LuaValue javaToLuaObject() {
+		return CoerceJavaToLua.coerce(object);
+	}
+}
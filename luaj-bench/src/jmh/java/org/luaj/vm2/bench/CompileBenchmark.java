@@ -0,0 +1,69 @@
+package org.luaj.vm2.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compiling the bundled modules from source and loading them back from bytecode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompileBenchmark {
+	private Globals globals;
+	private String[] names, sources;
+	private byte[][] dumps;
+
+	@Setup
+	public void setup() throws IOException {
+		globals = JsePlatform.standardGlobals();
+		names = BundledModules.names();
+		sources = new String[names.length];
+		dumps = new byte[names.length][];
+
+		for (int i = 0; i < names.length; i++) {
+			sources[i] = BundledModules.source(names[i]);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			DumpState.dump(compile(i), out, false);
+			dumps[i] = out.toByteArray();
+		}
+	}
+
+	private Prototype compile(int i) throws IOException {
+		return globals.compilePrototype(new StringReader(sources[i]), names[i]);
+	}
+
+	/** Compiles every bundled module. */
+	@Benchmark
+	public Prototype compile() throws IOException {
+		Prototype last = null;
+		for (int i = 0; i < sources.length; i++)
+			last = compile(i);
+		return last;
+	}
+
+	/** Loads every bundled module from precompiled bytecode. */
+	@Benchmark
+	public Prototype undump() throws IOException {
+		Prototype last = null;
+		for (int i = 0; i < dumps.length; i++)
+			last = LoadState.undump(new ByteArrayInputStream(dumps[i]), names[i]);
+		return last;
+	}
+}
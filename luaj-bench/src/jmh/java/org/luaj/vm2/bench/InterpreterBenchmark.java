@@ -0,0 +1,86 @@
+package org.luaj.vm2.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Dispatch of the interpreter loop: arithmetic, calls, closures and method calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InterpreterBenchmark {
+	private LuaValue fib, arithmetic, closures, methods, varargs;
+
+	@Setup
+	public void setup() {
+		Globals globals = JsePlatform.standardGlobals();
+		fib = globals.load(
+			"local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+			"return function() return fib(20) end").call();
+		arithmetic = globals.load(
+			"return function()\n" +
+			"  local s = 0\n" +
+			"  for i = 1, 10000 do s = s + i % 7 * 2 - i / 3 end\n" +
+			"  return s\n" +
+			"end").call();
+		closures = globals.load(
+			"return function()\n" +
+			"  local s = 0\n" +
+			"  for i = 1, 1000 do local f = function() return i end s = s + f() end\n" +
+			"  return s\n" +
+			"end").call();
+		methods = globals.load(
+			"local Point = {}\n" +
+			"Point.__index = Point\n" +
+			"function Point.new(x, y) return setmetatable({ x = x, y = y }, Point) end\n" +
+			"function Point:add(o) return Point.new(self.x + o.x, self.y + o.y) end\n" +
+			"return function()\n" +
+			"  local p, d = Point.new(0, 0), Point.new(1, 2)\n" +
+			"  for i = 1, 1000 do p = p:add(d) end\n" +
+			"  return p.x\n" +
+			"end").call();
+		varargs = globals.load(
+			"local function pack(...) return select('#', ...), ... end\n" +
+			"return function()\n" +
+			"  local s = 0\n" +
+			"  for i = 1, 1000 do s = s + pack(i, i, i) end\n" +
+			"  return s\n" +
+			"end").call();
+	}
+
+	@Benchmark
+	public LuaValue fib() {
+		return fib.call();
+	}
+
+	@Benchmark
+	public LuaValue arithmetic() {
+		return arithmetic.call();
+	}
+
+	@Benchmark
+	public LuaValue closures() {
+		return closures.call();
+	}
+
+	@Benchmark
+	public LuaValue methods() {
+		return methods.call();
+	}
+
+	@Benchmark
+	public LuaValue varargs() {
+		return varargs.call();
+	}
+}
@@ -0,0 +1,85 @@
+package org.luaj.vm2.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Iterating over tables of a million elements and calls returning several values,
+ * whose allocations per operation are reported by the gc profiler.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IterationBenchmark {
+	private LuaValue pairsHash, pairsArray, ipairs, next, multipleResults;
+
+	@Setup
+	public void setup() {
+		Globals globals = JsePlatform.standardGlobals();
+		globals.load(
+			"N = 1000000\n" +
+			"list, map = {}, {}\n" +
+			"for i = 1, N do list[i] = 'v' .. i; map['k' .. i] = list[i] end").call();
+
+		pairsHash = function(globals,
+			"local n = 0\n" +
+			"for k, v in pairs(map) do n = n + 1 end\n" +
+			"return n");
+		pairsArray = function(globals,
+			"local last\n" +
+			"for k, v in pairs(list) do last = v end\n" +
+			"return last");
+		ipairs = function(globals,
+			"local last\n" +
+			"for i, v in ipairs(list) do last = v end\n" +
+			"return last");
+		next = function(globals,
+			"local k, v = next(map)\n" +
+			"while k do k, v = next(map, k) end\n" +
+			"return k");
+		multipleResults = function(globals,
+			"local function swap(a, b) return b, a end\n" +
+			"local x, y = 'x', 'y'\n" +
+			"for i = 1, N do x, y = swap(x, y) end\n" +
+			"return x");
+	}
+
+	private static LuaValue function(Globals globals, String body) {
+		return globals.load("return function()\n" + body + "\nend").call();
+	}
+
+	@Benchmark
+	public LuaValue pairsHash() {
+		return pairsHash.call();
+	}
+
+	@Benchmark
+	public LuaValue pairsArray() {
+		return pairsArray.call();
+	}
+
+	@Benchmark
+	public LuaValue ipairs() {
+		return ipairs.call();
+	}
+
+	@Benchmark
+	public LuaValue next() {
+		return next.call();
+	}
+
+	@Benchmark
+	public LuaValue multipleResults() {
+		return multipleResults.call();
+	}
+}
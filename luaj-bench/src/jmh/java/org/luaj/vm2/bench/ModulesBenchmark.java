@@ -0,0 +1,60 @@
+package org.luaj.vm2.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Loading all bundled modules into a new environment, as done when the service
+ * starts or the modules are reloaded, with the {@code inline} APIs stubbed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ModulesBenchmark {
+	private String[] names, sources;
+	private Prototype stubs;
+
+	@Setup
+	public void setup() throws IOException {
+		names = BundledModules.names();
+		sources = new String[names.length];
+		for (int i = 0; i < names.length; i++)
+			sources[i] = BundledModules.source(names[i]);
+		stubs = BundledModules.compileStubs();
+		loadAll();
+	}
+
+	/** Creates the environment alone, to be subtracted from {@link #loadAll()}. */
+	@Benchmark
+	public Globals environment() {
+		Globals globals = JsePlatform.standardGlobals();
+		BundledModules.installStubs(globals, stubs);
+		return globals;
+	}
+
+	/** Creates an environment, then compiles, runs and initializes every module. */
+	@Benchmark
+	public Globals loadAll() {
+		Globals globals = JsePlatform.standardGlobals();
+		LuaValue module = BundledModules.installStubs(globals, stubs);
+
+		for (int i = 0; i < names.length; i++) {
+			LuaValue result = globals.load(sources[i], names[i]).call();
+			if (result.isfunction())
+				result.call(module);
+		}
+		return globals;
+	}
+}
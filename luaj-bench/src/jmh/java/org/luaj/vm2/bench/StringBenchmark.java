@@ -0,0 +1,92 @@
+package org.luaj.vm2.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * String patterns and formatting, as used by command parsing and text transformations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StringBenchmark {
+	private LuaValue findPlain, findPattern, match, gmatch, gsub, gsubFunction, format, upperRep;
+
+	@Setup
+	public void setup() {
+		Globals globals = JsePlatform.standardGlobals();
+		globals.load(
+			"local words = {}\n" +
+			"for i = 1, 200 do words[i] = 'word' .. i end\n" +
+			"text = table.concat(words, ' ') .. ' {calc 2+2}$ end'").call();
+
+		findPlain = function(globals, "return text:find('{calc', 1, true)");
+		findPattern = function(globals, "return text:find('{(%w+)%s([^}]*)}%$')");
+		match = function(globals, "return text:match('^(%a+)(%d+)')");
+		gmatch = function(globals,
+			"local n = 0\n" +
+			"for word in text:gmatch('%a+%d*') do n = n + 1 end\n" +
+			"return n");
+		gsub = function(globals, "return text:gsub('word', 'w')");
+		gsubFunction = function(globals, "return text:gsub('%d+', function(d) return #d end)");
+		format = function(globals,
+			"local s\n" +
+			"for i = 1, 100 do s = string.format('%s: %d items, %.2f%%', 'name', i, i / 3) end\n" +
+			"return s");
+		upperRep = function(globals, "return text:upper():rep(4, '\\n')");
+	}
+
+	private static LuaValue function(Globals globals, String body) {
+		return globals.load("return function()\n" + body + "\nend").call();
+	}
+
+	@Benchmark
+	public LuaValue findPlain() {
+		return findPlain.call();
+	}
+
+	@Benchmark
+	public LuaValue findPattern() {
+		return findPattern.call();
+	}
+
+	@Benchmark
+	public LuaValue match() {
+		return match.call();
+	}
+
+	@Benchmark
+	public LuaValue gmatch() {
+		return gmatch.call();
+	}
+
+	@Benchmark
+	public LuaValue gsub() {
+		return gsub.call();
+	}
+
+	@Benchmark
+	public LuaValue gsubFunction() {
+		return gsubFunction.call();
+	}
+
+	@Benchmark
+	public LuaValue format() {
+		return format.call();
+	}
+
+	@Benchmark
+	public LuaValue upperRep() {
+		return upperRep.call();
+	}
+}
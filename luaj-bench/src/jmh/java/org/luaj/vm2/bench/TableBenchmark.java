@@ -0,0 +1,114 @@
+package org.luaj.vm2.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Table operations: filling, lookups, traversal and the table library.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TableBenchmark {
+	private LuaValue append, hash, pairs, ipairs, sort, sortStrings, concat, insertRemove;
+
+	@Setup
+	public void setup() {
+		Globals globals = JsePlatform.standardGlobals();
+		globals.load(
+			"math.randomseed(42)\n" +
+			"numbers, words = {}, {}\n" +
+			"for i = 1, 1000 do numbers[i] = math.random(1, 100000); words[i] = 'w' .. math.random(1, 100000) end\n" +
+			"list = {}\n" +
+			"for i = 1, 1000 do list[i] = i end\n" +
+			"map = {}\n" +
+			"for i = 1, 1000 do map['k' .. i] = i end").call();
+
+		append = function(globals,
+			"local t = {}\n" +
+			"for i = 1, 1000 do t[#t + 1] = i end\n" +
+			"return t");
+		hash = function(globals,
+			"local t, s = {}, 0\n" +
+			"for i = 1, 1000 do t[words[i]] = i end\n" +
+			"for i = 1, 1000 do s = s + t[words[i]] end\n" +
+			"return s");
+		pairs = function(globals,
+			"local s = 0\n" +
+			"for k, v in pairs(map) do s = s + v end\n" +
+			"return s");
+		ipairs = function(globals,
+			"local s = 0\n" +
+			"for i, v in ipairs(list) do s = s + v end\n" +
+			"return s");
+		sort = function(globals,
+			"local t = { table.unpack(numbers) }\n" +
+			"table.sort(t)\n" +
+			"return t");
+		sortStrings = function(globals,
+			"local t = { table.unpack(words) }\n" +
+			"table.sort(t, function(a, b) return a > b end)\n" +
+			"return t");
+		concat = function(globals,
+			"return table.concat(words, ',')");
+		insertRemove = function(globals,
+			"local t = {}\n" +
+			"for i = 1, 200 do table.insert(t, 1, i) end\n" +
+			"for i = 1, 200 do table.remove(t) end\n" +
+			"return t");
+	}
+
+	private static LuaValue function(Globals globals, String body) {
+		return globals.load("return function()\n" + body + "\nend").call();
+	}
+
+	@Benchmark
+	public LuaValue append() {
+		return append.call();
+	}
+
+	@Benchmark
+	public LuaValue hash() {
+		return hash.call();
+	}
+
+	@Benchmark
+	public LuaValue pairs() {
+		return pairs.call();
+	}
+
+	@Benchmark
+	public LuaValue ipairs() {
+		return ipairs.call();
+	}
+
+	@Benchmark
+	public LuaValue sort() {
+		return sort.call();
+	}
+
+	@Benchmark
+	public LuaValue sortStrings() {
+		return sortStrings.call();
+	}
+
+	@Benchmark
+	public LuaValue concat() {
+		return concat.call();
+	}
+
+	@Benchmark
+	public LuaValue insertRemove() {
+		return insertRemove.call();
+	}
+}